@@ -92,6 +92,72 @@ public final class ADConfiguration extends LdapConfiguration {
 
     private String defaultIdAttribute = "cn";
 
+    private int contextPoolMinIdle = 0;
+
+    private int contextPoolMaxIdle = 4;
+
+    private int contextPoolMaxTotal = 8;
+
+    private long contextPoolMaxWait = 30000L;
+
+    private long contextPoolMinEvictableIdleTime = 300000L;
+
+    private int bindPoolMinIdle = 0;
+
+    private int bindPoolMaxIdle = 4;
+
+    private int bindPoolMaxTotal = 0;
+
+    private long bindPoolMaxWait = 30000L;
+
+    private long bindPoolMinEvictableIdleTime = 300000L;
+
+    private boolean fastBind = false;
+
+    private int usernameCacheSize = 1000;
+
+    private long usernameCacheTTL = 300000L;
+
+    private long usernameCacheNegativeTTL = 30000L;
+
+    private int searchParallelism = 1;
+
+    private int searchPageSize = 1000;
+
+    private boolean adaptivePageSize = false;
+
+    private long targetPageLatency = 1000L;
+
+    private boolean pagePrefetch = false;
+
+    private boolean batchGroupResolution = false;
+
+    private long primaryGroupCacheTTL = 600000L;
+
+    private boolean streamingSync = false;
+
+    private int syncBatchSize = 0;
+
+    private boolean dirSyncIncrementalValues = true;
+
+    private int dirSyncMaxAttributeCount = 0;
+
+    private boolean parallelSync = false;
+
+    private int syncWorkers = 0;
+
+    private boolean syncCheckpoints = false;
+
+    private boolean usnChangedSync = false;
+
+    private boolean changeNotificationSync = false;
+
+    private int syncPoolMaxIdle = 4;
+
+    private String schemaCacheDirectory;
+
+    private boolean schemaWarmUp = false;
+
     private final ObjectClassMappingConfig accountConfig = new ObjectClassMappingConfig(
             ObjectClass.ACCOUNT,
             CollectionUtil.newList("top", "person", "organizationalPerson", "user"),
@@ -135,7 +201,8 @@ public final class ADConfiguration extends LdapConfiguration {
 
     @Override
     public DefaultSearchStrategy newDefaultSearchStrategy(boolean ignoreNonExistingBaseDN) {
-        return new ADDefaultSearchStrategy(ignoreNonExistingBaseDN);
+        return new ADDefaultSearchStrategy(
+                ignoreNonExistingBaseDN, searchPageSize, adaptivePageSize, targetPageLatency, null);
     }
 
     @Override
@@ -400,6 +467,336 @@ public final class ADConfiguration extends LdapConfiguration {
         this.excludeAttributeChangesOnUpdate = excludeAttributeChangesOnUpdate;
     }
 
+    @ConfigurationProperty(displayMessageKey = "contextPoolMinIdle.display",
+            helpMessageKey = "contextPoolMinIdle.help", order = 21)
+    public int getContextPoolMinIdle() {
+        return contextPoolMinIdle;
+    }
+
+    public void setContextPoolMinIdle(final int contextPoolMinIdle) {
+        this.contextPoolMinIdle = contextPoolMinIdle;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "contextPoolMaxIdle.display",
+            helpMessageKey = "contextPoolMaxIdle.help", order = 22)
+    public int getContextPoolMaxIdle() {
+        return contextPoolMaxIdle;
+    }
+
+    public void setContextPoolMaxIdle(final int contextPoolMaxIdle) {
+        this.contextPoolMaxIdle = contextPoolMaxIdle;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "contextPoolMaxTotal.display",
+            helpMessageKey = "contextPoolMaxTotal.help", order = 23)
+    public int getContextPoolMaxTotal() {
+        return contextPoolMaxTotal;
+    }
+
+    public void setContextPoolMaxTotal(final int contextPoolMaxTotal) {
+        this.contextPoolMaxTotal = contextPoolMaxTotal;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "contextPoolMaxWait.display",
+            helpMessageKey = "contextPoolMaxWait.help", order = 24)
+    public long getContextPoolMaxWait() {
+        return contextPoolMaxWait;
+    }
+
+    public void setContextPoolMaxWait(final long contextPoolMaxWait) {
+        this.contextPoolMaxWait = contextPoolMaxWait;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "contextPoolMinEvictableIdleTime.display",
+            helpMessageKey = "contextPoolMinEvictableIdleTime.help", order = 25)
+    public long getContextPoolMinEvictableIdleTime() {
+        return contextPoolMinEvictableIdleTime;
+    }
+
+    public void setContextPoolMinEvictableIdleTime(final long contextPoolMinEvictableIdleTime) {
+        this.contextPoolMinEvictableIdleTime = contextPoolMinEvictableIdleTime;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "bindPoolMinIdle.display",
+            helpMessageKey = "bindPoolMinIdle.help", order = 26)
+    public int getBindPoolMinIdle() {
+        return bindPoolMinIdle;
+    }
+
+    public void setBindPoolMinIdle(final int bindPoolMinIdle) {
+        this.bindPoolMinIdle = bindPoolMinIdle;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "bindPoolMaxIdle.display",
+            helpMessageKey = "bindPoolMaxIdle.help", order = 27)
+    public int getBindPoolMaxIdle() {
+        return bindPoolMaxIdle;
+    }
+
+    public void setBindPoolMaxIdle(final int bindPoolMaxIdle) {
+        this.bindPoolMaxIdle = bindPoolMaxIdle;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "bindPoolMaxTotal.display",
+            helpMessageKey = "bindPoolMaxTotal.help", order = 28)
+    public int getBindPoolMaxTotal() {
+        return bindPoolMaxTotal;
+    }
+
+    public void setBindPoolMaxTotal(final int bindPoolMaxTotal) {
+        this.bindPoolMaxTotal = bindPoolMaxTotal;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "bindPoolMaxWait.display",
+            helpMessageKey = "bindPoolMaxWait.help", order = 29)
+    public long getBindPoolMaxWait() {
+        return bindPoolMaxWait;
+    }
+
+    public void setBindPoolMaxWait(final long bindPoolMaxWait) {
+        this.bindPoolMaxWait = bindPoolMaxWait;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "bindPoolMinEvictableIdleTime.display",
+            helpMessageKey = "bindPoolMinEvictableIdleTime.help", order = 30)
+    public long getBindPoolMinEvictableIdleTime() {
+        return bindPoolMinEvictableIdleTime;
+    }
+
+    public void setBindPoolMinEvictableIdleTime(final long bindPoolMinEvictableIdleTime) {
+        this.bindPoolMinEvictableIdleTime = bindPoolMinEvictableIdleTime;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "fastBind.display",
+            helpMessageKey = "fastBind.help", order = 31)
+    public boolean isFastBind() {
+        return fastBind;
+    }
+
+    public void setFastBind(final boolean fastBind) {
+        this.fastBind = fastBind;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "usernameCacheSize.display",
+            helpMessageKey = "usernameCacheSize.help", order = 32)
+    public int getUsernameCacheSize() {
+        return usernameCacheSize;
+    }
+
+    public void setUsernameCacheSize(final int usernameCacheSize) {
+        this.usernameCacheSize = usernameCacheSize;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "usernameCacheTTL.display",
+            helpMessageKey = "usernameCacheTTL.help", order = 33)
+    public long getUsernameCacheTTL() {
+        return usernameCacheTTL;
+    }
+
+    public void setUsernameCacheTTL(final long usernameCacheTTL) {
+        this.usernameCacheTTL = usernameCacheTTL;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "usernameCacheNegativeTTL.display",
+            helpMessageKey = "usernameCacheNegativeTTL.help", order = 34)
+    public long getUsernameCacheNegativeTTL() {
+        return usernameCacheNegativeTTL;
+    }
+
+    public void setUsernameCacheNegativeTTL(final long usernameCacheNegativeTTL) {
+        this.usernameCacheNegativeTTL = usernameCacheNegativeTTL;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "searchParallelism.display",
+            helpMessageKey = "searchParallelism.help", order = 35)
+    public int getSearchParallelism() {
+        return searchParallelism;
+    }
+
+    public void setSearchParallelism(final int searchParallelism) {
+        this.searchParallelism = searchParallelism;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "searchPageSize.display",
+            helpMessageKey = "searchPageSize.help", order = 36)
+    public int getSearchPageSize() {
+        return searchPageSize;
+    }
+
+    public void setSearchPageSize(final int searchPageSize) {
+        this.searchPageSize = searchPageSize;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "adaptivePageSize.display",
+            helpMessageKey = "adaptivePageSize.help", order = 37)
+    public boolean isAdaptivePageSize() {
+        return adaptivePageSize;
+    }
+
+    public void setAdaptivePageSize(final boolean adaptivePageSize) {
+        this.adaptivePageSize = adaptivePageSize;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "targetPageLatency.display",
+            helpMessageKey = "targetPageLatency.help", order = 38)
+    public long getTargetPageLatency() {
+        return targetPageLatency;
+    }
+
+    public void setTargetPageLatency(final long targetPageLatency) {
+        this.targetPageLatency = targetPageLatency;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "pagePrefetch.display",
+            helpMessageKey = "pagePrefetch.help", order = 39)
+    public boolean isPagePrefetch() {
+        return pagePrefetch;
+    }
+
+    public void setPagePrefetch(final boolean pagePrefetch) {
+        this.pagePrefetch = pagePrefetch;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "batchGroupResolution.display",
+            helpMessageKey = "batchGroupResolution.help", order = 40)
+    public boolean isBatchGroupResolution() {
+        return batchGroupResolution;
+    }
+
+    public void setBatchGroupResolution(final boolean batchGroupResolution) {
+        this.batchGroupResolution = batchGroupResolution;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "primaryGroupCacheTTL.display",
+            helpMessageKey = "primaryGroupCacheTTL.help", order = 41)
+    public long getPrimaryGroupCacheTTL() {
+        return primaryGroupCacheTTL;
+    }
+
+    public void setPrimaryGroupCacheTTL(final long primaryGroupCacheTTL) {
+        this.primaryGroupCacheTTL = primaryGroupCacheTTL;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "streamingSync.display",
+            helpMessageKey = "streamingSync.help", order = 42)
+    public boolean isStreamingSync() {
+        return streamingSync;
+    }
+
+    public void setStreamingSync(final boolean streamingSync) {
+        this.streamingSync = streamingSync;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "syncBatchSize.display",
+            helpMessageKey = "syncBatchSize.help", order = 43)
+    public int getSyncBatchSize() {
+        return syncBatchSize;
+    }
+
+    public void setSyncBatchSize(final int syncBatchSize) {
+        this.syncBatchSize = syncBatchSize;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "dirSyncIncrementalValues.display",
+            helpMessageKey = "dirSyncIncrementalValues.help", order = 44)
+    public boolean isDirSyncIncrementalValues() {
+        return dirSyncIncrementalValues;
+    }
+
+    public void setDirSyncIncrementalValues(final boolean dirSyncIncrementalValues) {
+        this.dirSyncIncrementalValues = dirSyncIncrementalValues;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "dirSyncMaxAttributeCount.display",
+            helpMessageKey = "dirSyncMaxAttributeCount.help", order = 45)
+    public int getDirSyncMaxAttributeCount() {
+        return dirSyncMaxAttributeCount;
+    }
+
+    public void setDirSyncMaxAttributeCount(final int dirSyncMaxAttributeCount) {
+        this.dirSyncMaxAttributeCount = dirSyncMaxAttributeCount;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "parallelSync.display",
+            helpMessageKey = "parallelSync.help", order = 46)
+    public boolean isParallelSync() {
+        return parallelSync;
+    }
+
+    public void setParallelSync(final boolean parallelSync) {
+        this.parallelSync = parallelSync;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "syncWorkers.display",
+            helpMessageKey = "syncWorkers.help", order = 47)
+    public int getSyncWorkers() {
+        return syncWorkers;
+    }
+
+    public void setSyncWorkers(final int syncWorkers) {
+        this.syncWorkers = syncWorkers;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "syncCheckpoints.display",
+            helpMessageKey = "syncCheckpoints.help", order = 48)
+    public boolean isSyncCheckpoints() {
+        return syncCheckpoints;
+    }
+
+    public void setSyncCheckpoints(final boolean syncCheckpoints) {
+        this.syncCheckpoints = syncCheckpoints;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "usnChangedSync.display",
+            helpMessageKey = "usnChangedSync.help", order = 49)
+    public boolean isUsnChangedSync() {
+        return usnChangedSync;
+    }
+
+    public void setUsnChangedSync(final boolean usnChangedSync) {
+        this.usnChangedSync = usnChangedSync;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "changeNotificationSync.display",
+            helpMessageKey = "changeNotificationSync.help", order = 50)
+    public boolean isChangeNotificationSync() {
+        return changeNotificationSync;
+    }
+
+    public void setChangeNotificationSync(final boolean changeNotificationSync) {
+        this.changeNotificationSync = changeNotificationSync;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "syncPoolMaxIdle.display",
+            helpMessageKey = "syncPoolMaxIdle.help", order = 51)
+    public int getSyncPoolMaxIdle() {
+        return syncPoolMaxIdle;
+    }
+
+    public void setSyncPoolMaxIdle(final int syncPoolMaxIdle) {
+        this.syncPoolMaxIdle = syncPoolMaxIdle;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "schemaCacheDirectory.display",
+            helpMessageKey = "schemaCacheDirectory.help", order = 52)
+    public String getSchemaCacheDirectory() {
+        return schemaCacheDirectory;
+    }
+
+    public void setSchemaCacheDirectory(final String schemaCacheDirectory) {
+        this.schemaCacheDirectory = schemaCacheDirectory;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "schemaWarmUp.display",
+            helpMessageKey = "schemaWarmUp.help", order = 53)
+    public boolean isSchemaWarmUp() {
+        return schemaWarmUp;
+    }
+
+    public void setSchemaWarmUp(final boolean schemaWarmUp) {
+        this.schemaWarmUp = schemaWarmUp;
+    }
+
     @Override
     public final void setUidAttribute(final String uidAttribute) {
         super.setUidAttribute(uidAttribute);
@@ -124,6 +124,105 @@ public class ADConfigurationBeanInfo extends SimpleBeanInfo {
 
             // groupMemberReferenceAttribute
             props.add(new PropertyDescriptor("groupMemberReferenceAttribute", ADConfiguration.class));
+
+            // contextPoolMinIdle
+            props.add(new PropertyDescriptor("contextPoolMinIdle", ADConfiguration.class));
+
+            // contextPoolMaxIdle
+            props.add(new PropertyDescriptor("contextPoolMaxIdle", ADConfiguration.class));
+
+            // contextPoolMaxTotal
+            props.add(new PropertyDescriptor("contextPoolMaxTotal", ADConfiguration.class));
+
+            // contextPoolMaxWait
+            props.add(new PropertyDescriptor("contextPoolMaxWait", ADConfiguration.class));
+
+            // contextPoolMinEvictableIdleTime
+            props.add(new PropertyDescriptor("contextPoolMinEvictableIdleTime", ADConfiguration.class));
+
+            // bindPoolMinIdle
+            props.add(new PropertyDescriptor("bindPoolMinIdle", ADConfiguration.class));
+
+            // bindPoolMaxIdle
+            props.add(new PropertyDescriptor("bindPoolMaxIdle", ADConfiguration.class));
+
+            // bindPoolMaxTotal
+            props.add(new PropertyDescriptor("bindPoolMaxTotal", ADConfiguration.class));
+
+            // bindPoolMaxWait
+            props.add(new PropertyDescriptor("bindPoolMaxWait", ADConfiguration.class));
+
+            // bindPoolMinEvictableIdleTime
+            props.add(new PropertyDescriptor("bindPoolMinEvictableIdleTime", ADConfiguration.class));
+
+            // fastBind
+            props.add(new PropertyDescriptor("fastBind", ADConfiguration.class));
+
+            // usernameCacheSize
+            props.add(new PropertyDescriptor("usernameCacheSize", ADConfiguration.class));
+
+            // usernameCacheTTL
+            props.add(new PropertyDescriptor("usernameCacheTTL", ADConfiguration.class));
+
+            // usernameCacheNegativeTTL
+            props.add(new PropertyDescriptor("usernameCacheNegativeTTL", ADConfiguration.class));
+
+            // searchParallelism
+            props.add(new PropertyDescriptor("searchParallelism", ADConfiguration.class));
+
+            // searchPageSize
+            props.add(new PropertyDescriptor("searchPageSize", ADConfiguration.class));
+
+            // adaptivePageSize
+            props.add(new PropertyDescriptor("adaptivePageSize", ADConfiguration.class));
+
+            // targetPageLatency
+            props.add(new PropertyDescriptor("targetPageLatency", ADConfiguration.class));
+
+            // pagePrefetch
+            props.add(new PropertyDescriptor("pagePrefetch", ADConfiguration.class));
+
+            // batchGroupResolution
+            props.add(new PropertyDescriptor("batchGroupResolution", ADConfiguration.class));
+
+            // primaryGroupCacheTTL
+            props.add(new PropertyDescriptor("primaryGroupCacheTTL", ADConfiguration.class));
+
+            // streamingSync
+            props.add(new PropertyDescriptor("streamingSync", ADConfiguration.class));
+
+            // syncBatchSize
+            props.add(new PropertyDescriptor("syncBatchSize", ADConfiguration.class));
+
+            // dirSyncIncrementalValues
+            props.add(new PropertyDescriptor("dirSyncIncrementalValues", ADConfiguration.class));
+
+            // dirSyncMaxAttributeCount
+            props.add(new PropertyDescriptor("dirSyncMaxAttributeCount", ADConfiguration.class));
+
+            // parallelSync
+            props.add(new PropertyDescriptor("parallelSync", ADConfiguration.class));
+
+            // syncWorkers
+            props.add(new PropertyDescriptor("syncWorkers", ADConfiguration.class));
+
+            // syncCheckpoints
+            props.add(new PropertyDescriptor("syncCheckpoints", ADConfiguration.class));
+
+            // usnChangedSync
+            props.add(new PropertyDescriptor("usnChangedSync", ADConfiguration.class));
+
+            // changeNotificationSync
+            props.add(new PropertyDescriptor("changeNotificationSync", ADConfiguration.class));
+
+            // syncPoolMaxIdle
+            props.add(new PropertyDescriptor("syncPoolMaxIdle", ADConfiguration.class));
+
+            // schemaCacheDirectory
+            props.add(new PropertyDescriptor("schemaCacheDirectory", ADConfiguration.class));
+
+            // schemaWarmUp
+            props.add(new PropertyDescriptor("schemaWarmUp", ADConfiguration.class));
         } catch (IntrospectionException e) {
             LOG.error(e, "Failure retrieving properties");
             props.clear();
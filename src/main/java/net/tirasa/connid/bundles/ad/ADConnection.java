@@ -20,20 +20,40 @@ import static org.identityconnectors.common.StringUtil.isNotBlank;
 
 import com.sun.jndi.ldap.ctl.PasswordExpiredResponseControl;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.naming.AuthenticationException;
+import javax.naming.CommunicationException;
 import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
 import javax.naming.ldap.Control;
 import javax.naming.ldap.InitialLdapContext;
 import javax.naming.ldap.LdapContext;
+import net.tirasa.adsddl.ntsd.SID;
 import net.tirasa.adsddl.ntsd.controls.SDFlagsControl;
+import net.tirasa.adsddl.ntsd.utils.Hex;
+import net.tirasa.connid.bundles.ad.authentication.UsernameCache;
 import net.tirasa.connid.bundles.ad.schema.ADSchema;
+import net.tirasa.connid.bundles.ad.util.FastBindRequest;
+import net.tirasa.connid.bundles.ad.util.PrimaryGroupCache;
 import net.tirasa.connid.bundles.ad.util.TrustAllSocketFactory;
 import net.tirasa.connid.bundles.ldap.LdapConnection;
 import net.tirasa.connid.bundles.ldap.LdapConnection.AuthenticationResult;
 import net.tirasa.connid.bundles.ldap.LdapConnection.AuthenticationResultType;
+import net.tirasa.connid.bundles.ldap.commons.LdapNativeSchema;
+import net.tirasa.connid.bundles.ldap.commons.LdapUtil;
 import org.identityconnectors.common.Pair;
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.common.security.GuardedString;
@@ -50,9 +70,47 @@ public class ADConnection extends LdapConnection {
 
     private static final String LDAP_BINARY_ATTRIBUTE = "java.naming.ldap.attributes.binary";
 
+    private static final String SUPPORTED_CAPABILITIES = "supportedCapabilities";
+
+    private static final String SUPPORTED_CONTROL = "supportedControl";
+
+    private static final String SCHEMA_NAMING_CONTEXT = "schemaNamingContext";
+
+    private static final String LDAP_DISPLAY_NAME = "lDAPDisplayName";
+
+    /**
+     * Attribute definitions flagged as constructed (FLAG_ATTR_IS_CONSTRUCTED in <tt>systemFlags</tt>).
+     */
+    private static final String CONSTRUCTED_ATTRIBUTES_FILTER =
+            "(&(objectClass=attributeSchema)(systemFlags:1.2.840.113556.1.4.803:=4))";
+
+    private static final String DISTINGUISHED_NAME = "distinguishedName";
+
+    /**
+     * Idle time after which a synchronization context is validated before being borrowed.
+     */
+    private static final long SYNC_VALIDATION_IDLE_MILLIS = 1000L;
+
     private LdapContext initCtx = null;
 
-    private LdapContext syncCtx = null;
+    private ADContextPool syncPool = null;
+
+    private ADContextPool contextPool = null;
+
+    private ADContextPool bindPool = null;
+
+    private Boolean fastBindSupported = null;
+
+    private ExecutorService searchExecutor = null;
+
+    /**
+     * Pooled context bound to the current thread, if any.
+     */
+    private final ThreadLocal<BoundContext> boundContext = new ThreadLocal<BoundContext>();
+
+    private final UsernameCache usernameCache;
+
+    private final PrimaryGroupCache primaryGroupCache;
 
     private final ADSchema schema;
 
@@ -62,6 +120,15 @@ public class ADConnection extends LdapConnection {
         super(config);
         this.config = config;
         schema = new ADSchema(this);
+        usernameCache = config.getUsernameCacheSize() > 0
+                ? new UsernameCache(
+                        config.getUsernameCacheSize(),
+                        config.getUsernameCacheTTL(),
+                        config.getUsernameCacheNegativeTTL())
+                : null;
+        primaryGroupCache = config.getPrimaryGroupCacheTTL() > 0
+                ? new PrimaryGroupCache(config.getPrimaryGroupCacheTTL())
+                : null;
     }
 
     @Override
@@ -73,54 +140,474 @@ public class ADConnection extends LdapConnection {
             LOG.ok("Attempting to authenticate {0}", entryDN);
         }
 
-        final Pair<AuthenticationResult, LdapContext> pair = createContext(entryDN, password);
+        final AuthenticationResult result;
+
+        final ADContextPool pool = getBindPool();
+        if (pool == null) {
+            final Pair<AuthenticationResult, LdapContext> pair = createContext(entryDN, password);
+
+            if (pair.second != null) {
+                quietClose(pair.second);
+            }
 
-        if (pair.second != null) {
-            quietClose(pair.second);
+            result = pair.first;
+        } else {
+            result = rebind(pool, entryDN, password);
         }
 
         if (LOG.isOk()) {
-            LOG.ok("Authentication result: {0}", pair.first);
+            LOG.ok("Authentication result: {0}", result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Authenticate by re-binding a pre-connected context taken from the bind pool: this costs a single bind round
+     * trip, with no TCP / TLS handshake.
+     */
+    private AuthenticationResult rebind(
+            final ADContextPool pool, final String entryDN, final GuardedString password) {
+
+        // a stale pooled connection deserves a second chance on a fresh one
+        for (int attempt = 0;; attempt++) {
+            final LdapContext ctx = pool.borrow();
+
+            boolean reusable = false;
+            try {
+                ctx.addToEnvironment(Context.SECURITY_AUTHENTICATION, "simple");
+                ctx.addToEnvironment(Context.SECURITY_PRINCIPAL, entryDN);
+                if (password != null) {
+                    password.access(new Accessor() {
+
+                        @Override
+                        public void access(final char[] clearChars) {
+                            try {
+                                ctx.addToEnvironment(Context.SECURITY_CREDENTIALS, new String(clearChars));
+                            } catch (NamingException e) {
+                                throw new ConnectorException(e);
+                            }
+                        }
+                    });
+                }
+
+                ctx.reconnect(null);
+                reusable = true;
+
+                if (config.isRespectResourcePasswordPolicyChangeAfterReset()
+                        && hasPasswordExpiredControl(ctx.getResponseControls())) {
+
+                    return new AuthenticationResult(AuthenticationResultType.PASSWORD_EXPIRED);
+                }
+                return new AuthenticationResult(AuthenticationResultType.SUCCESS);
+            } catch (AuthenticationException e) {
+                return getAuthenticationFailure(e);
+            } catch (CommunicationException e) {
+                if (attempt > 0) {
+                    return new AuthenticationResult(AuthenticationResultType.FAILED, e);
+                }
+                LOG.ok(e, "Bind pool connection failure, retrying on a fresh connection");
+            } catch (NamingException e) {
+                return new AuthenticationResult(AuthenticationResultType.FAILED, e);
+            } finally {
+                // contexts left in an unknown state after a failed bind are not given back to the pool
+                if (reusable) {
+                    pool.release(ctx);
+                } else {
+                    pool.invalidate(ctx);
+                }
+            }
         }
+    }
 
-        return pair.first;
+    /**
+     * @return username resolution cache, or null if disabled.
+     */
+    public UsernameCache getUsernameCache() {
+        return usernameCache;
+    }
+
+    /**
+     * Forget cached username resolutions about the given entries, which have been changed.
+     *
+     * @param values Uid values or DNs of the changed entries.
+     */
+    public void invalidateCachedUsernames(final String... values) {
+        if (usernameCache != null) {
+            usernameCache.invalidateEntries(values);
+        }
+    }
+
+    /**
+     * Find the DN of the group with the given SID, via the primary group cache if enabled.
+     *
+     * @param groupSID group SID
+     * @return group DN, or null if not found
+     */
+    public String getGroupDN(final SID groupSID) {
+        final String key = Hex.get(groupSID.toByteArray());
+
+        if (primaryGroupCache != null) {
+            final PrimaryGroupCache.Entry cached = primaryGroupCache.get(key);
+            if (cached != null) {
+                return cached.getDN();
+            }
+        }
+
+        String groupDN = null;
+        try {
+            // AD binds objects by SID, no need to search
+            final Attributes attrs = getInitialContext().getAttributes(
+                    "<SID=" + key + ">", new String[] { DISTINGUISHED_NAME });
+            if (attrs.get(DISTINGUISHED_NAME) != null) {
+                groupDN = attrs.get(DISTINGUISHED_NAME).get().toString();
+            }
+        } catch (NameNotFoundException e) {
+            LOG.ok("No group found with SID {0}", groupSID);
+        } catch (NamingException e) {
+            LOG.error(e, "While looking for group with SID {0}", groupSID);
+            return null;
+        }
+
+        cacheGroupDN(groupSID.toByteArray(), groupDN);
+        return groupDN;
+    }
+
+    /**
+     * Peek the primary group cache, without looking up the group if not cached.
+     *
+     * @param groupSID group SID, as hex string
+     * @return cached resolution or null
+     */
+    public PrimaryGroupCache.Entry getCachedGroupDN(final String groupSID) {
+        return primaryGroupCache == null ? null : primaryGroupCache.get(groupSID);
+    }
+
+    /**
+     * Store the DN of the group with the given SID in the primary group cache, if enabled.
+     *
+     * @param groupSID group SID
+     * @param groupDN group DN, or null if not found
+     */
+    public void cacheGroupDN(final byte[] groupSID, final String groupDN) {
+        if (primaryGroupCache != null) {
+            primaryGroupCache.put(Hex.get(groupSID), groupDN);
+        }
+    }
+
+    /**
+     * Forget the DN of the group with the given SID (or of all groups), which has been changed.
+     *
+     * @param groupSID group SID, or null for all groups
+     */
+    public void invalidateGroupDN(final byte[] groupSID) {
+        if (primaryGroupCache != null) {
+            if (groupSID == null) {
+                primaryGroupCache.clear();
+            } else {
+                primaryGroupCache.invalidate(Hex.get(groupSID));
+            }
+        }
+    }
+
+    /**
+     * @return executor running the concurrent per base DN searches.
+     */
+    public synchronized ExecutorService getSearchExecutor() {
+        if (searchExecutor == null) {
+            searchExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "ad-search-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return searchExecutor;
     }
 
     public ADSchema getADSchema() {
         return schema;
     }
 
-    public LdapContext getSyncContext(final Control[] control) {
-        return cloneContext(control);
+    /**
+     * Native schema, shared with the other connector instances configured for the same directory.
+     *
+     * @return native schema.
+     */
+    @Override
+    public LdapNativeSchema createNativeSchema() {
+        return schema.getEntry().getNativeSchema(new Callable<LdapNativeSchema>() {
+
+            @Override
+            public LdapNativeSchema call() {
+                return ADConnection.super.createNativeSchema();
+            }
+        });
     }
 
     @Override
-    public void close() {
+    public boolean supportsControl(final String oid) {
+        return schema.getEntry().getSupportedControls(new Callable<Set<String>>() {
+
+            @Override
+            public Set<String> call() throws NamingException {
+                return Collections.unmodifiableSet(LdapUtil.getStringAttrValues(
+                        getInitialContext().getAttributes("", new String[] { SUPPORTED_CONTROL }),
+                        SUPPORTED_CONTROL));
+            }
+        }).contains(oid);
+    }
+
+    /**
+     * Names of the constructed attributes, never returned when reading all attributes of an entry; shared with the
+     * other connector instances configured for the same directory.
+     *
+     * @return constructed attribute names, or null if these are not known.
+     */
+    public Set<String> getConstructedAttributes() {
+        if (!config.isReadSchema()) {
+            return null;
+        }
+
         try {
-            super.close();
-            quietClose(initCtx);
-            quietClose(syncCtx);
-        } finally {
-            initCtx = null;
-            syncCtx = null;
+            return schema.getEntry().getConstructedAttributes(new Callable<Set<String>>() {
+
+                @Override
+                public Set<String> call() throws NamingException {
+                    final LdapContext ctx = getInitialContext();
+
+                    final String schemaNamingContext = LdapUtil.getStringAttrValue(
+                            ctx.getAttributes("", new String[] { SCHEMA_NAMING_CONTEXT }), SCHEMA_NAMING_CONTEXT);
+                    if (schemaNamingContext == null) {
+                        throw new NamingException("No " + SCHEMA_NAMING_CONTEXT + " found in rootDSE");
+                    }
+
+                    final SearchControls searchCtls = new SearchControls();
+                    searchCtls.setSearchScope(SearchControls.ONELEVEL_SCOPE);
+                    searchCtls.setReturningAttributes(new String[] { LDAP_DISPLAY_NAME });
+
+                    final Set<String> constructed = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+                    final NamingEnumeration<SearchResult> answer =
+                            ctx.search(schemaNamingContext, CONSTRUCTED_ATTRIBUTES_FILTER, searchCtls);
+                    try {
+                        while (answer.hasMore()) {
+                            constructed.add(
+                                    LdapUtil.getStringAttrValue(answer.next().getAttributes(), LDAP_DISPLAY_NAME));
+                        }
+                    } finally {
+                        answer.close();
+                    }
+
+                    LOG.ok("Found {0} constructed attributes", constructed.size());
+                    return Collections.unmodifiableSet(constructed);
+                }
+            });
+        } catch (ConnectorException e) {
+            LOG.error(e, "Could not read constructed attributes from the schema");
+            return null;
         }
     }
 
-    private LdapContext cloneContext(final Control[] control) {
-        LdapContext ctx = null;
+    /**
+     * Borrow a context dedicated to synchronization, with the given request controls; to be given back via
+     * {@link #releaseSyncContext(javax.naming.ldap.LdapContext)}.
+     *
+     * @param control request controls.
+     * @return synchronization context, or null if no context could be obtained.
+     */
+    public LdapContext getSyncContext(final Control[] control) {
+        final ADContextPool pool = getSyncPool();
 
+        LdapContext ctx = null;
         try {
-            @SuppressWarnings({ "UseOfObsoleteCollectionType", "rawtypes", "unchecked" })
-            final java.util.Hashtable env = new java.util.Hashtable(getInitialContext().getEnvironment());
-
-            ctx = new InitialLdapContext(env, null);
+            ctx = pool.borrow();
             ctx.setRequestControls(control);
-
+            return ctx;
         } catch (NamingException e) {
             LOG.error(e, "Context initialization failed");
+            pool.invalidate(ctx);
+        } catch (ConnectorException e) {
+            LOG.error(e, "Context initialization failed");
         }
 
-        return ctx;
+        return null;
+    }
+
+    /**
+     * Give back a context obtained via {@link #getSyncContext(javax.naming.ldap.Control[])}.
+     *
+     * @param ctx synchronization context.
+     */
+    public void releaseSyncContext(final LdapContext ctx) {
+        if (ctx != null) {
+            getSyncPool().release(ctx);
+        }
+    }
+
+    /**
+     * Discard a context obtained via {@link #getSyncContext(javax.naming.ldap.Control[])}, which must not be
+     * reused (e.g. its connection was found broken).
+     *
+     * @param ctx synchronization context.
+     */
+    public void invalidateSyncContext(final LdapContext ctx) {
+        if (ctx != null) {
+            getSyncPool().invalidate(ctx);
+        }
+    }
+
+    /**
+     * Bind a pooled context to the current thread: until the matching {@link #releaseContext()}, every
+     * {@link #getInitialContext()} invocation performed by the current thread will return such context.
+     * Nested invocations share the context bound by the outermost one.
+     */
+    public void acquireContext() {
+        final BoundContext bound = boundContext.get();
+        if (bound != null) {
+            bound.depth++;
+            return;
+        }
+
+        final ADContextPool pool = getContextPool();
+        if (pool != null) {
+            boundContext.set(new BoundContext(pool.borrow()));
+        }
+    }
+
+    /**
+     * Give back to the pool the context bound to the current thread by {@link #acquireContext()}.
+     */
+    public void releaseContext() {
+        final BoundContext bound = boundContext.get();
+        if (bound == null) {
+            return;
+        }
+
+        if (bound.depth > 0) {
+            bound.depth--;
+        } else {
+            boundContext.remove();
+
+            final ADContextPool pool = contextPool;
+            if (pool == null) {
+                quietClose(bound.ctx);
+            } else {
+                pool.release(bound.ctx);
+            }
+        }
+    }
+
+    private synchronized ADContextPool getContextPool() {
+        if (contextPool == null && config.getContextPoolMaxTotal() > 0) {
+            contextPool = new ADContextPool(
+                    "context",
+                    new ServiceContextFactory(),
+                    config.getContextPoolMinIdle(),
+                    config.getContextPoolMaxIdle(),
+                    config.getContextPoolMaxTotal(),
+                    config.getContextPoolMaxWait(),
+                    config.getContextPoolMinEvictableIdleTime());
+            contextPool.ensureMinIdle();
+        }
+        return contextPool;
+    }
+
+    private synchronized ADContextPool getSyncPool() {
+        if (syncPool == null) {
+            // not bounded: concurrent synchronizations, their workers and change notification searches hold
+            // their own context; contexts are validated again when borrowed by the next synchronization, so that
+            // a connection broken while synchronizing is not handed out to each following poll
+            syncPool = new ADContextPool(
+                    "sync",
+                    new SyncContextFactory(),
+                    0,
+                    config.getSyncPoolMaxIdle(),
+                    Integer.MAX_VALUE,
+                    -1,
+                    config.getContextPoolMinEvictableIdleTime(),
+                    SYNC_VALIDATION_IDLE_MILLIS);
+        }
+        return syncPool;
+    }
+
+    private synchronized ADContextPool getBindPool() {
+        if (bindPool == null) {
+            if (config.isFastBind() && fastBindSupported == null) {
+                fastBindSupported = isFastBindSupported();
+            }
+            final boolean fastBind = config.isFastBind() && fastBindSupported;
+
+            if (fastBind || config.getBindPoolMaxTotal() > 0) {
+                // with fast bind, dedicated connections are needed to serve all the authentications: unless
+                // explicitly sized, allow as many concurrent authentications as other concurrent operations
+                int maxTotal = config.getBindPoolMaxTotal();
+                if (fastBind && maxTotal <= 0) {
+                    maxTotal = Math.max(2, config.getContextPoolMaxTotal());
+                }
+
+                bindPool = new ADContextPool(
+                        fastBind ? "fast bind" : "bind",
+                        new BindContextFactory(fastBind),
+                        config.getBindPoolMinIdle(),
+                        config.getBindPoolMaxIdle(),
+                        maxTotal,
+                        config.getBindPoolMaxWait(),
+                        config.getBindPoolMinEvictableIdleTime());
+                bindPool.ensureMinIdle();
+            }
+        }
+        return bindPool;
+    }
+
+    private boolean isFastBindSupported() {
+        try {
+            final Attributes attrs = getInitialContext().getAttributes("", new String[] { SUPPORTED_CAPABILITIES });
+            final javax.naming.directory.Attribute capabilities = attrs.get(SUPPORTED_CAPABILITIES);
+
+            if (capabilities != null && capabilities.contains(FastBindRequest.OID)) {
+                return true;
+            }
+        } catch (NamingException e) {
+            LOG.error(e, "Could not read {0} from rootDSE", SUPPORTED_CAPABILITIES);
+        }
+
+        LOG.warn("Fast bind not supported by the server: falling back to standard bind");
+        return false;
+    }
+
+    @Override
+    public void close() {
+        try {
+            super.close();
+            synchronized (this) {
+                if (contextPool != null) {
+                    contextPool.close();
+                }
+                if (bindPool != null) {
+                    bindPool.close();
+                }
+                if (syncPool != null) {
+                    syncPool.close();
+                }
+                if (searchExecutor != null) {
+                    searchExecutor.shutdownNow();
+                }
+                quietClose(initCtx);
+            }
+        } finally {
+            schema.release();
+            contextPool = null;
+            bindPool = null;
+            syncPool = null;
+            fastBindSupported = null;
+            searchExecutor = null;
+            initCtx = null;
+        }
     }
 
     private static void quietClose(final LdapContext ctx) {
@@ -135,19 +622,36 @@ public class ADConnection extends LdapConnection {
 
     @Override
     public LdapContext getInitialContext() {
-        if (this.initCtx != null) {
-            return this.initCtx;
+        final BoundContext bound = boundContext.get();
+        if (bound != null) {
+            return bound.ctx;
+        }
+
+        return getSharedContext();
+    }
+
+    private synchronized LdapContext getSharedContext() {
+        if (this.initCtx == null) {
+            this.initCtx = newServiceContext();
         }
 
-        this.initCtx = connect(config.getPrincipal(), config.getCredentials());
+        return initCtx;
+    }
+
+    private LdapContext newServiceContext() {
+        final LdapContext ctx = connect(config.getPrincipal(), config.getCredentials());
 
         try {
-            initCtx.setRequestControls(new Control[] { new SDFlagsControl(0x00000004) });
+            ctx.setRequestControls(getDefaultRequestControls());
         } catch (NamingException e) {
             LOG.error(e, "Error initializing request controls");
         }
 
-        return initCtx;
+        return ctx;
+    }
+
+    private static Control[] getDefaultRequestControls() {
+        return new Control[] { new SDFlagsControl(0x00000004) };
     }
 
     private LdapContext connect(String principal, GuardedString credentials) {
@@ -235,19 +739,7 @@ public class ADConnection extends LdapConnection {
             }
 
         } catch (AuthenticationException e) {
-            // TODO: check AD response
-            String message = e.getMessage().toLowerCase();
-            if (message.contains("password expired")) { // Sun DS.
-                authnResult = new AuthenticationResult(
-                        AuthenticationResultType.PASSWORD_EXPIRED, e);
-            } else if (message.contains("password has expired")) { // RACF.
-                authnResult = new AuthenticationResult(
-                        AuthenticationResultType.PASSWORD_EXPIRED, e);
-            } else {
-                authnResult = new AuthenticationResult(
-                        AuthenticationResultType.FAILED, e);
-            }
-
+            authnResult = getAuthenticationFailure(e);
         } catch (NamingException e) {
             authnResult = new AuthenticationResult(
                     AuthenticationResultType.FAILED, e);
@@ -263,6 +755,21 @@ public class ADConnection extends LdapConnection {
         return new Pair<AuthenticationResult, LdapContext>(authnResult, context);
     }
 
+    private static AuthenticationResult getAuthenticationFailure(final AuthenticationException e) {
+        // TODO: check AD response
+        String message = e.getMessage().toLowerCase();
+        if (message.contains("password expired")) { // Sun DS.
+            return new AuthenticationResult(
+                    AuthenticationResultType.PASSWORD_EXPIRED, e);
+        } else if (message.contains("password has expired")) { // RACF.
+            return new AuthenticationResult(
+                    AuthenticationResultType.PASSWORD_EXPIRED, e);
+        } else {
+            return new AuthenticationResult(
+                    AuthenticationResultType.FAILED, e);
+        }
+    }
+
     private static boolean hasPasswordExpiredControl(final Control[] controls) {
         if (controls != null) {
             for (Control control : controls) {
@@ -295,11 +802,108 @@ public class ADConnection extends LdapConnection {
 
     @Override
     public void checkAlive() {
+        checkAlive(getInitialContext());
+    }
+
+    private static void checkAlive(final LdapContext ctx) {
         try {
-            final Attributes attrs = getInitialContext().getAttributes("", new String[] { "subschemaSubentry" });
+            final Attributes attrs = ctx.getAttributes("", new String[] { "subschemaSubentry" });
             attrs.get("subschemaSubentry");
         } catch (NamingException e) {
             throw new ConnectorException(e);
         }
     }
+
+    private class ServiceContextFactory implements ADContextPool.ContextFactory {
+
+        @Override
+        public LdapContext create() {
+            return newServiceContext();
+        }
+
+        @Override
+        public boolean validate(final LdapContext ctx) {
+            try {
+                checkAlive(ctx);
+                return true;
+            } catch (ConnectorException e) {
+                LOG.ok(e, "Pooled context validation failed");
+                return false;
+            }
+        }
+
+        @Override
+        public void passivate(final LdapContext ctx) throws NamingException {
+            ctx.setRequestControls(getDefaultRequestControls());
+        }
+    }
+
+    private class SyncContextFactory extends ServiceContextFactory {
+
+        @Override
+        public void passivate(final LdapContext ctx) throws NamingException {
+            // DirSync and other request controls are set on each borrow
+            ctx.setRequestControls(null);
+        }
+    }
+
+    private class BindContextFactory implements ADContextPool.ContextFactory {
+
+        private final boolean fastBind;
+
+        BindContextFactory(final boolean fastBind) {
+            this.fastBind = fastBind;
+        }
+
+        @Override
+        public LdapContext create() {
+            // pre-connected (and TLS negotiated) anonymous context, re-bound on each authentication
+            final LdapContext ctx = connect(null, null);
+
+            if (fastBind) {
+                try {
+                    ctx.extendedOperation(new FastBindRequest());
+                } catch (NamingException e) {
+                    LOG.warn(e, "Could not enable fast bind, standard bind will be performed on this connection");
+                }
+            }
+
+            return ctx;
+        }
+
+        @Override
+        public boolean validate(final LdapContext ctx) {
+            if (fastBind) {
+                // only binds are allowed on fast bind connections: stale ones are detected on failure
+                return true;
+            }
+
+            try {
+                checkAlive(ctx);
+                return true;
+            } catch (ConnectorException e) {
+                LOG.ok(e, "Pooled bind context validation failed");
+                return false;
+            }
+        }
+
+        @Override
+        public void passivate(final LdapContext ctx) throws NamingException {
+            // forget the authenticated user: next bind will be performed with the credentials provided then
+            ctx.removeFromEnvironment(Context.SECURITY_CREDENTIALS);
+            ctx.removeFromEnvironment(Context.SECURITY_PRINCIPAL);
+            ctx.addToEnvironment(Context.SECURITY_AUTHENTICATION, "none");
+        }
+    }
+
+    private static final class BoundContext {
+
+        private final LdapContext ctx;
+
+        private int depth = 0;
+
+        BoundContext(final LdapContext ctx) {
+            this.ctx = ctx;
+        }
+    }
 }
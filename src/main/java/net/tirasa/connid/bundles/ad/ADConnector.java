@@ -25,7 +25,10 @@ import net.tirasa.connid.bundles.ad.crud.ADCreate;
 import net.tirasa.connid.bundles.ad.crud.ADDelete;
 import net.tirasa.connid.bundles.ad.crud.ADUpdate;
 import net.tirasa.connid.bundles.ad.search.ADSearch;
+import net.tirasa.connid.bundles.ad.schema.ADSchema;
+import net.tirasa.connid.bundles.ad.sync.ADChangeNotificationSyncStrategy;
 import net.tirasa.connid.bundles.ad.sync.ADSyncStrategy;
+import net.tirasa.connid.bundles.ad.sync.ADUSNChangedSyncStrategy;
 import net.tirasa.connid.bundles.ldap.LdapConnector;
 import net.tirasa.connid.bundles.ldap.commons.LdapConstants;
 import net.tirasa.connid.bundles.ldap.search.LdapFilter;
@@ -108,12 +111,30 @@ public class ADConnector extends LdapConnector {
         // TODO: easier and more efficient if conn was protected in superclass
         conn = new ADConnection(config);
 
-        syncStrategy = new ADSyncStrategy(conn);
+        if (config.isUsnChangedSync()) {
+            syncStrategy = new ADUSNChangedSyncStrategy(conn);
+        } else if (config.isChangeNotificationSync()) {
+            syncStrategy = new ADChangeNotificationSyncStrategy(conn);
+        } else {
+            syncStrategy = new ADSyncStrategy(conn);
+        }
         super.init(cfg);
+
+        if (config.isSchemaWarmUp()) {
+            final ADSchema schema = conn.getADSchema();
+            conn.getSearchExecutor().submit(new Runnable() {
+
+                @Override
+                public void run() {
+                    schema.warmUp();
+                }
+            });
+        }
     }
 
     @Override
     public void dispose() {
+        syncStrategy.dispose();
         conn.close();
         super.dispose();
     }
@@ -0,0 +1,284 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.ad;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import javax.naming.NamingException;
+import javax.naming.ldap.LdapContext;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+/**
+ * Bounded pool of LDAP contexts.
+ * Idle contexts are validated before being handed out again (if idle for a while) and evicted when idle for too long.
+ */
+public class ADContextPool {
+
+    private static final Log LOG = Log.getLog(ADContextPool.class);
+
+    /**
+     * Default idle time after which a context is validated before being borrowed.
+     */
+    private static final long VALIDATION_IDLE_MILLIS = 30000L;
+
+    /**
+     * Creates, validates and resets the contexts managed by a pool.
+     */
+    public interface ContextFactory {
+
+        LdapContext create();
+
+        boolean validate(LdapContext ctx);
+
+        void passivate(LdapContext ctx) throws NamingException;
+    }
+
+    private static final class PooledContext {
+
+        private final LdapContext ctx;
+
+        private final long lastUsed;
+
+        PooledContext(final LdapContext ctx) {
+            this.ctx = ctx;
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    private final String name;
+
+    private final ContextFactory factory;
+
+    private final int minIdle;
+
+    private final int maxIdle;
+
+    private final long maxWait;
+
+    private final long minEvictableIdleTime;
+
+    private final long validationIdleTime;
+
+    private final Semaphore permits;
+
+    /**
+     * Idle contexts, most recently used first.
+     */
+    private final LinkedList<PooledContext> idle = new LinkedList<PooledContext>();
+
+    private boolean closed = false;
+
+    public ADContextPool(
+            final String name,
+            final ContextFactory factory,
+            final int minIdle,
+            final int maxIdle,
+            final int maxTotal,
+            final long maxWait,
+            final long minEvictableIdleTime) {
+
+        this(name, factory, minIdle, maxIdle, maxTotal, maxWait, minEvictableIdleTime, VALIDATION_IDLE_MILLIS);
+    }
+
+    public ADContextPool(
+            final String name,
+            final ContextFactory factory,
+            final int minIdle,
+            final int maxIdle,
+            final int maxTotal,
+            final long maxWait,
+            final long minEvictableIdleTime,
+            final long validationIdleTime) {
+
+        this.name = name;
+        this.factory = factory;
+        this.permits = new Semaphore(Math.max(1, maxTotal), true);
+        this.maxIdle = Math.max(0, Math.min(maxIdle, maxTotal));
+        this.minIdle = Math.max(0, Math.min(minIdle, this.maxIdle));
+        this.maxWait = maxWait;
+        this.minEvictableIdleTime = minEvictableIdleTime;
+        this.validationIdleTime = validationIdleTime;
+    }
+
+    /**
+     * Borrow a context from the pool, waiting at most the configured time for a context to be available.
+     *
+     * @return pooled context.
+     */
+    public LdapContext borrow() {
+        try {
+            if (!permits.tryAcquire(maxWait < 0 ? Long.MAX_VALUE : maxWait, TimeUnit.MILLISECONDS)) {
+                throw new ConnectorException(
+                        "Timeout waiting for an available LDAP context from pool '" + name + "'");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted while waiting for an LDAP context from pool '" + name + "'", e);
+        }
+
+        try {
+            PooledContext pooled = pollIdle();
+            while (pooled != null) {
+                if (System.currentTimeMillis() - pooled.lastUsed < validationIdleTime
+                        || factory.validate(pooled.ctx)) {
+
+                    return pooled.ctx;
+                }
+
+                LOG.ok("Discarding stale context from pool {0}", name);
+                quietClose(pooled.ctx);
+                pooled = pollIdle();
+            }
+
+            return factory.create();
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Give the provided context back to the pool.
+     *
+     * @param ctx context previously borrowed from this pool.
+     */
+    public void release(final LdapContext ctx) {
+        try {
+            boolean reusable;
+            try {
+                factory.passivate(ctx);
+                reusable = true;
+            } catch (NamingException e) {
+                LOG.warn(e, "Could not reset context, discarding it from pool {0}", name);
+                reusable = false;
+            }
+
+            boolean pooledBack = false;
+            synchronized (idle) {
+                if (reusable && !closed && idle.size() < maxIdle) {
+                    idle.addFirst(new PooledContext(ctx));
+                    pooledBack = true;
+                }
+            }
+
+            if (!pooledBack) {
+                quietClose(ctx);
+            }
+
+            evict();
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Discard the provided context, which must not be used anymore.
+     *
+     * @param ctx context previously borrowed from this pool.
+     */
+    public void invalidate(final LdapContext ctx) {
+        try {
+            quietClose(ctx);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Make sure that at least the configured minimum number of contexts is idle in the pool.
+     */
+    public void ensureMinIdle() {
+        while (true) {
+            synchronized (idle) {
+                if (closed || idle.size() >= minIdle) {
+                    return;
+                }
+            }
+
+            if (!permits.tryAcquire()) {
+                return;
+            }
+
+            try {
+                final LdapContext ctx = factory.create();
+                synchronized (idle) {
+                    if (closed) {
+                        quietClose(ctx);
+                        return;
+                    }
+                    idle.addLast(new PooledContext(ctx));
+                }
+            } finally {
+                permits.release();
+            }
+        }
+    }
+
+    public void close() {
+        synchronized (idle) {
+            closed = true;
+            for (PooledContext pooled : idle) {
+                quietClose(pooled.ctx);
+            }
+            idle.clear();
+        }
+    }
+
+    private PooledContext pollIdle() {
+        synchronized (idle) {
+            if (closed) {
+                throw new ConnectorException("Pool '" + name + "' has been closed");
+            }
+            return idle.pollFirst();
+        }
+    }
+
+    private void evict() {
+        if (minEvictableIdleTime <= 0) {
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+
+        synchronized (idle) {
+            // least recently used contexts are at the end of the list
+            final Iterator<PooledContext> iter = idle.descendingIterator();
+            while (iter.hasNext() && idle.size() > minIdle) {
+                final PooledContext pooled = iter.next();
+                if (now - pooled.lastUsed > minEvictableIdleTime) {
+                    LOG.ok("Evicting idle context from pool {0}", name);
+                    iter.remove();
+                    quietClose(pooled.ctx);
+                } else {
+                    break;
+                }
+            }
+        }
+    }
+
+    private static void quietClose(final LdapContext ctx) {
+        try {
+            if (ctx != null) {
+                ctx.close();
+            }
+        } catch (NamingException e) {
+            LOG.warn(e, "Failure closing context");
+        }
+    }
+}
@@ -15,27 +15,37 @@
  */
 package net.tirasa.connid.bundles.ad.authentication;
 
+import static net.tirasa.connid.bundles.ldap.commons.LdapUtil.isUnderContexts;
+import static net.tirasa.connid.bundles.ldap.commons.LdapUtil.quietCreateLdapName;
+
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import javax.naming.ldap.LdapName;
 import net.tirasa.connid.bundles.ad.ADConfiguration;
 import net.tirasa.connid.bundles.ad.ADConnection;
 import net.tirasa.connid.bundles.ldap.LdapConnection.AuthenticationResult;
 import net.tirasa.connid.bundles.ldap.LdapConnection.AuthenticationResultType;
 import net.tirasa.connid.bundles.ldap.commons.LdapConstants;
-import net.tirasa.connid.bundles.ldap.search.LdapSearches;
+import net.tirasa.connid.bundles.ldap.search.LdapFilter;
+import net.tirasa.connid.bundles.ldap.search.LdapFilterTranslator;
+import net.tirasa.connid.bundles.ldap.search.LdapSearch;
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.common.security.GuardedString;
 import org.identityconnectors.framework.common.exceptions.ConnectorSecurityException;
 import org.identityconnectors.framework.common.exceptions.InvalidCredentialException;
 import org.identityconnectors.framework.common.exceptions.PasswordExpiredException;
-import org.identityconnectors.framework.common.objects.Attribute;
 import org.identityconnectors.framework.common.objects.AttributeBuilder;
 import org.identityconnectors.framework.common.objects.ConnectorObject;
 import org.identityconnectors.framework.common.objects.ObjectClass;
 import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
 import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.common.objects.filter.Filter;
+import org.identityconnectors.framework.common.objects.filter.FilterBuilder;
 
 public class ADAuthenticate {
 
@@ -61,13 +71,23 @@ public class ADAuthenticate {
     }
 
     public Uid authenticate(GuardedString password) {
-        final ConnectorObject authnObject = getObjectToAuthenticate();
+        ResolvedEntry authnEntry = getEntryToAuthenticate();
 
         AuthenticationResult authnResult = null;
 
-        if (authnObject != null) {
-            final String entryDN = authnObject.getName().getNameValue();
-            authnResult = conn.authenticate(entryDN, password);
+        if (authnEntry.isResolved()) {
+            authnResult = conn.authenticate(authnEntry.getEntryDN(), password);
+
+            // AD reports unknown DNs as invalid credentials: the cached resolution might be stale
+            if (!isSuccess(authnResult) && authnEntry.isCached()) {
+                final String entryDN = authnEntry.getEntryDN();
+                evict();
+
+                authnEntry = getEntryToAuthenticate();
+                if (authnEntry.isResolved() && !entryDN.equalsIgnoreCase(authnEntry.getEntryDN())) {
+                    authnResult = conn.authenticate(authnEntry.getEntryDN(), password);
+                }
+            }
         }
 
         if (!isSuccess(authnResult)) {
@@ -78,45 +98,120 @@ public class ADAuthenticate {
         try {
             authnResult.propagate();
         } catch (PasswordExpiredException e) {
-            e.initUid(authnObject.getUid());
+            e.initUid(authnEntry.getUid());
             throw e;
         }
 
         // AuthenticationResult did not throw an exception, 
         // so this authentication was successful.
-        return authnObject.getUid();
+        return authnEntry.getUid();
     }
 
     private static boolean isSuccess(final AuthenticationResult authResult) {
         // PASSWORD_EXPIRED considered success: credentials were right.
-        final AuthenticationResultType type = authResult.getType();
-
         return authResult != null
-                && (type.equals(AuthenticationResultType.SUCCESS)
-                || type.equals(AuthenticationResultType.PASSWORD_EXPIRED));
+                && (authResult.getType().equals(AuthenticationResultType.SUCCESS)
+                || authResult.getType().equals(AuthenticationResultType.PASSWORD_EXPIRED));
+    }
+
+    /**
+     * Resolve the username, possibly via the connector's username cache.
+     *
+     * @return resolution of the username, never null.
+     */
+    private ResolvedEntry getEntryToAuthenticate() {
+        final UsernameCache cache = conn.getUsernameCache();
+        if (cache == null) {
+            return resolve(getObjectToAuthenticate());
+        }
+
+        final String key = UsernameCache.key(oclass, username, getUserNameAttributes());
+
+        final UsernameCache.Resolution cached = cache.get(key);
+        if (cached != null) {
+            return new ResolvedEntry(cached.getEntryDN(), cached.getUid(), true);
+        }
+
+        final ConnectorObject authnObject = getObjectToAuthenticate();
+        if (authnObject == null) {
+            cache.putUnresolved(key);
+        } else {
+            cache.putResolved(key, authnObject.getName().getNameValue(), authnObject.getUid());
+        }
+        return resolve(authnObject);
+    }
+
+    private void evict() {
+        final UsernameCache cache = conn.getUsernameCache();
+        if (cache != null) {
+            cache.invalidate(UsernameCache.key(oclass, username, getUserNameAttributes()));
+        }
+    }
+
+    private static ResolvedEntry resolve(final ConnectorObject object) {
+        return object == null
+                ? new ResolvedEntry(null, null, false)
+                : new ResolvedEntry(object.getName().getNameValue(), object.getUid(), false);
     }
 
     private ConnectorObject getObjectToAuthenticate() {
-        List<String> userNameAttrs = getUserNameAttributes();
-        Map<String, ConnectorObject> entryDN2Object = new HashMap<String, ConnectorObject>();
+        // a single filter matching the username against any of the username attributes
+        Filter filter = null;
+        for (String userNameAttr : getUserNameAttributes()) {
+            final Filter equals = FilterBuilder.equalTo(AttributeBuilder.build(userNameAttr, username));
+            filter = filter == null ? equals : FilterBuilder.or(filter, equals);
+        }
+        if (filter == null) {
+            return null;
+        }
+
+        final ADConfiguration conf = (ADConfiguration) conn.getConfiguration();
+
+        final List<LdapName> userBaseContexts = new ArrayList<LdapName>();
+        for (String baseContext : conf.getUserBaseContexts()) {
+            userBaseContexts.add(quietCreateLdapName(baseContext));
+        }
+
+        // search once from the common ancestor, if any, instead of once per user base context
+        final LdapName ancestor = getCommonAncestor(userBaseContexts, conf.getBaseContexts());
+        final String[] searchBaseContexts = ancestor == null
+                ? conf.getUserBaseContexts()
+                : new String[] { ancestor.toString() };
+
+        if (LOG.isOk()) {
+            LOG.ok("Searching {0} from {1}", username, Arrays.asList(searchBaseContexts));
+        }
+
+        final Map<String, ConnectorObject> entryDN2Object = new HashMap<String, ConnectorObject>();
+
+        final ResultsHandler handler = new ResultsHandler() {
 
-        for (String baseContext : ((ADConfiguration) conn.getConfiguration()).getUserBaseContexts()) {
-            for (String userNameAttr : userNameAttrs) {
-                Attribute attr = AttributeBuilder.build(userNameAttr, username);
+            @Override
+            public boolean handle(final ConnectorObject object) {
+                final String entryDN = object.getAttributeByName("entryDN").getValue().get(0).toString();
 
-                for (ConnectorObject object : LdapSearches.findObjects(conn, oclass, baseContext, attr, "entryDN")) {
-                    String entryDN = object.getAttributeByName("entryDN").getValue().get(0).toString();
+                if (ancestor == null || isUnderContexts(quietCreateLdapName(entryDN), userBaseContexts)) {
                     entryDN2Object.put(entryDN, object);
                 }
 
                 // If we found more than one authentication candidates, no need to continue
-                if (entryDN2Object.size() > 1) {
-                    throw new ConnectorSecurityException(conn.format(
-                            "moreThanOneEntryMatched", null, username));
-                }
+                return entryDN2Object.size() <= 1;
+            }
+        };
+
+        final OperationOptions searchOptions = new OperationOptionsBuilder().setAttributesToGet("entryDN").build();
+
+        for (LdapFilter ldapFilter : new LdapFilterTranslator(conn.getSchemaMapping(), oclass).translate(filter)) {
+            if (entryDN2Object.size() <= 1) {
+                new LdapSearch(conn, oclass, ldapFilter, handler, searchOptions, searchBaseContexts).execute();
             }
         }
 
+        if (entryDN2Object.size() > 1) {
+            throw new ConnectorSecurityException(conn.format(
+                    "moreThanOneEntryMatched", null, username));
+        }
+
         if (!entryDN2Object.isEmpty()) {
             return entryDN2Object.values().iterator().next();
         }
@@ -124,6 +219,38 @@ public class ADAuthenticate {
         return null;
     }
 
+    /**
+     * Find the closest common ancestor of the given user base contexts, provided that they are more than one and that
+     * such ancestor lies within one of the configured root suffixes.
+     *
+     * @param userBaseContexts user base contexts
+     * @param rootSuffixes configured root suffixes
+     * @return common ancestor or null, if a search per user base context is needed
+     */
+    private static LdapName getCommonAncestor(final List<LdapName> userBaseContexts, final String[] rootSuffixes) {
+        if (userBaseContexts.size() < 2) {
+            return null;
+        }
+
+        LdapName ancestor = userBaseContexts.get(0);
+        for (LdapName context : userBaseContexts) {
+            int common = 0;
+            while (common < ancestor.size() && common < context.size()
+                    && ancestor.getRdn(common).equals(context.getRdn(common))) {
+
+                common++;
+            }
+            ancestor = (LdapName) ancestor.getPrefix(common);
+        }
+
+        final List<LdapName> suffixes = new ArrayList<LdapName>();
+        for (String suffix : rootSuffixes) {
+            suffixes.add(quietCreateLdapName(suffix));
+        }
+
+        return ancestor.isEmpty() || !isUnderContexts(ancestor, suffixes) ? null : ancestor;
+    }
+
     private List<String> getUserNameAttributes() {
         String[] result = LdapConstants.getLdapUidAttributes(options);
         if (result != null && result.length > 0) {
@@ -133,11 +260,42 @@ public class ADAuthenticate {
     }
 
     public Uid resolveUsername() {
-        ConnectorObject authnObject = getObjectToAuthenticate();
-        if (authnObject == null) {
+        final ResolvedEntry authnEntry = getEntryToAuthenticate();
+        if (!authnEntry.isResolved()) {
             throw new InvalidCredentialException(conn.format(
                     "cannotResolveUsername", null, username));
         }
-        return authnObject.getUid();
+        return authnEntry.getUid();
+    }
+
+    private static final class ResolvedEntry {
+
+        private final String entryDN;
+
+        private final Uid uid;
+
+        private final boolean cached;
+
+        ResolvedEntry(final String entryDN, final Uid uid, final boolean cached) {
+            this.entryDN = entryDN;
+            this.uid = uid;
+            this.cached = cached;
+        }
+
+        public String getEntryDN() {
+            return entryDN;
+        }
+
+        public Uid getUid() {
+            return uid;
+        }
+
+        public boolean isResolved() {
+            return entryDN != null;
+        }
+
+        public boolean isCached() {
+            return cached;
+        }
     }
 }
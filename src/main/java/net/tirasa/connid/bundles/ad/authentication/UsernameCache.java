@@ -0,0 +1,196 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.ad.authentication;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.Uid;
+
+/**
+ * Bounded, time-limited cache of username to entry DN / Uid resolutions.
+ * Usernames not matching any entry are cached as well, for a (usually shorter) dedicated time.
+ */
+public class UsernameCache {
+
+    private static final Log LOG = Log.getLog(UsernameCache.class);
+
+    /**
+     * Number of lookups between two statistics reports.
+     */
+    private static final int STATS_INTERVAL = 1000;
+
+    /**
+     * Resolution of a username: entry DN and Uid are both null when the username does not match any entry.
+     */
+    public static final class Resolution {
+
+        private final String entryDN;
+
+        private final Uid uid;
+
+        private final long expiration;
+
+        Resolution(final String entryDN, final Uid uid, final long expiration) {
+            this.entryDN = entryDN;
+            this.uid = uid;
+            this.expiration = expiration;
+        }
+
+        public String getEntryDN() {
+            return entryDN;
+        }
+
+        public Uid getUid() {
+            return uid;
+        }
+
+        public boolean isResolved() {
+            return entryDN != null;
+        }
+    }
+
+    private final int maxSize;
+
+    private final long timeToLive;
+
+    private final long negativeTimeToLive;
+
+    private final Map<String, Resolution> entries;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    private long evictions = 0;
+
+    public UsernameCache(final int maxSize, final long timeToLive, final long negativeTimeToLive) {
+        this.maxSize = maxSize;
+        this.timeToLive = timeToLive;
+        this.negativeTimeToLive = negativeTimeToLive;
+
+        // access order: the eldest entry is the least recently used one
+        this.entries = new LinkedHashMap<String, Resolution>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = -2473398204541239047L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Resolution> eldest) {
+                final boolean evict = size() > UsernameCache.this.maxSize;
+                if (evict) {
+                    evictions++;
+                }
+                return evict;
+            }
+        };
+    }
+
+    public static String key(final ObjectClass oclass, final String username, final List<String> userNameAttrs) {
+        final StringBuilder key = new StringBuilder(oclass.getObjectClassValue()).append('|');
+        for (String userNameAttr : userNameAttrs) {
+            key.append(userNameAttr.toLowerCase()).append(',');
+        }
+        return key.append('|').append(username.toLowerCase()).toString();
+    }
+
+    /**
+     * Get the cached resolution for the given key.
+     *
+     * @param key cache key, as returned by {@link #key(ObjectClass, String, List)}.
+     * @return cached resolution, or null if not available or expired.
+     */
+    public synchronized Resolution get(final String key) {
+        Resolution entry = entries.get(key);
+        if (entry != null && entry.expiration < System.currentTimeMillis()) {
+            entries.remove(key);
+            entry = null;
+        }
+
+        if (entry == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+
+        if ((hits + misses) % STATS_INTERVAL == 0) {
+            LOG.ok("Username cache: {0} hits, {1} misses, {2} evictions, {3} entries",
+                    hits, misses, evictions, entries.size());
+        }
+
+        return entry;
+    }
+
+    public synchronized void putResolved(final String key, final String entryDN, final Uid uid) {
+        if (timeToLive > 0) {
+            entries.put(key, new Resolution(entryDN, uid, System.currentTimeMillis() + timeToLive));
+        }
+    }
+
+    public synchronized void putUnresolved(final String key) {
+        if (negativeTimeToLive > 0) {
+            entries.put(key, new Resolution(null, null, System.currentTimeMillis() + negativeTimeToLive));
+        }
+    }
+
+    public synchronized void invalidate(final String key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Remove all the resolutions pointing to an entry with the given Uid value or DN, as well as all the unresolved
+     * usernames, which might match an entry from now on.
+     *
+     * @param values Uid values or entry DNs of changed entries.
+     */
+    public synchronized void invalidateEntries(final String... values) {
+        for (Iterator<Resolution> iter = entries.values().iterator(); iter.hasNext();) {
+            final Resolution entry = iter.next();
+
+            boolean remove = !entry.isResolved();
+            for (int i = 0; !remove && i < values.length; i++) {
+                remove = values[i].equalsIgnoreCase(entry.getEntryDN())
+                        || values[i].equalsIgnoreCase(entry.getUid().getUidValue());
+            }
+
+            if (remove) {
+                iter.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
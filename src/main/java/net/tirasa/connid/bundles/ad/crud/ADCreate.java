@@ -23,8 +23,11 @@ import static net.tirasa.connid.bundles.ldap.commons.LdapUtil.checkedListByFilte
 import static org.identityconnectors.common.CollectionUtil.isEmpty;
 import static org.identityconnectors.common.CollectionUtil.nullAsEmpty;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import javax.naming.NamingException;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.BasicAttribute;
@@ -77,10 +80,16 @@ public class ADCreate extends LdapModifyOperation {
     }
 
     public Uid create() {
+        conn.acquireContext();
         try {
-            return executeImpl();
+            final Uid uid = executeImpl();
+            // usernames not matching any entry so far might match the new one
+            conn.invalidateCachedUsernames();
+            return uid;
         } catch (NamingException e) {
             throw new ConnectorException(e);
+        } finally {
+            conn.releaseContext();
         }
     }
 
@@ -257,30 +266,37 @@ public class ADCreate extends LdapModifyOperation {
 
         final String entryDN = conn.getSchemaMapping().create(oclass, name, adAttrs);
 
+        if (!isEmpty(ldapGroups)) {
+            addLdapGroupMemberships(entryDN, ldapGroups);
+        }
+
+        // ntSecurityDescriptor and primaryGroupID are changed at once, after memberships: the primary group must be
+        // one of the groups the entry is member of
+        final List<ModificationItem> mods = new ArrayList<ModificationItem>();
+
         if (uccp != null) {
             // ---------------------------------
             // Change ntSecurityDescriptor
             // ---------------------------------
-            conn.getInitialContext().modifyAttributes(entryDN, new ModificationItem[] {
-                new ModificationItem(DirContext.REPLACE_ATTRIBUTE, utils.userCannotChangePassword(entryDN, uccp)) });
+            mods.add(new ModificationItem(
+                    DirContext.REPLACE_ATTRIBUTE, utils.userCannotChangePassword(entryDN, uccp)));
 
             // ---------------------------------
         }
 
-        if (!isEmpty(ldapGroups)) {
-            groupHelper.addLdapGroupMemberships(entryDN, ldapGroups);
-        }
-
         if (StringUtil.isNotBlank(primaryGroupDN)) {
             // ---------------------------------
             // Change primaryGroupID
             // ---------------------------------
-            conn.getInitialContext().modifyAttributes(entryDN, new ModificationItem[] {
-                new ModificationItem(DirContext.REPLACE_ATTRIBUTE, utils.getGroupID(primaryGroupDN)) });
+            mods.add(new ModificationItem(DirContext.REPLACE_ATTRIBUTE, utils.getGroupID(primaryGroupDN)));
 
             // ---------------------------------
         }
 
+        if (!mods.isEmpty()) {
+            conn.getInitialContext().modifyAttributes(entryDN, mods.toArray(new ModificationItem[mods.size()]));
+        }
+
         if (OBJECTGUID.equals(conn.getSchemaMapping().getLdapUidAttribute(oclass))) {
             final Attributes profile = conn.getInitialContext().getAttributes(entryDN, new String[] { OBJECTGUID });
             return new Uid(GUID.getGuidAsString((byte[]) profile.get(OBJECTGUID).get()));
@@ -288,4 +304,76 @@ public class ADCreate extends LdapModifyOperation {
             return conn.getSchemaMapping().createUid(oclass, entryDN);
         }
     }
+
+    /**
+     * Add the entry to the given groups; when contexts are pooled, groups are split among concurrent tasks, each
+     * working on its own pooled context, leaving one context of the pool to the current thread.
+     *
+     * @param entryDN entry DN.
+     * @param ldapGroups group DNs.
+     */
+    private void addLdapGroupMemberships(final String entryDN, final List<String> ldapGroups) {
+        final int tasks = Math.min(
+                ldapGroups.size(),
+                ADConfiguration.class.cast(conn.getConfiguration()).getContextPoolMaxTotal() - 1);
+        if (tasks < 2) {
+            groupHelper.addLdapGroupMemberships(entryDN, ldapGroups);
+            return;
+        }
+
+        final List<List<String>> batches = new ArrayList<List<String>>(tasks);
+        for (int i = 0; i < tasks; i++) {
+            batches.add(new ArrayList<String>());
+        }
+        for (int i = 0; i < ldapGroups.size(); i++) {
+            batches.get(i % tasks).add(ldapGroups.get(i));
+        }
+
+        final List<Future<?>> futures = new ArrayList<Future<?>>(tasks);
+        for (final List<String> batch : batches) {
+            futures.add(conn.getSearchExecutor().submit(new Runnable() {
+
+                @Override
+                public void run() {
+                    conn.acquireContext();
+                    try {
+                        groupHelper.addLdapGroupMemberships(entryDN, batch);
+                    } finally {
+                        conn.releaseContext();
+                    }
+                }
+            }));
+        }
+
+        // wait for all tasks, not to leave memberships being added behind
+        RuntimeException failure = null;
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof RuntimeException
+                                ? (RuntimeException) e.getCause()
+                                : new ConnectorException(e.getCause());
+                    }
+                    break;
+                }
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+            if (failure == null) {
+                failure = new ConnectorException("Interrupted while adding group memberships");
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
 }
@@ -44,6 +44,19 @@ public class ADDelete extends LdapModifyOperation {
     }
 
     public void delete() {
+        conn.acquireContext();
+        try {
+            doDelete();
+            conn.invalidateCachedUsernames(uid.getUidValue());
+            if (ObjectClass.GROUP.equals(oclass)) {
+                conn.invalidateGroupDN(null);
+            }
+        } finally {
+            conn.releaseContext();
+        }
+    }
+
+    private void doDelete() {
         final String entryDN;
         if (OBJECTGUID.equals(conn.getSchemaMapping().getLdapUidAttribute(oclass))) {
             entryDN = String.format("<GUID=%s>", uid.getUidValue());
@@ -38,11 +38,9 @@ import javax.naming.directory.BasicAttribute;
 import javax.naming.directory.BasicAttributes;
 import javax.naming.directory.DirContext;
 import javax.naming.directory.ModificationItem;
-import javax.naming.directory.SearchResult;
 import javax.naming.ldap.LdapName;
 import javax.naming.ldap.Rdn;
 import net.tirasa.adsddl.ntsd.SID;
-import net.tirasa.adsddl.ntsd.utils.Hex;
 import net.tirasa.adsddl.ntsd.utils.NumberFacility;
 import net.tirasa.connid.bundles.ad.ADConfiguration;
 import net.tirasa.connid.bundles.ad.ADConnection;
@@ -142,6 +140,21 @@ public class ADUpdate extends LdapModifyOperation {
     }
 
     public Uid update(final Set<Attribute> attrs) {
+        conn.acquireContext();
+        try {
+            final Uid updated = doUpdate(attrs);
+            conn.invalidateCachedUsernames(uid.getUidValue());
+            if (ObjectClass.GROUP.equals(oclass)) {
+                // the group might have been renamed
+                conn.invalidateGroupDN(null);
+            }
+            return updated;
+        } finally {
+            conn.releaseContext();
+        }
+    }
+
+    private Uid doUpdate(final Set<Attribute> attrs) {
         final ConnectorObject obj = utils.getEntryToBeUpdated(uid, oclass);
         String entryDN = obj.getName().getNameValue();
 
@@ -181,32 +194,44 @@ public class ADUpdate extends LdapModifyOperation {
     }
 
     public Uid addAttributeValues(final Set<Attribute> attrs) {
-        final ConnectorObject obj = utils.getEntryToBeUpdated(uid, oclass);
-        final String entryDN = obj.getName().getNameValue();
+        conn.acquireContext();
+        try {
+            final ConnectorObject obj = utils.getEntryToBeUpdated(uid, oclass);
+            final String entryDN = obj.getName().getNameValue();
 
-        final Pair<Attributes, ADGuardedPasswordAttribute> attrsToModify = getAttributesToModify(obj, attrs);
+            final Pair<Attributes, ADGuardedPasswordAttribute> attrsToModify = getAttributesToModify(obj, attrs);
 
-        modifyAttributes(entryDN, attrsToModify, DirContext.ADD_ATTRIBUTE);
-        modifyMemberships(entryDN, attrs);
-        modifyPrimaryGroupID(entryDN, attrs);
+            modifyAttributes(entryDN, attrsToModify, DirContext.ADD_ATTRIBUTE);
+            modifyMemberships(entryDN, attrs);
+            modifyPrimaryGroupID(entryDN, attrs);
 
-        return uid;
+            conn.invalidateCachedUsernames(uid.getUidValue());
+            return uid;
+        } finally {
+            conn.releaseContext();
+        }
     }
 
     public Uid removeAttributeValues(final Set<Attribute> attrs) {
-        final ConnectorObject obj = utils.getEntryToBeUpdated(uid, oclass);
-        final String entryDN = obj.getName().getNameValue();
+        conn.acquireContext();
+        try {
+            final ConnectorObject obj = utils.getEntryToBeUpdated(uid, oclass);
+            final String entryDN = obj.getName().getNameValue();
 
-        final Pair<Attributes, ADGuardedPasswordAttribute> attrsToModify = getAttributesToModify(obj, attrs);
+            final Pair<Attributes, ADGuardedPasswordAttribute> attrsToModify = getAttributesToModify(obj, attrs);
 
-        modifyAttributes(entryDN, attrsToModify, DirContext.REMOVE_ATTRIBUTE);
+            modifyAttributes(entryDN, attrsToModify, DirContext.REMOVE_ATTRIBUTE);
 
-        List<String> ldapGroups = getStringListValue(attrs, LdapConstants.LDAP_GROUPS_NAME);
-        if (!isEmpty(ldapGroups)) {
-            groupHelper.removeLdapGroupMemberships(entryDN, ldapGroups);
-        }
+            List<String> ldapGroups = getStringListValue(attrs, LdapConstants.LDAP_GROUPS_NAME);
+            if (!isEmpty(ldapGroups)) {
+                groupHelper.removeLdapGroupMemberships(entryDN, ldapGroups);
+            }
 
-        return uid;
+            conn.invalidateCachedUsernames(uid.getUidValue());
+            return uid;
+        } finally {
+            conn.releaseContext();
+        }
     }
 
     private Pair<Attributes, ADGuardedPasswordAttribute> getAttributesToModify(
@@ -449,14 +474,11 @@ public class ADUpdate extends LdapModifyOperation {
                             SID.parse((byte[]) objectsid.get()),
                             NumberFacility.getUIntBytes(Long.parseLong(primaryGroupID.get().toString())));
 
-                    final Set<SearchResult> res = utils.basicLdapSearch(String.format(
-                            "(&(objectclass=group)(%s=%s))", OBJECTSID, Hex.getEscaped(groupSID.toByteArray())),
-                            ((ADConfiguration) conn.getConfiguration()).getBaseContextsToSynchronize());
-
-                    if (res == null || res.isEmpty()) {
+                    primaryGroup = utils.getGroupDN(
+                            groupSID, ((ADConfiguration) conn.getConfiguration()).getBaseContextsToSynchronize());
+                    if (primaryGroup == null) {
                         LOG.warn("Error retrieving primary group for {0}", entryDN);
                     } else {
-                        primaryGroup = res.iterator().next().getNameInNamespace();
                         LOG.info("Found primary group {0}", primaryGroup);
                     }
                 }
@@ -15,24 +15,93 @@
  */
 package net.tirasa.connid.bundles.ad.schema;
 
+import net.tirasa.connid.bundles.ad.ADConfiguration;
 import net.tirasa.connid.bundles.ad.ADConnection;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.ObjectClass;
 import org.identityconnectors.framework.common.objects.Schema;
 
+/**
+ * Connector schema, shared via {@link ADSchemaRegistry} with the other connector instances configured for the same
+ * directory.
+ * Object classes are built one at a time, optionally ahead of the first {@link #getSchema()} via {@link #warmUp()}.
+ */
 public class ADSchema {
 
+    private static final Log LOG = Log.getLog(ADSchema.class);
+
+    private static final ObjectClass[] WARM_UP_ORDER = { ObjectClass.ACCOUNT, ObjectClass.GROUP, ObjectClass.ALL };
+
     private final ADConnection connection;
 
-    private Schema schema;
+    private ADSchemaRegistry.Entry entry;
+
+    private boolean released = false;
 
     public ADSchema(final ADConnection connection) {
         this.connection = connection;
     }
 
+    /**
+     * @return the registry entry for this connection, acquired on first use.
+     * @throws IllegalStateException if the entry was already given back via {@link #release()}.
+     */
+    public synchronized ADSchemaRegistry.Entry getEntry() {
+        if (released) {
+            // acquiring again would never be given back
+            throw new IllegalStateException("Schema of a closed connection");
+        }
+        if (entry == null) {
+            entry = ADSchemaRegistry.getInstance().acquire((ADConfiguration) connection.getConfiguration());
+        }
+        return entry;
+    }
+
     public Schema getSchema() {
-        if (schema == null) {
-            schema = new ADSchemaBuilder(connection).getSchema();
+        return getEntry().getBuilder().getSchema(connection);
+    }
+
+    /**
+     * Build users, groups and then all other objects schema information ahead of first use; meant to be run in
+     * background, stops as soon as this connection is released.
+     */
+    public void warmUp() {
+        for (ObjectClass oclass : WARM_UP_ORDER) {
+            final ADSchemaRegistry.Entry current;
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                current = getEntry();
+            }
+
+            try {
+                current.getBuilder().getObjectClassInfo(connection, oclass.getObjectClassValue());
+            } catch (ConnectorException e) {
+                LOG.error(e, "Schema warm-up failed for {0}", oclass);
+                return;
+            }
         }
+        LOG.ok("Schema warm-up completed");
+    }
+
+    /**
+     * Discard the schema information shared with other connector instances: it will be discovered again when next
+     * needed.
+     */
+    public void refresh() {
+        getEntry().refresh();
+    }
 
-        return schema;
+    /**
+     * Give back the registry entry for this connection.
+     */
+    public synchronized void release() {
+        released = true;
+        if (entry != null) {
+            ADSchemaRegistry.getInstance().release(entry);
+            entry = null;
+        }
     }
 }
@@ -17,24 +17,33 @@ package net.tirasa.connid.bundles.ad.schema;
 
 import static net.tirasa.connid.bundles.ad.ADConnector.OBJECTGUID;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
 import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
 import net.tirasa.connid.bundles.ad.ADConfiguration;
 import net.tirasa.connid.bundles.ad.ADConnection;
 import net.tirasa.connid.bundles.ad.ADConnector;
 import net.tirasa.connid.bundles.ldap.search.LdapInternalSearch;
 import org.identityconnectors.common.StringUtil;
 import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
 import org.identityconnectors.framework.common.objects.AttributeInfo;
 import org.identityconnectors.framework.common.objects.AttributeInfo.Flags;
 import org.identityconnectors.framework.common.objects.AttributeInfoBuilder;
@@ -44,13 +53,30 @@ import org.identityconnectors.framework.common.objects.ObjectClassInfoBuilder;
 import org.identityconnectors.framework.common.objects.Schema;
 import org.identityconnectors.framework.common.objects.SchemaBuilder;
 
+/**
+ * Builds the connector schema out of the Active Directory schema, read in bulk: all <tt>classSchema</tt> entries
+ * with a paged search, then the <tt>attributeSchema</tt> entries of the attributes in use, by OR filter chunks.
+ * Class hierarchies (super and auxiliary classes) are resolved in memory.
+ * Each object class is built on first request, reading only the attribute definitions it needs and not read yet; the
+ * {@link Schema} is assembled on demand out of the object classes built so far.
+ */
 class ADSchemaBuilder {
 
     private static final Log LOG = Log.getLog(ADSchemaBuilder.class);
 
-    private final ADConnection connection;
+    private static final String LDAP_DISPLAY_NAME = "lDAPDisplayName";
+
+    private static final String IS_SINGLE_VALUE = "isSingleValued";
+
+    private static final String SYSTEM_ONLY = "systemOnly";
+
+    private static final String SCHEMA_NAMING_CONTEXT = "schemaNamingContext";
 
-    private Schema schema;
+    private static final String ROOT_DOMAIN_NAMING_CONTEXT = "rootDomainNamingContext";
+
+    private static final String CURRENT_TIME = "currentTime";
+
+    private static final String OBJECT_VERSION = "objectVersion";
 
     private static final String[] ATTRIBUTES_TO_GET = {
         "maycontain",
@@ -58,56 +84,175 @@ class ADSchemaBuilder {
         "mustcontain",
         "systemmustcontain" };
 
-    public ADSchemaBuilder(final ADConnection connection) {
-        this.connection = connection;
+    private static final String[] SUPERCLASSES_TO_GET = {
+        "subClassOf",
+        "auxiliaryClass",
+        "systemAuxiliaryClass" };
+
+    /**
+     * Maximum number of attribute names in a single <tt>attributeSchema</tt> query.
+     */
+    private static final int ATTRIBUTES_PER_QUERY = 200;
+
+    private interface ResultHandler {
+
+        void handle(SearchResult result) throws NamingException;
     }
 
-    public Schema getSchema() {
-        if (schema == null) {
-            buildSchema();
+    private static final String[] OBJECT_CLASSES = {
+        ObjectClass.ACCOUNT_NAME, ObjectClass.GROUP_NAME, ObjectClass.ALL_NAME };
+
+    /**
+     * Object class information built so far, by object class name.
+     */
+    private final Map<String, ObjectClassInfo> objectClassInfos = new ConcurrentHashMap<String, ObjectClassInfo>();
+
+    /**
+     * Names of the attributes looked up but not found in the schema.
+     */
+    private final Set<String> unknownAttributes = new HashSet<String>();
+
+    private ADSchemaDefinitions definitions;
+
+    private List<String> schemaContexts;
+
+    private ADSchemaCache cache;
+
+    private String objectVersion;
+
+    private String readAt;
+
+    /**
+     * Assemble the connector schema, building the information of each object class not built yet.
+     *
+     * @param connection connection to read the schema through.
+     * @return connector schema.
+     */
+    public Schema getSchema(final ADConnection connection) {
+        final SchemaBuilder schemaBld = new SchemaBuilder(ADConnector.class);
+        for (String oname : OBJECT_CLASSES) {
+            schemaBld.defineObjectClass(getObjectClassInfo(connection, oname));
         }
-        return schema;
+        return schemaBld.build();
     }
 
-    private void buildSchema() {
-        final SchemaBuilder schemaBld = new SchemaBuilder(ADConnector.class);
-        build(ObjectClass.ACCOUNT_NAME, schemaBld);
-        build(ObjectClass.GROUP_NAME, schemaBld);
-        build(ObjectClass.ALL_NAME, schemaBld);
-        schema = schemaBld.build();
+    /**
+     * Get the information of the given object class, reading from the schema only the class and attribute
+     * definitions not read yet.
+     *
+     * @param connection connection to read the schema through.
+     * @param oname object class name.
+     * @return object class information.
+     */
+    public ObjectClassInfo getObjectClassInfo(final ADConnection connection, final String oname) {
+        ObjectClassInfo oci = objectClassInfos.get(oname);
+        if (oci == null) {
+            synchronized (this) {
+                oci = objectClassInfos.get(oname);
+                if (oci == null) {
+                    oci = buildObjectClassInfo(connection, oname);
+                    objectClassInfos.put(oname, oci);
+                }
+            }
+        }
+        return oci;
     }
 
-    private void build(final String oname, final SchemaBuilder schemaBld) {
+    private ObjectClassInfo buildObjectClassInfo(final ADConnection connection, final String oname) {
         final ADConfiguration conf = (ADConfiguration) connection.getConfiguration();
 
-        final StringBuilder filter = new StringBuilder();
+        final Set<String> schemaNames;
+        final LdapContext ctx = newContext(connection);
+        try {
+            if (definitions == null) {
+                readClasses(connection, ctx, conf);
+            }
 
-        // -----------------------------------
-        // Create search control
-        // -----------------------------------
-        final SearchControls searchCtls = LdapInternalSearch.createDefaultSearchControls();
+            schemaNames = getSchemaNames(oname, conf);
 
-        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+            final Set<String> pending = new HashSet<String>();
+            for (String name : schemaNames) {
+                if (definitions.getAttribute(name) == null
+                        && !unknownAttributes.contains(name.toLowerCase(Locale.ENGLISH))) {
 
-        searchCtls.setReturningAttributes(ATTRIBUTES_TO_GET);
-        // -----------------------------------
+                    pending.add(name);
+                }
+            }
 
-        // -----------------------------------
-        // Specify filter
-        // -----------------------------------
-        for (String oclass : oname.equalsIgnoreCase(ObjectClass.ACCOUNT_NAME)
-                ? conf.getAccountObjectClasses()
-                : oname.equalsIgnoreCase(ObjectClass.GROUP_NAME)
-                ? conf.getGroupObjectClasses()
-                : new String[] { oname }) {
-            filter.append("(lDAPDisplayName=").append(oclass).append(")");
+            if (!pending.isEmpty()) {
+                readAttributes(connection, ctx, pending);
+
+                for (String name : pending) {
+                    if (definitions.getAttribute(name) == null) {
+                        unknownAttributes.add(name.toLowerCase(Locale.ENGLISH));
+                    }
+                }
+
+                if (cache != null && definitions.getClassCount() > 0) {
+                    cache.store(definitions, objectVersion, readAt);
+                }
+            }
+        } catch (NamingException e) {
+            // shared by all connector instances for the same directory: do not build anything out of partial
+            // definitions, the object class will be built again when next requested
+            LOG.error(e, "Error reading schema for {0}", oname);
+            throw new ConnectorException("Error reading schema for " + oname, e);
+        } finally {
+            quietClose(ctx);
         }
 
-        filter.insert(0, "(&(|").append(")(objectClass=classSchema))");
-        // -----------------------------------
+        LOG.ok("Built schema for {0}", oname);
+        return build(connection, oname, schemaNames);
+    }
 
-        final LdapContext ctx = connection.getInitialContext();
+    /**
+     * Read the class definitions, from the schema cache if enabled and up to date, or from the directory; these are
+     * cached together with the attribute definitions, once the latter are read.
+     */
+    private void readClasses(final ADConnection connection, final LdapContext ctx, final ADConfiguration conf)
+            throws NamingException {
+
+        final Attributes rootDSE = ctx.getAttributes("", new String[] {
+            SCHEMA_NAMING_CONTEXT, ROOT_DOMAIN_NAMING_CONTEXT, CURRENT_TIME });
+        schemaContexts = getSchemaContexts(connection, rootDSE);
+        readAt = getValue(rootDSE, CURRENT_TIME);
+
+        if (StringUtil.isNotBlank(conf.getSchemaCacheDirectory())) {
+            try {
+                objectVersion = getValue(
+                        ctx.getAttributes(schemaContexts.get(0), new String[] { OBJECT_VERSION }), OBJECT_VERSION);
+                cache = new ADSchemaCache(
+                        conf.getSchemaCacheDirectory(), getCacheKey(rootDSE, schemaContexts, conf));
+                definitions = cache.load(ctx, schemaContexts.get(0), objectVersion);
+            } catch (NamingException e) {
+                LOG.error(e, "Error reading {0} of {1}, schema cache disabled", OBJECT_VERSION, schemaContexts);
+                cache = null;
+            }
+        }
+
+        if (definitions == null) {
+            final ADSchemaDefinitions read = new ADSchemaDefinitions();
+            readClasses(connection, ctx, read);
+            definitions = read;
+        }
+    }
+
+    /**
+     * Forest, schema naming context and the attribute and classes the connector schema is built from.
+     */
+    private static String getCacheKey(
+            final Attributes rootDSE, final List<String> schemaContexts, final ADConfiguration conf)
+            throws NamingException {
 
+        final StringBuilder key = new StringBuilder();
+        key.append(getValue(rootDSE, ROOT_DOMAIN_NAMING_CONTEXT)).append('|').append(schemaContexts.get(0)).
+                append('|').append(conf.getUidAttribute()).append('|').append(conf.getGidAttribute()).
+                append('|').append(Arrays.toString(conf.getAccountObjectClasses())).
+                append('|').append(Arrays.toString(conf.getGroupObjectClasses()));
+        return key.toString().toLowerCase(Locale.ENGLISH);
+    }
+
+    private Set<String> getSchemaNames(final String oname, final ADConfiguration conf) {
         final Set<String> schemaNames = new HashSet<String>();
 
         // Issue http://code.google.com/p/connid/issues/detail?id=24
@@ -119,22 +264,14 @@ class ADSchemaBuilder {
             schemaNames.add(OBJECTGUID);
         }
 
-        final String schemaConfigurationPath = "CN=Schema,CN=Configuration";
+        final Set<String> visited = new HashSet<String>();
+        for (String oclass : oname.equalsIgnoreCase(ObjectClass.ACCOUNT_NAME)
+                ? conf.getAccountObjectClasses()
+                : oname.equalsIgnoreCase(ObjectClass.GROUP_NAME)
+                ? conf.getGroupObjectClasses()
+                : new String[] { oname }) {
 
-        for (String suffix : conf.getBaseContextsToSynchronize()) {
-            try {
-                final NamingEnumeration<SearchResult> oclasses = ctx.search(
-                        schemaConfigurationPath + "," + suffix,
-                        filter.toString(),
-                        searchCtls);
-
-                while (oclasses.hasMoreElements()) {
-                    final SearchResult oclass = oclasses.next();
-                    schemaNames.addAll(getObjectSchemaNames(oclass));
-                }
-            } catch (NamingException e) {
-                LOG.error(e, "Error retrieving schema names from {0}", suffix);
-            }
+            definitions.addClassAttributes(oclass, visited, schemaNames);
         }
 
         schemaNames.remove(ADConnector.SDDL_ATTR);
@@ -142,12 +279,16 @@ class ADSchemaBuilder {
         schemaNames.remove(ADConfiguration.PROMPT_USER_FLAG);
         schemaNames.remove(ADConfiguration.PRIMARY_GROUP_DN_NAME);
 
+        return schemaNames;
+    }
+
+    private ObjectClassInfo build(final ADConnection connection, final String oname, final Set<String> schemaNames) {
         final ObjectClassInfoBuilder objClassBld = new ObjectClassInfoBuilder();
 
         // ObjectClass.ACCOUNT/ObjectClass.GROUP
         objClassBld.setType(oname);
         objClassBld.setContainer(false);
-        objClassBld.addAllAttributeInfo(createAttrInfos(schemaNames));
+        objClassBld.addAllAttributeInfo(createAttrInfos(connection, schemaNames));
 
         objClassBld.addAttributeInfo(AttributeInfoBuilder.build(ADConfiguration.UCCP_FLAG, Boolean.class));
         objClassBld.addAttributeInfo(AttributeInfoBuilder.build(ADConfiguration.LOCK_OUT_FLAG, Boolean.class));
@@ -155,116 +296,237 @@ class ADSchemaBuilder {
         objClassBld.addAttributeInfo(AttributeInfoBuilder.build(ADConfiguration.PNE_FLAG, Boolean.class));
         objClassBld.addAttributeInfo(AttributeInfoBuilder.build(ADConfiguration.PRIMARY_GROUP_DN_NAME, String.class));
 
-        final ObjectClassInfo oci = objClassBld.build();
-        schemaBld.defineObjectClass(oci);
+        return objClassBld.build();
     }
 
-    private Set<String> getObjectSchemaNames(final SearchResult oclass)
+    private static List<String> getSchemaContexts(final ADConnection connection, final Attributes rootDSE)
             throws NamingException {
 
-        final Set<String> schemaNames = new HashSet<String>();
-
-        for (String attrName : ATTRIBUTES_TO_GET) {
-            final Attribute attr = oclass.getAttributes().get(attrName);
+        final List<String> schemaContexts = new ArrayList<String>();
 
-            if (attr != null) {
-                final NamingEnumeration<?> en = attr.getAll();
-                while (en.hasMoreElements()) {
-                    final String elem = (String) en.nextElement();
-
-                    if (StringUtil.isNotBlank(elem)) {
-                        schemaNames.add(elem.trim());
-                    }
-                }
+        final String schemaNamingContext = getValue(rootDSE, SCHEMA_NAMING_CONTEXT);
+        if (schemaNamingContext != null) {
+            schemaContexts.add(schemaNamingContext);
+        } else {
+            for (String suffix : connection.getConfiguration().getBaseContextsToSynchronize()) {
+                schemaContexts.add("CN=Schema,CN=Configuration," + suffix);
             }
         }
 
-        return schemaNames;
+        return schemaContexts;
     }
 
-    private List<AttributeInfo> createAttrInfos(final Set<String> schemaNames) {
+    private static String getValue(final Attributes attrs, final String name) throws NamingException {
+        final Attribute attr = attrs.get(name);
+        return attr == null || attr.get() == null ? null : attr.get().toString();
+    }
 
-        final List<AttributeInfo> infos = new ArrayList<AttributeInfo>();
+    private void readClasses(
+            final ADConnection connection, final LdapContext ctx, final ADSchemaDefinitions read)
+            throws NamingException {
 
-        for (String schemaName : schemaNames) {
-            infos.add(handleAttribute(schemaName));
+        final List<String> attrsToGet = new ArrayList<String>();
+        attrsToGet.add(LDAP_DISPLAY_NAME);
+        attrsToGet.addAll(Arrays.asList(ATTRIBUTES_TO_GET));
+        attrsToGet.addAll(Arrays.asList(SUPERCLASSES_TO_GET));
+
+        NamingException failure = null;
+        for (String schemaContext : schemaContexts) {
+            try {
+                search(connection, ctx, schemaContext, "(objectClass=classSchema)", attrsToGet, new ResultHandler() {
+
+                    @Override
+                    public void handle(final SearchResult result) throws NamingException {
+                        final Attribute name = result.getAttributes().get(LDAP_DISPLAY_NAME);
+                        if (name == null || name.get() == null) {
+                            return;
+                        }
+
+                        final ADSchemaDefinitions.ClassDefinition definition =
+                                new ADSchemaDefinitions.ClassDefinition();
+                        for (String attrName : ATTRIBUTES_TO_GET) {
+                            addValues(result.getAttributes().get(attrName), definition.getAttributes());
+                        }
+                        for (String attrName : SUPERCLASSES_TO_GET) {
+                            addValues(result.getAttributes().get(attrName), definition.getSuperclasses());
+                        }
+
+                        read.putClass(name.get().toString(), definition);
+                    }
+                });
+            } catch (NamingException e) {
+                LOG.error(e, "Error retrieving class definitions from {0}", schemaContext);
+                failure = e;
+            }
+
+            if (read.getClassCount() > 0) {
+                break;
+            }
         }
 
-        return infos;
+        if (read.getClassCount() == 0) {
+            throw failure == null
+                    ? new NamingException("No class definitions found under " + schemaContexts)
+                    : failure;
+        }
+
+        LOG.ok("Read {0} class definitions", read.getClassCount());
     }
 
-    private AttributeInfo handleAttribute(final String displayName) {
-        final String IS_SINGLE_VALUE = "isSingleValued";
-        final String SYSTEM_ONLY = "systemOnly";
-        final String LDAP_DISPLAY_NAME = "lDAPDisplayName";
+    private void readAttributes(final ADConnection connection, final LdapContext ctx, final Set<String> names)
+            throws NamingException {
 
-        final Set<Flags> flags = EnumSet.noneOf(Flags.class);
+        final List<String> pending = new ArrayList<String>(names);
 
-        boolean binary = connection.isBinarySyntax(displayName);
+        for (int i = 0; i < pending.size(); i += ATTRIBUTES_PER_QUERY) {
+            final StringBuilder filter = new StringBuilder("(&(objectClass=attributeSchema)(|");
+            for (String name : pending.subList(i, Math.min(i + ATTRIBUTES_PER_QUERY, pending.size()))) {
+                filter.append('(').append(LDAP_DISPLAY_NAME).append('=').append(name).append(')');
+            }
+            filter.append("))");
+
+            NamingException failure = null;
+            for (String schemaContext : schemaContexts) {
+                try {
+                    search(connection, ctx, schemaContext, filter.toString(),
+                            Arrays.asList(LDAP_DISPLAY_NAME, IS_SINGLE_VALUE, SYSTEM_ONLY), new ResultHandler() {
+
+                        @Override
+                        public void handle(final SearchResult result) throws NamingException {
+                            final Attribute name = result.getAttributes().get(LDAP_DISPLAY_NAME);
+                            if (name != null && name.get() != null) {
+                                definitions.putAttribute(name.get().toString(),
+                                        new ADSchemaDefinitions.AttributeDefinition(
+                                                "true".equalsIgnoreCase(
+                                                        getValue(result.getAttributes(), IS_SINGLE_VALUE)),
+                                                "true".equalsIgnoreCase(
+                                                        getValue(result.getAttributes(), SYSTEM_ONLY))));
+                            }
+                        }
+                    });
+                    failure = null;
+                    break;
+                } catch (NamingException e) {
+                    LOG.error(e, "Error retrieving attribute definitions from {0}", schemaContext);
+                    failure = e;
+                }
+            }
 
-        boolean objectClass = displayName == null || "objectClass".equalsIgnoreCase(displayName);
+            // attributes not read now would be taken as unknown from now on
+            if (failure != null) {
+                throw failure;
+            }
+        }
 
-        final LdapContext ctx = connection.getInitialContext();
+        LOG.ok("Read {0} attribute definitions", definitions.getAttributeCount());
+    }
 
-        final String[] baseContexts = connection.getConfiguration().getBaseContextsToSynchronize();
+    private static void search(
+            final ADConnection connection,
+            final LdapContext ctx,
+            final String baseDN,
+            final String filter,
+            final List<String> attrsToGet,
+            final ResultHandler handler)
+            throws NamingException {
 
-        // ------------------------------
-        // Search control
-        // ------------------------------
         final SearchControls searchCtls = LdapInternalSearch.createDefaultSearchControls();
-        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-        searchCtls.setReturningAttributes(new String[] { IS_SINGLE_VALUE, SYSTEM_ONLY });
-        // ------------------------------
+        searchCtls.setSearchScope(SearchControls.ONELEVEL_SCOPE);
+        searchCtls.setReturningAttributes(attrsToGet.toArray(new String[attrsToGet.size()]));
 
-        int i = 0;
-        Attributes attributes = null;
+        final int pageSize = ((ADConfiguration) connection.getConfiguration()).getSearchPageSize();
 
-        while (attributes == null && i < baseContexts.length) {
+        byte[] cookie = null;
+        do {
+            try {
+                ctx.setRequestControls(new Control[] { new PagedResultsControl(pageSize, cookie, Control.CRITICAL) });
+            } catch (IOException e) {
+                throw new NamingException("Could not set paged results control: " + e.getMessage());
+            }
 
-            final StringBuilder dn = new StringBuilder();
+            final NamingEnumeration<SearchResult> result = ctx.search(baseDN, filter, searchCtls);
+            try {
+                while (result.hasMoreElements()) {
+                    handler.handle(result.next());
+                }
+            } finally {
+                result.close();
+            }
 
-            dn.append("cn=schema, cn=configuration,").append(baseContexts[i]);
+            cookie = null;
+            final Control[] rspCtls = ctx.getResponseControls();
+            if (rspCtls != null) {
+                for (Control rspCtl : rspCtls) {
+                    if (rspCtl instanceof PagedResultsResponseControl) {
+                        cookie = ((PagedResultsResponseControl) rspCtl).getCookie();
+                    }
+                }
+            }
+        } while (cookie != null && cookie.length > 0);
+    }
 
-            try {
+    private static LdapContext newContext(final ADConnection connection) {
+        try {
+            // paged results controls must not be set on the shared context
+            return connection.getInitialContext().newInstance(null);
+        } catch (NamingException e) {
+            throw new ConnectorException(e);
+        }
+    }
 
-                final NamingEnumeration<SearchResult> result = ctx.search(
-                        dn.toString(),
-                        LDAP_DISPLAY_NAME + "=" + displayName,
-                        searchCtls);
+    private static void addValues(final Attribute attr, final Set<String> values) throws NamingException {
+        if (attr != null) {
+            final NamingEnumeration<?> en = attr.getAll();
+            while (en.hasMoreElements()) {
+                final String elem = (String) en.nextElement();
 
-                if (result != null && result.hasMoreElements()) {
-                    attributes = result.next().getAttributes();
+                if (StringUtil.isNotBlank(elem)) {
+                    values.add(elem.trim());
                 }
+            }
+        }
+    }
 
-            } catch (NamingException e) {
-                LOG.error(e, "Error retrieving attributes for {0}", dn);
+    private static void quietClose(final LdapContext ctx) {
+        try {
+            if (ctx != null) {
+                ctx.close();
             }
+        } catch (NamingException e) {
+            LOG.warn(e, "Failure closing context");
+        }
+    }
+
+    private List<AttributeInfo> createAttrInfos(final ADConnection connection, final Set<String> schemaNames) {
+
+        final List<AttributeInfo> infos = new ArrayList<AttributeInfo>();
 
-            i++;
+        for (String schemaName : schemaNames) {
+            infos.add(handleAttribute(connection, schemaName));
         }
 
-        if (attributes != null) {
-            final Attribute isSingle = attributes.get(IS_SINGLE_VALUE);
+        return infos;
+    }
 
-            try {
-                if (isSingle == null || isSingle.get() == null || "false".equalsIgnoreCase(isSingle.get().toString())) {
-                    flags.add(Flags.MULTIVALUED);
-                }
-            } catch (NamingException e) {
-                LOG.error(e, "Failure retrieving attribute " + IS_SINGLE_VALUE);
+    private AttributeInfo handleAttribute(final ADConnection connection, final String displayName) {
+        final Set<Flags> flags = EnumSet.noneOf(Flags.class);
+
+        boolean binary = connection.isBinarySyntax(displayName);
+
+        boolean objectClass = displayName == null || "objectClass".equalsIgnoreCase(displayName);
+
+        final ADSchemaDefinitions.AttributeDefinition definition = displayName == null
+                ? null
+                : definitions.getAttribute(displayName);
+
+        if (definition != null) {
+            if (!definition.isSingleValued()) {
+                flags.add(Flags.MULTIVALUED);
             }
 
-            final Attribute systemOnly = attributes.get(SYSTEM_ONLY);
-            try {
-                if ((systemOnly != null
-                        && systemOnly.get() != null
-                        && "true".equalsIgnoreCase(systemOnly.get().toString()))
-                        || objectClass) {
-                    flags.add(Flags.NOT_CREATABLE);
-                    flags.add(Flags.NOT_UPDATEABLE);
-                }
-            } catch (NamingException e) {
-                LOG.error(e, "Failure retrieving attribute " + SYSTEM_ONLY);
+            if (definition.isSystemOnly() || objectClass) {
+                flags.add(Flags.NOT_CREATABLE);
+                flags.add(Flags.NOT_UPDATEABLE);
             }
         }
 
@@ -0,0 +1,185 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.ad.schema;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapContext;
+import net.tirasa.adsddl.ntsd.utils.Hex;
+import org.identityconnectors.common.StringUtil;
+import org.identityconnectors.common.logging.Log;
+
+/**
+ * On-disk cache of schema definitions, one file per forest, schema naming context and set of classes.
+ * A cached file is used as long as the <tt>objectVersion</tt> of the schema naming context is unchanged and no
+ * schema entry has changed since the file was written (as per <tt>whenChanged</tt>).
+ */
+class ADSchemaCache {
+
+    private static final Log LOG = Log.getLog(ADSchemaCache.class);
+
+    private static final int FORMAT_VERSION = 1;
+
+    private final File file;
+
+    private final String key;
+
+    ADSchemaCache(final String directory, final String key) {
+        this.key = key;
+        this.file = new File(directory, "ad-schema-" + digest(key) + ".bin");
+    }
+
+    /**
+     * Read the cached definitions, provided that the schema did not change since they were cached.
+     *
+     * @param ctx context for validation queries.
+     * @param schemaContext schema naming context.
+     * @param objectVersion current <tt>objectVersion</tt> of the schema naming context.
+     * @return cached definitions, or null if not available or outdated.
+     */
+    ADSchemaDefinitions load(final LdapContext ctx, final String schemaContext, final String objectVersion) {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        final String cachedAt;
+        final ADSchemaDefinitions definitions;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            if (in.readInt() != FORMAT_VERSION || !key.equals(in.readUTF())
+                    || !String.valueOf(objectVersion).equals(in.readUTF())) {
+
+                LOG.ok("Cached schema {0} is outdated", file);
+                return null;
+            }
+
+            cachedAt = in.readUTF();
+            definitions = ADSchemaDefinitions.read(in);
+        } catch (IOException e) {
+            LOG.warn(e, "Could not read cached schema {0}", file);
+            return null;
+        } finally {
+            quietClose(in);
+        }
+
+        try {
+            final SearchControls searchCtls = new SearchControls();
+            searchCtls.setSearchScope(SearchControls.ONELEVEL_SCOPE);
+            searchCtls.setCountLimit(1);
+            searchCtls.setReturningAttributes(new String[0]);
+
+            final NamingEnumeration<SearchResult> changed =
+                    ctx.search(schemaContext, "(whenChanged>=" + cachedAt + ")", searchCtls);
+            try {
+                if (changed.hasMore()) {
+                    LOG.ok("Schema changed since {0}, cached schema {1} is outdated", cachedAt, file);
+                    return null;
+                }
+            } finally {
+                changed.close();
+            }
+        } catch (NamingException e) {
+            // size limit exceeded means that at least one entry changed
+            LOG.ok(e, "Could not validate cached schema {0}", file);
+            return null;
+        }
+
+        LOG.ok("Using cached schema {0}", file);
+        return definitions;
+    }
+
+    /**
+     * Cache the given definitions.
+     *
+     * @param definitions schema definitions.
+     * @param objectVersion <tt>objectVersion</tt> of the schema naming context the definitions were read from.
+     * @param readAt server time (generalized time) when definitions started being read.
+     */
+    void store(final ADSchemaDefinitions definitions, final String objectVersion, final String readAt) {
+        if (StringUtil.isBlank(readAt)) {
+            return;
+        }
+
+        File tmp = null;
+        DataOutputStream out = null;
+        try {
+            if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+                throw new IOException("Could not create directory " + file.getParentFile());
+            }
+
+            tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(key);
+            out.writeUTF(String.valueOf(objectVersion));
+            out.writeUTF(readAt);
+            definitions.write(out);
+            out.close();
+            out = null;
+
+            // replace atomically, not to expose partially written files to concurrent readers
+            if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+                throw new IOException("Could not rename " + tmp + " to " + file);
+            }
+
+            LOG.ok("Schema cached to {0}", file);
+        } catch (IOException e) {
+            LOG.warn(e, "Could not cache schema to {0}", file);
+        } finally {
+            quietClose(out);
+            if (tmp != null && tmp.isFile() && !tmp.delete()) {
+                LOG.warn("Could not delete {0}", tmp);
+            }
+        }
+    }
+
+    private static String digest(final String value) {
+        try {
+            return Hex.get(MessageDigest.getInstance("SHA-1").digest(value.getBytes("UTF-8"))).toLowerCase();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void quietClose(final Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException e) {
+            LOG.warn(e, "Failure closing {0}", closeable);
+        }
+    }
+}
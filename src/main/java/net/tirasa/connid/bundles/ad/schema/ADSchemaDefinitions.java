@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.ad.schema;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Class and attribute definitions read from the Active Directory schema, as needed to build the connector schema.
+ */
+class ADSchemaDefinitions {
+
+    static final class ClassDefinition {
+
+        private final Set<String> attributes = new HashSet<String>();
+
+        private final Set<String> superclasses = new HashSet<String>();
+
+        Set<String> getAttributes() {
+            return attributes;
+        }
+
+        Set<String> getSuperclasses() {
+            return superclasses;
+        }
+    }
+
+    static final class AttributeDefinition {
+
+        private final boolean singleValued;
+
+        private final boolean systemOnly;
+
+        AttributeDefinition(final boolean singleValued, final boolean systemOnly) {
+            this.singleValued = singleValued;
+            this.systemOnly = systemOnly;
+        }
+
+        boolean isSingleValued() {
+            return singleValued;
+        }
+
+        boolean isSystemOnly() {
+            return systemOnly;
+        }
+    }
+
+    /**
+     * Class definitions, by lower case <tt>lDAPDisplayName</tt>.
+     */
+    private final Map<String, ClassDefinition> classes = new HashMap<String, ClassDefinition>();
+
+    /**
+     * Attribute definitions, by lower case <tt>lDAPDisplayName</tt>.
+     */
+    private final Map<String, AttributeDefinition> attributes = new HashMap<String, AttributeDefinition>();
+
+    private static String key(final String name) {
+        return name.toLowerCase(Locale.ENGLISH);
+    }
+
+    ClassDefinition getClass(final String name) {
+        return classes.get(key(name));
+    }
+
+    void putClass(final String name, final ClassDefinition definition) {
+        classes.put(key(name), definition);
+    }
+
+    int getClassCount() {
+        return classes.size();
+    }
+
+    AttributeDefinition getAttribute(final String name) {
+        return attributes.get(key(name));
+    }
+
+    void putAttribute(final String name, final AttributeDefinition definition) {
+        attributes.put(key(name), definition);
+    }
+
+    int getAttributeCount() {
+        return attributes.size();
+    }
+
+    /**
+     * Collect the attributes of the given class, including those inherited from super and auxiliary classes.
+     *
+     * @param oclass class name.
+     * @param visited classes already visited.
+     * @param schemaNames collected attribute names.
+     */
+    void addClassAttributes(final String oclass, final Set<String> visited, final Set<String> schemaNames) {
+        if (!visited.add(key(oclass))) {
+            return;
+        }
+
+        final ClassDefinition definition = getClass(oclass);
+        if (definition != null) {
+            schemaNames.addAll(definition.attributes);
+            for (String superclass : definition.superclasses) {
+                addClassAttributes(superclass, visited, schemaNames);
+            }
+        }
+    }
+
+    void write(final DataOutput out) throws IOException {
+        out.writeInt(classes.size());
+        for (Map.Entry<String, ClassDefinition> entry : classes.entrySet()) {
+            out.writeUTF(entry.getKey());
+            writeSet(out, entry.getValue().attributes);
+            writeSet(out, entry.getValue().superclasses);
+        }
+
+        out.writeInt(attributes.size());
+        for (Map.Entry<String, AttributeDefinition> entry : attributes.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeBoolean(entry.getValue().singleValued);
+            out.writeBoolean(entry.getValue().systemOnly);
+        }
+    }
+
+    static ADSchemaDefinitions read(final DataInput in) throws IOException {
+        final ADSchemaDefinitions definitions = new ADSchemaDefinitions();
+
+        final int classCount = in.readInt();
+        for (int i = 0; i < classCount; i++) {
+            final String name = in.readUTF();
+            final ClassDefinition definition = new ClassDefinition();
+            readSet(in, definition.attributes);
+            readSet(in, definition.superclasses);
+            definitions.classes.put(name, definition);
+        }
+
+        final int attributeCount = in.readInt();
+        for (int i = 0; i < attributeCount; i++) {
+            final String name = in.readUTF();
+            definitions.attributes.put(name, new AttributeDefinition(in.readBoolean(), in.readBoolean()));
+        }
+
+        return definitions;
+    }
+
+    private static void writeSet(final DataOutput out, final Set<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static void readSet(final DataInput in, final Set<String> values) throws IOException {
+        final int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            values.add(in.readUTF());
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.ad.schema;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import net.tirasa.connid.bundles.ad.ADConfiguration;
+import net.tirasa.connid.bundles.ldap.commons.LdapNativeSchema;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+/**
+ * Process-wide registry of the schema information discovered for each directory, shared by all connector instances
+ * configured for the same hosts, base contexts, principal and object classes.
+ * Entries are reference counted: they are dropped as soon as the last connector instance using them is disposed.
+ */
+public final class ADSchemaRegistry {
+
+    private static final Log LOG = Log.getLog(ADSchemaRegistry.class);
+
+    private static final ADSchemaRegistry INSTANCE = new ADSchemaRegistry();
+
+    /**
+     * Schema information about a directory, lazily discovered by the first connector instance needing it.
+     */
+    public static final class Entry {
+
+        private final String key;
+
+        private int references = 0;
+
+        private ADSchemaBuilder builder;
+
+        private LdapNativeSchema nativeSchema;
+
+        private Set<String> supportedControls;
+
+        private Set<String> constructedAttributes;
+
+        private Entry(final String key) {
+            this.key = key;
+        }
+
+        synchronized ADSchemaBuilder getBuilder() {
+            if (builder == null) {
+                builder = new ADSchemaBuilder();
+            }
+            return builder;
+        }
+
+        public synchronized LdapNativeSchema getNativeSchema(final Callable<LdapNativeSchema> loader) {
+            if (nativeSchema == null) {
+                nativeSchema = load(loader);
+            }
+            return nativeSchema;
+        }
+
+        public synchronized Set<String> getSupportedControls(final Callable<Set<String>> loader) {
+            if (supportedControls == null) {
+                supportedControls = load(loader);
+            }
+            return supportedControls;
+        }
+
+        public synchronized Set<String> getConstructedAttributes(final Callable<Set<String>> loader) {
+            if (constructedAttributes == null) {
+                constructedAttributes = load(loader);
+            }
+            return constructedAttributes;
+        }
+
+        /**
+         * Forget the information discovered so far: it will be discovered again when next needed.
+         */
+        public synchronized void refresh() {
+            LOG.ok("Refreshing schema information for {0}", key);
+            builder = null;
+            nativeSchema = null;
+            supportedControls = null;
+            constructedAttributes = null;
+        }
+
+        private static <T> T load(final Callable<T> loader) {
+            try {
+                return loader.call();
+            } catch (ConnectorException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new ConnectorException(e);
+            }
+        }
+    }
+
+    public static ADSchemaRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    private ADSchemaRegistry() {
+        // singleton
+    }
+
+    /**
+     * Get the entry for the given configuration, increasing its reference count.
+     *
+     * @param conf connector configuration.
+     * @return shared entry; to be given back via {@link #release(Entry)}.
+     */
+    public synchronized Entry acquire(final ADConfiguration conf) {
+        final String key = key(conf);
+
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            entries.put(key, entry);
+        }
+        entry.references++;
+
+        return entry;
+    }
+
+    /**
+     * Decrease the reference count of the given entry, dropping it when no more referenced.
+     *
+     * @param entry entry previously obtained via {@link #acquire(ADConfiguration)}.
+     */
+    public synchronized void release(final Entry entry) {
+        if (--entry.references <= 0 && entries.get(entry.key) == entry) {
+            entries.remove(entry.key);
+        }
+    }
+
+    /**
+     * Forget the information discovered so far for the given configuration.
+     *
+     * @param conf connector configuration.
+     */
+    public void refresh(final ADConfiguration conf) {
+        final Entry entry;
+        synchronized (this) {
+            entry = entries.get(key(conf));
+        }
+        if (entry != null) {
+            entry.refresh();
+        }
+    }
+
+    /**
+     * Forget the information discovered so far for all directories.
+     */
+    public void refreshAll() {
+        final Entry[] current;
+        synchronized (this) {
+            current = entries.values().toArray(new Entry[entries.size()]);
+        }
+        for (Entry entry : current) {
+            entry.refresh();
+        }
+    }
+
+    /**
+     * @return number of directories currently registered.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private static String key(final ADConfiguration conf) {
+        final StringBuilder key = new StringBuilder();
+        key.append(conf.isSsl() ? "ldaps://" : "ldap://").append(conf.getHost()).append(':').append(conf.getPort()).
+                append('|').append(Arrays.toString(conf.getFailover())).
+                append('|').append(Arrays.toString(conf.getBaseContextsToSynchronize())).
+                append('|').append(Arrays.toString(conf.getUserBaseContexts())).
+                append('|').append(Arrays.toString(conf.getGroupBaseContexts())).
+                append('|').append(conf.getPrincipal()).
+                append('|').append(conf.isReadSchema()).
+                append('|').append(conf.getUidAttribute()).append('|').append(conf.getGidAttribute()).
+                append('|').append(Arrays.toString(conf.getAccountObjectClasses())).
+                append('|').append(Arrays.toString(conf.getGroupObjectClasses()));
+        return key.toString().toLowerCase(Locale.ENGLISH);
+    }
+}
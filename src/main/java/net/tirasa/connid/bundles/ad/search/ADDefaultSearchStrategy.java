@@ -19,6 +19,8 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import javax.naming.InvalidNameException;
 import javax.naming.NameNotFoundException;
 import javax.naming.NamingEnumeration;
@@ -40,6 +42,14 @@ public class ADDefaultSearchStrategy extends DefaultSearchStrategy {
 
     private final boolean ignoreNonExistingBaseDNs;
 
+    private final int pageSize;
+
+    private final boolean adaptivePageSize;
+
+    private final long targetPageLatency;
+
+    private final ExecutorService prefetchExecutor;
+
     static String searchControlsToString(SearchControls controls) {
         StringBuilder builder = new StringBuilder();
         builder.append("SearchControls: {returningAttributes=");
@@ -62,8 +72,30 @@ public class ADDefaultSearchStrategy extends DefaultSearchStrategy {
     }
 
     public ADDefaultSearchStrategy(boolean ignoreNonExistingBaseDNs) {
+        this(ignoreNonExistingBaseDNs, ADPageSizer.DEFAULT_PAGE_SIZE, false, 0, null);
+    }
+
+    /**
+     * @param ignoreNonExistingBaseDNs whether non existing base DNs are ignored
+     * @param pageSize (initial) page size
+     * @param adaptivePageSize whether page size is adjusted according to the observed page latency
+     * @param targetPageLatency page latency to aim at, if adaptive
+     * @param prefetchExecutor executor fetching the next page while the current one is being handled; null to fetch
+     * pages one after the other
+     */
+    public ADDefaultSearchStrategy(
+            final boolean ignoreNonExistingBaseDNs,
+            final int pageSize,
+            final boolean adaptivePageSize,
+            final long targetPageLatency,
+            final ExecutorService prefetchExecutor) {
+
         super(ignoreNonExistingBaseDNs);
         this.ignoreNonExistingBaseDNs = ignoreNonExistingBaseDNs;
+        this.pageSize = pageSize;
+        this.adaptivePageSize = adaptivePageSize;
+        this.targetPageLatency = targetPageLatency;
+        this.prefetchExecutor = prefetchExecutor;
     }
 
     @Override
@@ -88,21 +120,9 @@ public class ADDefaultSearchStrategy extends DefaultSearchStrategy {
             while (baseDNIter.hasNext() && proceed) {
                 try {
                     String baseDN = baseDNIter.next();
-                    byte[] cookie = null;
-                    do {
-                        ctx.setRequestControls(
-                                new Control[] { new PagedResultsControl(1000, cookie, Control.CRITICAL) });
-                        final NamingEnumeration<SearchResult> results = ctx.search(baseDN, query, searchControls);
-                        try {
-                            // hasMore call for referral resolution ... it fails with AD
-                            while (proceed && results.hasMoreElements()) {
-                                proceed = handler.handle(baseDN, results.next());
-                            }
-                        } finally {
-                            results.close();
-                        }
-                        cookie = getResponseCookie(ctx.getResponseControls());
-                    } while (cookie != null);
+                    proceed = prefetchExecutor == null
+                            ? searchPages(ctx, baseDN, query, searchControls, handler)
+                            : prefetchPages(ctx, baseDN, query, searchControls, handler);
                 } catch (NameNotFoundException e) {
                     if (!ignoreNonExistingBaseDNs) {
                         throw e;
@@ -122,6 +142,119 @@ public class ADDefaultSearchStrategy extends DefaultSearchStrategy {
         }
     }
 
+    private boolean searchPages(
+            final LdapContext ctx,
+            final String baseDN,
+            final String query,
+            final SearchControls searchControls,
+            final LdapSearchResultsHandler handler)
+            throws NamingException, IOException {
+
+        final ADPageSizer sizer = new ADPageSizer(pageSize, adaptivePageSize, targetPageLatency);
+        boolean proceed = true;
+        byte[] cookie = null;
+        do {
+            final int size = sizer.getPageSize();
+            ctx.setRequestControls(getPagedControls(size, cookie));
+
+            int entries = 0;
+            long bytes = 0;
+            long handling = 0;
+            final long start = System.currentTimeMillis();
+
+            final NamingEnumeration<SearchResult> results = ctx.search(baseDN, query, searchControls);
+            try {
+                // hasMore call for referral resolution ... it fails with AD
+                while (proceed && results.hasMoreElements()) {
+                    final SearchResult result = results.next();
+                    entries++;
+                    if (sizer.isAdaptive()) {
+                        bytes += ADPageSizer.estimateSize(result);
+                    }
+
+                    final long handleStart = System.currentTimeMillis();
+                    proceed = handler.handle(baseDN, result);
+                    handling += System.currentTimeMillis() - handleStart;
+                }
+            } finally {
+                results.close();
+            }
+            cookie = getResponseCookie(ctx.getResponseControls());
+
+            final long elapsed = System.currentTimeMillis() - start - handling;
+            final int next = sizer.pageCompleted(entries, bytes, elapsed, cookie != null);
+
+            if (LOG.isOk()) {
+                LOG.ok("Page {0} from {1}: {2} entries (page size {3}) in {4} ms, next page size {5}",
+                        sizer.getPages(), baseDN, entries, size, elapsed, next);
+            }
+        } while (proceed && cookie != null);
+
+        return proceed;
+    }
+
+    /**
+     * Same as {@link #searchPages(LdapContext, String, String, SearchControls, LdapSearchResultsHandler)}, but the
+     * next page is requested in background as soon as the current one has been received, so that fetching it overlaps
+     * with handling the current one; at most one page is fetched ahead.
+     */
+    private boolean prefetchPages(
+            final LdapContext ctx,
+            final String baseDN,
+            final String query,
+            final SearchControls searchControls,
+            final LdapSearchResultsHandler handler)
+            throws NamingException, IOException {
+
+        final ADPageSizer sizer = new ADPageSizer(pageSize, adaptivePageSize, targetPageLatency);
+        boolean proceed = true;
+
+        int size = sizer.getPageSize();
+        ADSearchPage page = ADSearchPage.fetch(ctx, baseDN, query, searchControls, getPagedControls(size, null));
+        while (page != null) {
+            long bytes = 0;
+            if (sizer.isAdaptive()) {
+                for (SearchResult result : page.getResults()) {
+                    bytes += ADPageSizer.estimateSize(result);
+                }
+            }
+            final byte[] cookie = getResponseCookie(page.getResponseControls());
+            final int next = sizer.pageCompleted(page.getResults().size(), bytes, page.getElapsed(), cookie != null);
+
+            if (LOG.isOk()) {
+                LOG.ok("Page {0} from {1}: {2} entries (page size {3}) in {4} ms, next page size {5}",
+                        sizer.getPages(), baseDN, page.getResults().size(), size, page.getElapsed(), next);
+            }
+
+            final Future<ADSearchPage> nextPage = cookie == null
+                    ? null
+                    : ADSearchPage.prefetch(
+                            prefetchExecutor, ctx, baseDN, query, searchControls, getPagedControls(next, cookie));
+
+            boolean handled = false;
+            try {
+                for (Iterator<SearchResult> iter = page.getResults().iterator(); proceed && iter.hasNext();) {
+                    proceed = handler.handle(baseDN, iter.next());
+                }
+                handled = true;
+            } finally {
+                if (!handled || !proceed) {
+                    // the context is not given back while still in use
+                    ADSearchPage.discard(nextPage);
+                }
+            }
+
+            page = proceed && nextPage != null ? ADSearchPage.get(nextPage) : null;
+            size = next;
+        }
+
+        return proceed;
+    }
+
+    private static Control[] getPagedControls(final int size, final byte[] cookie) throws IOException {
+        return new Control[] { new PagedResultsControl(size, cookie, Control.CRITICAL) };
+    }
+
     private byte[] getResponseCookie(final Control[] controls) {
         if (controls != null) {
             for (Control control : controls) {
@@ -0,0 +1,135 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.ad.search;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.SearchResult;
+
+/**
+ * Choose the size of the next page of a paged search.
+ * In adaptive mode, the page size is adjusted after each page so that fetching a page takes about the target
+ * latency, without exceeding a reasonable amount of data per page.
+ * A short page followed by more pages reveals the server page size limit (MaxPageSize in the LDAP query policy):
+ * no larger page is requested from then on.
+ */
+class ADPageSizer {
+
+    /**
+     * AD default MaxPageSize.
+     */
+    static final int DEFAULT_PAGE_SIZE = 1000;
+
+    private static final int MIN_PAGE_SIZE = 50;
+
+    private static final long MAX_PAGE_BYTES = 4L * 1024 * 1024;
+
+    private final boolean adaptive;
+
+    private final long targetLatency;
+
+    private int pageSize;
+
+    /**
+     * Server page size limit, once learned.
+     */
+    private int serverLimit = Integer.MAX_VALUE;
+
+    private int pages = 0;
+
+    ADPageSizer(final int pageSize, final boolean adaptive, final long targetLatency) {
+        this.pageSize = Math.max(1, pageSize);
+        this.adaptive = adaptive && targetLatency > 0;
+        this.targetLatency = targetLatency;
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public int getPages() {
+        return pages;
+    }
+
+    /**
+     * Record the figures observed for the page just fetched.
+     *
+     * @param entries number of entries in the page
+     * @param bytes (estimated) size of the entries in the page
+     * @param elapsed time spent waiting for the page entries (milliseconds)
+     * @param more whether more pages follow
+     * @return page size to use for the next page
+     */
+    public int pageCompleted(final int entries, final long bytes, final long elapsed, final boolean more) {
+        pages++;
+
+        // the server returned less entries than requested, although more are available
+        if (more && entries > 0 && entries < pageSize) {
+            serverLimit = entries;
+            pageSize = entries;
+            return pageSize;
+        }
+
+        // the last page: nothing to learn from it
+        if (!adaptive || !more || entries == 0) {
+            return pageSize;
+        }
+
+        // fast pages grow the page size, at most doubling it
+        long next = elapsed <= 0 ? 2L * pageSize : (long) entries * targetLatency / elapsed;
+
+        // avoid too many data per page (e.g. groups with huge member lists)
+        if (bytes > 0) {
+            next = Math.min(next, MAX_PAGE_BYTES * entries / bytes);
+        }
+
+        next = Math.min(next, 2L * pageSize);
+        next = Math.max(next, pageSize / 2);
+
+        pageSize = (int) Math.min(serverLimit, Math.max(MIN_PAGE_SIZE, next));
+        return pageSize;
+    }
+
+    /**
+     * Estimate the size of the given search result, as sum of the sizes of its attribute values.
+     *
+     * @param result search result
+     * @return estimated size
+     */
+    public static long estimateSize(final SearchResult result) {
+        long size = result.getName() == null ? 0 : result.getName().length();
+
+        final NamingEnumeration<? extends Attribute> attrs = result.getAttributes().getAll();
+        try {
+            while (attrs.hasMore()) {
+                final Attribute attr = attrs.next();
+                for (int i = 0; i < attr.size(); i++) {
+                    final Object value = attr.get(i);
+                    size += value instanceof byte[] ? ((byte[]) value).length : String.valueOf(value).length();
+                }
+            }
+        } catch (NamingException e) {
+            // best effort estimation
+        }
+
+        return size;
+    }
+}
@@ -18,7 +18,8 @@ package net.tirasa.connid.bundles.ad.search;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
-import javax.naming.NamingEnumeration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import javax.naming.NamingException;
 import javax.naming.OperationNotSupportedException;
 import javax.naming.PartialResultException;
@@ -52,6 +53,8 @@ public class ADPagedSearchStrategy extends PagedSearchStrategy {
 
     private final SortKey[] sortKeys;
 
+    private final ExecutorService prefetchExecutor;
+
     static String searchControlsToString(SearchControls controls) {
         StringBuilder builder = new StringBuilder();
         builder.append("SearchControls: {returningAttributes=");
@@ -79,12 +82,32 @@ public class ADPagedSearchStrategy extends PagedSearchStrategy {
             final Integer pagedResultsOffset,
             final SearchResultsHandler searchResultHandler,
             final SortKey[] sortKeys) {
+        this(pageSize, pagedResultsCookie, pagedResultsOffset, searchResultHandler, sortKeys, null);
+    }
+
+    /**
+     * @param pageSize page size
+     * @param pagedResultsCookie cookie of the page to return
+     * @param pagedResultsOffset offset of the first result to return
+     * @param searchResultHandler handler to be notified about the returned cookie
+     * @param sortKeys sort keys
+     * @param prefetchExecutor executor fetching the page from the next base DN while the current one is being
+     * handled; null to fetch pages one after the other
+     */
+    public ADPagedSearchStrategy(
+            final int pageSize,
+            final String pagedResultsCookie,
+            final Integer pagedResultsOffset,
+            final SearchResultsHandler searchResultHandler,
+            final SortKey[] sortKeys,
+            final ExecutorService prefetchExecutor) {
         super(pageSize, pagedResultsCookie, pagedResultsOffset, searchResultHandler, sortKeys);
         this.pageSize = pageSize;
         this.pagedResultsOffset = pagedResultsOffset == null ? 0 : pagedResultsOffset;
         this.pagedResultsCookie = pagedResultsCookie;
         this.searchResultHandler = searchResultHandler;
         this.sortKeys = sortKeys;
+        this.prefetchExecutor = prefetchExecutor;
     }
 
     @Override
@@ -120,59 +143,49 @@ public class ADPagedSearchStrategy extends PagedSearchStrategy {
         LdapContext ctx = initCtx.newInstance(null);
         int remainingResults = -1;
         boolean allResultsReturned = true;
+        Future<ADSearchPage> nextPage = null;
         try {
             boolean proceed = true;
             int records = 0;
             boolean needMore;
             do {
-                SortControl sortControl = null;
-                if (sortKeys != null && sortKeys.length > 0) {
-                    javax.naming.ldap.SortKey[] skis = new javax.naming.ldap.SortKey[sortKeys.length];
-                    for (int i = 0; i < sortKeys.length; i++) {
-                        skis[i] = new javax.naming.ldap.SortKey(sortKeys[i].getField(), sortKeys[i].isAscendingOrder(),
-                                null);
+                final ADSearchPage page = nextPage == null
+                        ? ADSearchPage.fetch(ctx, baseDNs.get(context), query, searchControls,
+                                getRequestControls(pageSize - records, cookie))
+                        : ADSearchPage.get(nextPage);
+                nextPage = null;
+
+                final String baseDN = baseDNs.get(context);
+                final int first = records;
+                records += page.getResults().size();
+
+                if ((records < pageSize) && (context + 1 < baseDNs.size())) {
+                    needMore = true;
+
+                    context++;
+                    cookie = null;
+
+                    if (prefetchExecutor != null) {
+                        // the next base DN is searched while the current page is being handled
+                        nextPage = ADSearchPage.prefetch(prefetchExecutor, ctx, baseDNs.get(context), query,
+                                searchControls, getRequestControls(pageSize - records, cookie));
                     }
-                    // We don't want to make this critical... better return unsorted results than nothing.
-                    sortControl = new SortControl(skis, Control.NONCRITICAL);
-                }
-                if (sortControl == null) {
-                    ctx.setRequestControls(new Control[] {
-                        new PagedResultsControl(pageSize - records, cookie, Control.CRITICAL) });
                 } else {
-                    ctx.setRequestControls(new Control[] {
-                        new PagedResultsControl(pageSize - records, cookie, Control.CRITICAL), sortControl
-                    });
-                }
+                    needMore = false;
 
-                NamingEnumeration<SearchResult> results = ctx.search(baseDNs.get(context), query, searchControls);
-
-                try {
-                    // hasMore call for referral resolution ... it fails with AD
-                    while (proceed && results.hasMoreElements()) {
-                        SearchResult result = results.next();
-                        records++;
-                        if (records > pagedResultsOffset) {
-                            proceed = handler.handle(baseDNs.get(context), result);
+                    PagedResultsResponseControl pagedControl = getPagedControl(page.getResponseControls());
+                    if (pagedControl != null) {
+                        cookie = pagedControl.getCookie();
+                        if (pagedControl.getResultSize() > 0) {
+                            remainingResults = pagedControl.getResultSize();
                         }
                     }
-                    if ((records < pageSize) && (context + 1 < baseDNs.size())) {
-                        needMore = true;
-
-                        context++;
-                        cookie = null;
-                    } else {
-                        needMore = false;
-
-                        PagedResultsResponseControl pagedControl = getPagedControl(ctx.getResponseControls());
-                        if (pagedControl != null) {
-                            cookie = pagedControl.getCookie();
-                            if (pagedControl.getResultSize() > 0) {
-                                remainingResults = pagedControl.getResultSize();
-                            }
-                        }
+                }
+
+                for (int i = 0; proceed && i < page.getResults().size(); i++) {
+                    if (first + i + 1 > pagedResultsOffset) {
+                        proceed = handler.handle(baseDN, page.getResults().get(i));
                     }
-                } finally {
-                    results.close();
                 }
             } while (needMore);
         } catch (OperationNotSupportedException e) {
@@ -182,6 +195,8 @@ public class ADPagedSearchStrategy extends PagedSearchStrategy {
             LOG.ok("PartialResultException caught: {0}", e.getRemainingName());
             allResultsReturned = false;
         } finally {
+            // the context is not closed while still in use
+            ADSearchPage.discard(nextPage);
             ctx.close();
         }
 
@@ -196,6 +211,24 @@ public class ADPagedSearchStrategy extends PagedSearchStrategy {
         }
     }
 
+    private Control[] getRequestControls(final int size, final byte[] cookie) throws IOException {
+        SortControl sortControl = null;
+        if (sortKeys != null && sortKeys.length > 0) {
+            javax.naming.ldap.SortKey[] skis = new javax.naming.ldap.SortKey[sortKeys.length];
+            for (int i = 0; i < sortKeys.length; i++) {
+                skis[i] = new javax.naming.ldap.SortKey(sortKeys[i].getField(), sortKeys[i].isAscendingOrder(),
+                        null);
+            }
+            // We don't want to make this critical... better return unsorted results than nothing.
+            sortControl = new SortControl(skis, Control.NONCRITICAL);
+        }
+        if (sortControl == null) {
+            return new Control[] { new PagedResultsControl(size, cookie, Control.CRITICAL) };
+        } else {
+            return new Control[] { new PagedResultsControl(size, cookie, Control.CRITICAL), sortControl };
+        }
+    }
+
     private PagedResultsResponseControl getPagedControl(final Control[] controls) {
         if (controls != null) {
             for (Control control : controls) {
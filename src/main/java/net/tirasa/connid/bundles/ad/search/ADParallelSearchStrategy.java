@@ -0,0 +1,244 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.ad.search;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapContext;
+import net.tirasa.connid.bundles.ad.ADConfiguration;
+import net.tirasa.connid.bundles.ad.ADConnection;
+import net.tirasa.connid.bundles.ldap.search.LdapSearchResultsHandler;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+/**
+ * Search the given base DNs concurrently, each on its own pooled context; results are handed to the provided
+ * handler by the calling thread only.
+ */
+public class ADParallelSearchStrategy extends ADDefaultSearchStrategy {
+
+    private static final Log LOG = Log.getLog(ADParallelSearchStrategy.class);
+
+    /**
+     * Maximum number of search results waiting to be handled.
+     */
+    private static final int QUEUE_CAPACITY = 1000;
+
+    private static final long OFFER_TIMEOUT_MILLIS = 100L;
+
+    private final ADConnection conn;
+
+    private final int parallelism;
+
+    public ADParallelSearchStrategy(
+            final ADConnection conn, final boolean ignoreNonExistingBaseDNs, final int parallelism) {
+
+        super(ignoreNonExistingBaseDNs,
+                ((ADConfiguration) conn.getConfiguration()).getSearchPageSize(),
+                ((ADConfiguration) conn.getConfiguration()).isAdaptivePageSize(),
+                ((ADConfiguration) conn.getConfiguration()).getTargetPageLatency(),
+                ((ADConfiguration) conn.getConfiguration()).isPagePrefetch() ? conn.getSearchExecutor() : null);
+        this.conn = conn;
+        this.parallelism = parallelism;
+    }
+
+    @Override
+    public void doSearch(
+            final LdapContext initCtx,
+            final List<String> baseDNs,
+            final String query,
+            final SearchControls searchControls,
+            final LdapSearchResultsHandler handler)
+            throws NamingException {
+
+        // each worker pages on its own pooled context, while the caller keeps the one it is holding: without a
+        // pool, all workers would share the same context and overwrite each other's paging controls
+        final int workers = Math.min(
+                Math.min(parallelism, baseDNs.size()),
+                ((ADConfiguration) conn.getConfiguration()).getContextPoolMaxTotal() - 1);
+        if (workers < 2) {
+            super.doSearch(initCtx, baseDNs, query, searchControls, handler);
+            return;
+        }
+
+        if (LOG.isOk()) {
+            LOG.ok("Searching {0} base DNs with {1} concurrent workers", baseDNs.size(), workers);
+        }
+
+        final Queue<String> pending = new ConcurrentLinkedQueue<String>(baseDNs);
+        final BlockingQueue<Object> results = new ArrayBlockingQueue<Object>(QUEUE_CAPACITY);
+        final AtomicBoolean stop = new AtomicBoolean(false);
+
+        for (int i = 0; i < workers; i++) {
+            conn.getSearchExecutor().execute(new Worker(pending, results, stop, query, searchControls));
+        }
+
+        Throwable failure = null;
+        int running = workers;
+        try {
+            while (running > 0) {
+                final Object item = results.take();
+
+                if (item instanceof Done) {
+                    running--;
+                    if (failure == null && ((Done) item).failure != null) {
+                        failure = ((Done) item).failure;
+                        stop.set(true);
+                    }
+                } else if (!stop.get()) {
+                    final Result result = (Result) item;
+                    if (!handler.handle(result.baseDN, result.result)) {
+                        stop.set(true);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted while searching", e);
+        } finally {
+            // workers still running (if any) must give up
+            stop.set(true);
+        }
+
+        if (failure instanceof NamingException) {
+            throw (NamingException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure != null) {
+            throw new ConnectorException(failure);
+        }
+    }
+
+    private static final class Result {
+
+        private final String baseDN;
+
+        private final SearchResult result;
+
+        Result(final String baseDN, final SearchResult result) {
+            this.baseDN = baseDN;
+            this.result = result;
+        }
+    }
+
+    private static final class Done {
+
+        private final Throwable failure;
+
+        Done(final Throwable failure) {
+            this.failure = failure;
+        }
+    }
+
+    private class Worker implements Runnable {
+
+        private final Queue<String> pending;
+
+        private final BlockingQueue<Object> results;
+
+        private final AtomicBoolean stop;
+
+        private final String query;
+
+        private final SearchControls searchControls;
+
+        Worker(
+                final Queue<String> pending,
+                final BlockingQueue<Object> results,
+                final AtomicBoolean stop,
+                final String query,
+                final SearchControls searchControls) {
+
+            this.pending = pending;
+            this.results = results;
+            this.stop = stop;
+            this.query = query;
+            this.searchControls = searchControls;
+        }
+
+        @Override
+        public void run() {
+            Throwable failure = null;
+            try {
+                conn.acquireContext();
+                try {
+                    final LdapContext ctx = conn.getInitialContext();
+
+                    String baseDN;
+                    while (!stop.get() && (baseDN = pending.poll()) != null) {
+                        ADParallelSearchStrategy.super.doSearch(
+                                ctx,
+                                Collections.singletonList(baseDN),
+                                query,
+                                searchControls,
+                                new LdapSearchResultsHandler() {
+
+                            @Override
+                            public boolean handle(final String baseDN, final SearchResult result) {
+                                return enqueue(new Result(baseDN, result));
+                            }
+                        });
+                    }
+                } finally {
+                    conn.releaseContext();
+                }
+            } catch (Throwable t) {
+                failure = t;
+            } finally {
+                done(failure);
+            }
+        }
+
+        private boolean enqueue(final Result result) {
+            try {
+                while (!stop.get()) {
+                    if (results.offer(result, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                stop.set(true);
+            }
+            return false;
+        }
+
+        private void done(final Throwable failure) {
+            // the caller keeps on draining until all workers are done, hence this will not block forever
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    results.put(new Done(failure));
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
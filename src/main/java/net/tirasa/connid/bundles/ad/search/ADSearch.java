@@ -22,8 +22,10 @@ import com.sun.jndi.ldap.ctl.VirtualListViewControl;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import javax.naming.InvalidNameException;
 import javax.naming.NamingException;
 import javax.naming.directory.SearchControls;
@@ -36,6 +38,7 @@ import net.tirasa.connid.bundles.ad.ADConfiguration;
 import net.tirasa.connid.bundles.ad.ADConnection;
 import net.tirasa.connid.bundles.ad.ADConnector;
 import net.tirasa.connid.bundles.ad.util.ADUtilities;
+import net.tirasa.connid.bundles.ad.util.GroupMembershipResolver;
 import net.tirasa.connid.bundles.ldap.LdapConnection;
 import net.tirasa.connid.bundles.ldap.commons.LdapConstants;
 import net.tirasa.connid.bundles.ldap.search.LdapFilter;
@@ -44,6 +47,8 @@ import net.tirasa.connid.bundles.ldap.search.LdapSearchResultsHandler;
 import net.tirasa.connid.bundles.ldap.search.LdapSearchStrategy;
 import net.tirasa.connid.bundles.ldap.search.LdapSearches;
 import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
 import org.identityconnectors.framework.common.objects.ObjectClass;
 import org.identityconnectors.framework.common.objects.OperationOptions;
 import org.identityconnectors.framework.common.objects.QualifiedUid;
@@ -66,6 +71,8 @@ public class ADSearch {
 
     private final ADUtilities utils;
 
+    private BatchGroupResolutionHandler batchHandler;
+
     private static final Log LOG = Log.getLog(ADSearch.class);
 
     public ADSearch(
@@ -105,23 +112,51 @@ public class ADSearch {
         final String[] attrsToGetOption = options.getAttributesToGet();
         final Set<String> attrsToGet = utils.getAttributesToGet(attrsToGetOption, oclass);
 
-        final LdapInternalSearch search = getInternalSearch(attrsToGet);
+        ((ADConnection) conn).acquireContext();
+        try {
+            final boolean batchGroups = isBatchGroupResolution(attrsToGet);
+            if (batchGroups) {
+                batchHandler = new BatchGroupResolutionHandler(
+                        handler, attrsToGet, ((ADConfiguration) conn.getConfiguration()).getSearchPageSize());
+            }
 
-        search.execute(new LdapSearchResultsHandler() {
+            final LdapInternalSearch search = getInternalSearch(attrsToGet, batchGroups);
 
-            @Override
-            public boolean handle(final String baseDN, final SearchResult result)
-                    throws NamingException {
-                return handler.handle(utils.createConnectorObject(
-                        result.getNameInNamespace(),
-                        result,
-                        attrsToGet,
-                        oclass));
+            if (batchGroups) {
+                search.execute(batchHandler);
+                batchHandler.flush();
+            } else {
+                search.execute(new LdapSearchResultsHandler() {
+
+                    @Override
+                    public boolean handle(final String baseDN, final SearchResult result)
+                            throws NamingException {
+                        return handler.handle(utils.createConnectorObject(
+                                result.getNameInNamespace(),
+                                result,
+                                attrsToGet,
+                                oclass));
+                    }
+                });
             }
-        });
+        } catch (NamingException e) {
+            throw new ConnectorException(e);
+        } finally {
+            ((ADConnection) conn).releaseContext();
+        }
+    }
+
+    private boolean isBatchGroupResolution(final Set<String> attrsToGet) {
+        final ADConfiguration conf = (ADConfiguration) conn.getConfiguration();
+
+        return conf.isBatchGroupResolution()
+                && GroupMembershipResolver.isApplicable(conf)
+                && (attrsToGet.contains(LdapConstants.LDAP_GROUPS_NAME)
+                || attrsToGet.contains(ADConnector.MEMBEROF)
+                || attrsToGet.contains(ADConfiguration.PRIMARY_GROUP_DN_NAME));
     }
 
-    private LdapInternalSearch getInternalSearch(final Set<String> attrsToGet) {
+    private LdapInternalSearch getInternalSearch(final Set<String> attrsToGet, final boolean batchGroups) {
         // This is a bit tricky. If the LdapFilter has an entry DN,
         // we only need to look at that entry and check whether it matches
         // the native filter. Moreover, when looking at the entry DN
@@ -162,6 +197,12 @@ public class ADSearch {
 
         final SearchControls controls = LdapInternalSearch.createDefaultSearchControls();
         final Set<String> ldapAttrsToGet = utils.getLdapAttributesToGet(attrsToGet, oclass);
+        if (batchGroups) {
+            // needed to resolve groups and primary group without further searches per entry
+            ldapAttrsToGet.add(ADConnector.MEMBEROF);
+            ldapAttrsToGet.add(ADConnector.OBJECTSID);
+            ldapAttrsToGet.add(ADConnector.PRIMARYGROUPID);
+        }
 
         controls.setReturningAttributes(ldapAttrsToGet.toArray(new String[ldapAttrsToGet.size()]));
         controls.setSearchScope(searchScope);
@@ -289,18 +330,69 @@ public class ADSearch {
                         options.getPageSize(),
                         options.getPagedResultsCookie(),
                         options.getPagedResultsOffset(),
-                        handler instanceof SearchResultsHandler ? (SearchResultsHandler) handler : null,
-                        options.getSortKeys()
+                        getSearchResultsHandler(),
+                        options.getSortKeys(),
+                        getPrefetchExecutor()
                 );
             } else {
-                result = conn.getConfiguration().newDefaultSearchStrategy(true);
+                result = newDefaultSearchStrategy();
             }
         } else {
-            result = conn.getConfiguration().newDefaultSearchStrategy(true);
+            result = newDefaultSearchStrategy();
         }
         return result;
     }
 
+    private SearchResultsHandler getSearchResultsHandler() {
+        if (!(handler instanceof SearchResultsHandler)) {
+            return null;
+        }
+
+        final SearchResultsHandler searchResultsHandler = (SearchResultsHandler) handler;
+        if (batchHandler == null) {
+            return searchResultsHandler;
+        }
+
+        // entries still buffered for group resolution must be handled before the search result
+        return new SearchResultsHandler() {
+
+            @Override
+            public boolean handle(final ConnectorObject connectorObject) {
+                return searchResultsHandler.handle(connectorObject);
+            }
+
+            @Override
+            public void handleResult(final org.identityconnectors.framework.common.objects.SearchResult result) {
+                try {
+                    batchHandler.flush();
+                } catch (NamingException e) {
+                    throw new ConnectorException(e);
+                }
+                searchResultsHandler.handleResult(result);
+            }
+        };
+    }
+
+    private LdapSearchStrategy newDefaultSearchStrategy() {
+        final ADConfiguration conf = (ADConfiguration) conn.getConfiguration();
+
+        if (conf.getSearchParallelism() > 1) {
+            return new ADParallelSearchStrategy((ADConnection) conn, true, conf.getSearchParallelism());
+        }
+        if (conf.isPagePrefetch()) {
+            return new ADDefaultSearchStrategy(true,
+                    conf.getSearchPageSize(), conf.isAdaptivePageSize(), conf.getTargetPageLatency(),
+                    getPrefetchExecutor());
+        }
+        return conf.newDefaultSearchStrategy(true);
+    }
+
+    private ExecutorService getPrefetchExecutor() {
+        return ((ADConfiguration) conn.getConfiguration()).isPagePrefetch()
+                ? ((ADConnection) conn).getSearchExecutor()
+                : null;
+    }
+
     private static void appendFilter(String filter, StringBuilder toBuilder) {
         if (!isBlank(filter)) {
             final String trimmedUserFilter = filter.trim();
@@ -367,4 +459,57 @@ public class ADSearch {
             throw new IllegalArgumentException("Invalid search scope " + scope);
         }
     }
+
+    /**
+     * Collect search results in batches, resolving group memberships of a whole batch before handling its entries.
+     */
+    private class BatchGroupResolutionHandler implements LdapSearchResultsHandler {
+
+        private final ResultsHandler handler;
+
+        private final Set<String> attrsToGet;
+
+        private final int batchSize;
+
+        private final GroupMembershipResolver memberships;
+
+        private final List<SearchResult> batch = new ArrayList<SearchResult>();
+
+        BatchGroupResolutionHandler(
+                final ResultsHandler handler, final Set<String> attrsToGet, final int batchSize) {
+
+            this.handler = handler;
+            this.attrsToGet = attrsToGet;
+            this.batchSize = Math.max(1, batchSize);
+            this.memberships = new GroupMembershipResolver((ADConnection) conn, utils);
+        }
+
+        @Override
+        public boolean handle(final String baseDN, final SearchResult result) throws NamingException {
+            batch.add(result);
+            return batch.size() < batchSize || flush();
+        }
+
+        public boolean flush() throws NamingException {
+            if (batch.isEmpty()) {
+                return true;
+            }
+
+            memberships.resolve(batch);
+
+            boolean proceed = true;
+            for (Iterator<SearchResult> iter = batch.iterator(); proceed && iter.hasNext();) {
+                final SearchResult result = iter.next();
+                proceed = handler.handle(utils.createConnectorObject(
+                        result.getNameInNamespace(),
+                        result,
+                        attrsToGet,
+                        oclass,
+                        memberships));
+            }
+            batch.clear();
+
+            return proceed;
+        }
+    }
 }
@@ -0,0 +1,175 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.ad.search;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+/**
+ * A page of search results, fully read from the server, so that the next page can be requested (possibly in
+ * background) while this one is being handled.
+ */
+class ADSearchPage {
+
+    private static final Log LOG = Log.getLog(ADSearchPage.class);
+
+    private final List<SearchResult> results = new ArrayList<SearchResult>();
+
+    private Control[] responseControls;
+
+    private long elapsed;
+
+    public List<SearchResult> getResults() {
+        return results;
+    }
+
+    public Control[] getResponseControls() {
+        return responseControls;
+    }
+
+    /**
+     * @return time spent fetching this page (milliseconds).
+     */
+    public long getElapsed() {
+        return elapsed;
+    }
+
+    /**
+     * Fetch a page: the given context must not be used by others until this method returns.
+     *
+     * @param ctx context
+     * @param baseDN search base DN
+     * @param query search filter
+     * @param searchControls search controls
+     * @param requestControls request controls, including paging
+     * @return fetched page
+     * @throws NamingException if the search fails
+     */
+    public static ADSearchPage fetch(
+            final LdapContext ctx,
+            final String baseDN,
+            final String query,
+            final SearchControls searchControls,
+            final Control[] requestControls)
+            throws NamingException {
+
+        final ADSearchPage page = new ADSearchPage();
+
+        final long start = System.currentTimeMillis();
+
+        ctx.setRequestControls(requestControls);
+        final NamingEnumeration<SearchResult> results = ctx.search(baseDN, query, searchControls);
+        try {
+            // hasMore call for referral resolution ... it fails with AD
+            while (results.hasMoreElements()) {
+                page.results.add(results.next());
+            }
+        } finally {
+            results.close();
+        }
+        page.responseControls = ctx.getResponseControls();
+
+        page.elapsed = System.currentTimeMillis() - start;
+        return page;
+    }
+
+    /**
+     * Fetch a page in background: the given context must not be used by others until the returned page is obtained
+     * via {@link #get(Future)} or discarded via {@link #discard(Future)}.
+     *
+     * @param executor executor
+     * @param ctx context
+     * @param baseDN search base DN
+     * @param query search filter
+     * @param searchControls search controls
+     * @param requestControls request controls, including paging
+     * @return the page being fetched
+     */
+    public static Future<ADSearchPage> prefetch(
+            final ExecutorService executor,
+            final LdapContext ctx,
+            final String baseDN,
+            final String query,
+            final SearchControls searchControls,
+            final Control[] requestControls) {
+
+        return executor.submit(new Callable<ADSearchPage>() {
+
+            @Override
+            public ADSearchPage call() throws NamingException {
+                return fetch(ctx, baseDN, query, searchControls, requestControls);
+            }
+        });
+    }
+
+    public static ADSearchPage get(final Future<ADSearchPage> future) throws NamingException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            // let the fetch complete before giving the context back
+            discard(future);
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted while waiting for the next page", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof NamingException) {
+                throw (NamingException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ConnectorException(e.getCause());
+        }
+    }
+
+    /**
+     * Wait for the page being fetched to complete, ignoring its content.
+     *
+     * @param future page being fetched, if any
+     */
+    public static void discard(final Future<ADSearchPage> future) {
+        if (future == null) {
+            return;
+        }
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                future.get();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException e) {
+                LOG.ok(e.getCause(), "Discarded page fetch failed");
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
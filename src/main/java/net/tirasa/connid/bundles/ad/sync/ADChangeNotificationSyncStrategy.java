@@ -0,0 +1,149 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.ad.sync;
+
+import java.util.HashMap;
+import java.util.Map;
+import net.tirasa.connid.bundles.ad.ADConnection;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.spi.SyncTokenResultsHandler;
+
+/**
+ * DirSync based synchronization driven by change notifications: as long as no change was notified since the
+ * previous synchronization of an object class, the latter is answered without querying the server; otherwise, or
+ * whenever the notification searches were (re)opened in the meantime, the changes are caught up via DirSync.
+ */
+public class ADChangeNotificationSyncStrategy extends ADSyncStrategy {
+
+    private static final Log LOG = Log.getLog(ADChangeNotificationSyncStrategy.class);
+
+    /**
+     * Notifier state as of the beginning of the last synchronization, with the token it returned.
+     */
+    private static final class Checkpoint {
+
+        private final SyncToken token;
+
+        private final long changes;
+
+        private final long epoch;
+
+        /**
+         * Whether the notification searches of this epoch were already open when the previous synchronization
+         * started: only then the server is known to have registered them before this synchronization read changes.
+         */
+        private final boolean confirmed;
+
+        Checkpoint(final SyncToken token, final long changes, final long epoch, final boolean confirmed) {
+            this.token = token;
+            this.changes = changes;
+            this.epoch = epoch;
+            this.confirmed = confirmed;
+        }
+    }
+
+    /**
+     * Keeps track of the latest token handed to the wrapped handler.
+     */
+    private static final class TokenTracker implements SyncTokenResultsHandler {
+
+        private final SyncResultsHandler handler;
+
+        private SyncToken latest;
+
+        TokenTracker(final SyncResultsHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public boolean handle(final SyncDelta delta) {
+            latest = delta.getToken();
+            return handler.handle(delta);
+        }
+
+        @Override
+        public void handleResult(final SyncToken token) {
+            latest = token;
+            if (handler instanceof SyncTokenResultsHandler) {
+                SyncTokenResultsHandler.class.cast(handler).handleResult(token);
+            }
+        }
+    }
+
+    private final ADChangeNotifier notifier;
+
+    private final Map<ObjectClass, Checkpoint> checkpoints = new HashMap<ObjectClass, Checkpoint>();
+
+    public ADChangeNotificationSyncStrategy(final ADConnection conn) {
+        super(conn);
+        this.notifier = new ADChangeNotifier(conn);
+    }
+
+    @Override
+    public void sync(
+            final SyncToken token,
+            final SyncResultsHandler handler,
+            final OperationOptions options,
+            final ObjectClass oclass) {
+
+        notifier.start();
+
+        final boolean listening = notifier.isListening();
+        final long changes = notifier.getChangeCount(oclass);
+        final long epoch = notifier.getEpoch();
+
+        final Checkpoint checkpoint;
+        synchronized (checkpoints) {
+            checkpoint = checkpoints.get(oclass);
+        }
+
+        if (listening && token != null && checkpoint != null && checkpoint.confirmed
+                && token.equals(checkpoint.token) && checkpoint.changes == changes && checkpoint.epoch == epoch) {
+
+            LOG.ok("No change notified for {0} since last synchronization", oclass);
+            if (handler instanceof SyncTokenResultsHandler) {
+                SyncTokenResultsHandler.class.cast(handler).handleResult(token);
+            }
+            return;
+        }
+
+        final TokenTracker tracker = new TokenTracker(handler);
+        super.sync(token, tracker, options, oclass);
+
+        // changes notified from now on will be caught up by the next synchronization
+        synchronized (checkpoints) {
+            if (listening && tracker.latest != null) {
+                // the epoch is incremented right before (re)issuing the searches, which the server registers only later
+                // on: changes committed in between are neither notified nor read by a synchronization started
+                // meanwhile, hence the first one after each epoch change does not allow skipping the next
+                checkpoints.put(oclass, new Checkpoint(tracker.latest, changes, epoch,
+                        checkpoint != null && checkpoint.epoch == epoch));
+            } else {
+                checkpoints.remove(oclass);
+            }
+        }
+    }
+
+    @Override
+    public void dispose() {
+        notifier.stop();
+    }
+}
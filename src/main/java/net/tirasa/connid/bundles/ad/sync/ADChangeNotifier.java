@@ -0,0 +1,313 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.ad.sync;
+
+import static net.tirasa.connid.bundles.ldap.commons.LdapUtil.isUnderContexts;
+import static net.tirasa.connid.bundles.ldap.commons.LdapUtil.quietCreateLdapName;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.LdapName;
+import net.tirasa.connid.bundles.ad.ADConfiguration;
+import net.tirasa.connid.bundles.ad.ADConnection;
+import net.tirasa.connid.bundles.ad.util.DeletedControl;
+import net.tirasa.connid.bundles.ad.util.DirSyncUtils;
+import net.tirasa.connid.bundles.ad.util.NotifyControl;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+
+/**
+ * Keeps Active Directory change notification searches open on the naming contexts of the configured base contexts,
+ * counting the notified changes of users and groups.
+ * Change notification searches must be issued with <tt>(objectClass=*)</tt> filter, and subtree scope is only allowed
+ * at the root of a naming context: notifications are then matched against the base contexts to synchronize.
+ * A change notified for a group is counted for users too, since user synchronization reports memberships.
+ */
+public class ADChangeNotifier {
+
+    private static final Log LOG = Log.getLog(ADChangeNotifier.class);
+
+    private static final long MIN_RECONNECT_DELAY_MILLIS = 1000L;
+
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 60000L;
+
+    private static final String NAMING_CONTEXTS = "namingContexts";
+
+    private static final String LAST_KNOWN_PARENT = "lastKnownParent";
+
+    private static final String[] NOTIFIED_ATTRIBUTES = new String[] { "objectClass", LAST_KNOWN_PARENT };
+
+    private final ADConnection conn;
+
+    private final List<LdapName> baseContexts = new ArrayList<LdapName>();
+
+    private final AtomicLong userChanges = new AtomicLong();
+
+    private final AtomicLong groupChanges = new AtomicLong();
+
+    /**
+     * Incremented whenever a notification search is (re)issued: changes occurred while disconnected are lost.
+     */
+    private final AtomicLong epoch = new AtomicLong();
+
+    private final AtomicInteger listening = new AtomicInteger();
+
+    private final List<Watcher> watchers = new ArrayList<Watcher>();
+
+    private volatile boolean running = false;
+
+    public ADChangeNotifier(final ADConnection conn) {
+        this.conn = conn;
+
+        for (String baseContextDn : conn.getConfiguration().getBaseContextsToSynchronize()) {
+            baseContexts.add(quietCreateLdapName(baseContextDn));
+        }
+    }
+
+    /**
+     * Open the change notification searches, unless already open.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+
+        final Set<String> namingContexts = new LinkedHashSet<String>();
+        final LdapContext ctx = conn.getSyncContext(null);
+        try {
+            final List<LdapName> rootNamingContexts = new ArrayList<LdapName>();
+            if (ctx != null) {
+                final Attribute attr = ctx.getAttributes("", new String[] { NAMING_CONTEXTS }).get(NAMING_CONTEXTS);
+                if (attr != null) {
+                    final NamingEnumeration<?> values = attr.getAll();
+                    while (values.hasMore()) {
+                        rootNamingContexts.add(quietCreateLdapName(values.next().toString()));
+                    }
+                }
+            }
+
+            for (LdapName baseContext : baseContexts) {
+                final LdapName namingContext = DirSyncUtils.getNamingContext(baseContext, rootNamingContexts);
+                namingContexts.add(namingContext == null ? baseContext.toString() : namingContext.toString());
+            }
+        } catch (NamingException e) {
+            LOG.error(e, "While reading naming contexts, watching base contexts instead");
+            for (LdapName baseContext : baseContexts) {
+                namingContexts.add(baseContext.toString());
+            }
+        } finally {
+            conn.releaseSyncContext(ctx);
+        }
+
+        for (String namingContext : namingContexts) {
+            final Watcher watcher = new Watcher(namingContext);
+            watchers.add(watcher);
+
+            final Thread thread = new Thread(watcher, "ad-notify-" + watchers.size());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Close the change notification searches.
+     */
+    public synchronized void stop() {
+        running = false;
+        for (Watcher watcher : watchers) {
+            watcher.stop();
+        }
+        watchers.clear();
+    }
+
+    /**
+     * @return whether all the change notification searches are currently open.
+     */
+    public synchronized boolean isListening() {
+        return running && !watchers.isEmpty() && listening.get() == watchers.size();
+    }
+
+    public long getEpoch() {
+        return epoch.get();
+    }
+
+    /**
+     * @param oclass object class.
+     * @return number of changes notified so far for the given object class.
+     */
+    public long getChangeCount(final ObjectClass oclass) {
+        return ObjectClass.GROUP.equals(oclass) ? groupChanges.get() : userChanges.get();
+    }
+
+    /**
+     * Count the notified change, if relevant for synchronization.
+     *
+     * @param dn distinguished name of the changed entry.
+     * @param attrs notified attributes of the changed entry (<tt>objectClass</tt> and, for deleted entries,
+     * <tt>lastKnownParent</tt>).
+     */
+    public void notified(final String dn, final Attributes attrs) {
+        boolean relevant = isUnderContexts(quietCreateLdapName(dn), baseContexts);
+
+        final Attribute lastKnownParent = attrs.get(LAST_KNOWN_PARENT);
+        try {
+            if (!relevant && lastKnownParent != null && lastKnownParent.get() != null) {
+                relevant = isUnderContexts(quietCreateLdapName(lastKnownParent.get().toString()), baseContexts);
+            }
+
+            final Attribute objectClass = attrs.get("objectClass");
+            if (!relevant || objectClass == null) {
+                return;
+            }
+
+            if (contains(objectClass, "group")) {
+                groupChanges.incrementAndGet();
+                userChanges.incrementAndGet();
+            } else if (contains(objectClass, "user")) {
+                userChanges.incrementAndGet();
+            }
+        } catch (NamingException e) {
+            LOG.warn(e, "Could not read notified attributes of {0}, assuming changed", dn);
+            groupChanges.incrementAndGet();
+            userChanges.incrementAndGet();
+        }
+    }
+
+    private static boolean contains(final Attribute attr, final String value) throws NamingException {
+        final NamingEnumeration<?> values = attr.getAll();
+        while (values.hasMore()) {
+            if (value.equalsIgnoreCase(values.next().toString())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private final class Watcher implements Runnable {
+
+        private final String namingContext;
+
+        private volatile boolean stopped = false;
+
+        private volatile LdapContext ctx;
+
+        private volatile NamingEnumeration<SearchResult> results;
+
+        Watcher(final String namingContext) {
+            this.namingContext = namingContext;
+        }
+
+        @Override
+        public void run() {
+            long delay = MIN_RECONNECT_DELAY_MILLIS;
+
+            while (!stopped) {
+                final long started = System.currentTimeMillis();
+                try {
+                    listen();
+                } catch (NamingException e) {
+                    if (!stopped) {
+                        LOG.warn(e, "Change notification search on {0} interrupted", namingContext);
+                    }
+                } catch (RuntimeException e) {
+                    LOG.error(e, "Change notification search on {0} failed", namingContext);
+                }
+
+                if (!stopped) {
+                    // back off only when reconnecting fails right away
+                    delay = System.currentTimeMillis() - started > MAX_RECONNECT_DELAY_MILLIS
+                            ? MIN_RECONNECT_DELAY_MILLIS
+                            : Math.min(delay * 2, MAX_RECONNECT_DELAY_MILLIS);
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void listen() throws NamingException {
+            final ADConfiguration conf = (ADConfiguration) conn.getConfiguration();
+
+            ctx = conn.getSyncContext(conf.isRetrieveDeletedUser() || conf.isRetrieveDeletedGroup()
+                    ? new Control[] { new NotifyControl(), new DeletedControl() }
+                    : new Control[] { new NotifyControl() });
+            if (ctx == null) {
+                throw new NamingException("Could not create change notification context");
+            }
+
+            final SearchControls searchCtls = new SearchControls();
+            searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+            searchCtls.setReturningAttributes(NOTIFIED_ATTRIBUTES);
+
+            // the search call only returns with the first notification: count it as listening from now on, although
+            // the server registers the search a little later (see ADChangeNotificationSyncStrategy)
+            listening.incrementAndGet();
+            epoch.incrementAndGet();
+            try {
+                LOG.ok("Listening for changes on {0}", namingContext);
+
+                results = ctx.search(namingContext, "(objectClass=*)", searchCtls);
+                while (!stopped && results.hasMore()) {
+                    final SearchResult result = results.next();
+                    if (LOG.isOk()) {
+                        LOG.ok("Change notified for {0}", result.getNameInNamespace());
+                    }
+                    notified(result.getNameInNamespace(), result.getAttributes());
+                }
+            } finally {
+                listening.decrementAndGet();
+                close();
+            }
+        }
+
+        private synchronized void close() {
+            final NamingEnumeration<SearchResult> current = results;
+            results = null;
+            if (current != null) {
+                try {
+                    current.close();
+                } catch (NamingException e) {
+                    LOG.ok(e, "Failure abandoning change notification search");
+                }
+            }
+
+            final LdapContext currentCtx = ctx;
+            ctx = null;
+            conn.invalidateSyncContext(currentCtx);
+        }
+
+        void stop() {
+            stopped = true;
+            close();
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.ad.sync;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapContext;
+import net.tirasa.connid.bundles.ad.ADConnection;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
+
+/**
+ * Pipelined handling of DirSync changes: windows of changes, as submitted by the DirSync reader, are turned into
+ * deltas (profile re-read, filter verification, connector object creation) concurrently by a pool of workers, each
+ * on its own context; the resulting deltas are handed to the handler by the calling thread, in the same order as
+ * the changes were read.
+ */
+class ADSyncPipeline {
+
+    private static final Log LOG = Log.getLog(ADSyncPipeline.class);
+
+    private static final Object END = new Object();
+
+    private static final long OFFER_TIMEOUT_MILLIS = 100L;
+
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 5L;
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger(0);
+
+    private final ADConnection conn;
+
+    private final ObjectClass oclass;
+
+    private final Collection<String> attrsToGet;
+
+    private final ExecutorService workers;
+
+    private final List<LdapContext> allContexts = new ArrayList<LdapContext>();
+
+    private final BlockingQueue<LdapContext> contexts;
+
+    private static final class Window {
+
+        private final Future<List<SyncDelta>> deltas;
+
+        /**
+         * Token of the server batch completed by this window, if any.
+         */
+        private final SyncToken batchToken;
+
+        Window(final Future<List<SyncDelta>> deltas, final SyncToken batchToken) {
+            this.deltas = deltas;
+            this.batchToken = batchToken;
+        }
+    }
+
+    /**
+     * Windows being computed, in reading order, followed by either {@link #END} or the reader failure.
+     */
+    private final BlockingQueue<Object> pending;
+
+    /**
+     * Reader and workers must give up.
+     */
+    private final AtomicBoolean stop = new AtomicBoolean(false);
+
+    /**
+     * Nobody is going to consume pending deltas anymore.
+     */
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    ADSyncPipeline(
+            final ADConnection conn,
+            final ObjectClass oclass,
+            final Collection<String> attrsToGet,
+            final int workerCount) {
+
+        this.conn = conn;
+        this.oclass = oclass;
+        this.attrsToGet = attrsToGet;
+
+        this.contexts = new ArrayBlockingQueue<LdapContext>(workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            final LdapContext ctx = conn.getSyncContext(null);
+            if (ctx == null) {
+                closeContexts();
+                throw new ConnectorException("Could not create synchronization context");
+            }
+            allContexts.add(ctx);
+            contexts.add(ctx);
+        }
+
+        this.workers = Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "ad-sync-" + THREAD_COUNT.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        // at most two windows per worker waiting to be emitted
+        this.pending = new ArrayBlockingQueue<Object>(2 * workerCount);
+    }
+
+    /**
+     * Submit the given changes, waiting if too many are already pending; to be invoked by the reader.
+     *
+     * @param changes changes as returned by DirSync
+     * @param token token for the changes
+     * @param lastToken token for the last change, if different
+     */
+    void submit(final List<SearchResult> changes, final SyncToken token, final SyncToken lastToken) {
+        if (stop.get()) {
+            throw new ConnectorException("Synchronization interrupted");
+        }
+
+        final List<SearchResult> window = new ArrayList<SearchResult>(changes);
+        final Future<List<SyncDelta>> deltas = workers.submit(new Callable<List<SyncDelta>>() {
+
+            @Override
+            public List<SyncDelta> call() throws Exception {
+                return computeDeltas(window, token, lastToken);
+            }
+        });
+
+        if (!put(new Window(deltas, lastToken))) {
+            deltas.cancel(true);
+            throw new ConnectorException("Synchronization interrupted");
+        }
+    }
+
+    /**
+     * Signal that no more changes will be submitted; to be invoked by the reader.
+     *
+     * @param failure reader failure, if any
+     */
+    void readerDone(final Throwable failure) {
+        put(failure == null ? END : failure);
+    }
+
+    /**
+     * Hand the deltas to the given handler, in reading order, until the reader is done or the handler asks to stop.
+     *
+     * @param handler sync results handler
+     * @param token token the synchronization started from
+     * @return token of the last delta or completed batch handed to the handler, or the given token if none
+     */
+    SyncToken emit(final SyncResultsHandler handler, final SyncToken token) {
+        Throwable failure = null;
+        int count = 0;
+        SyncToken emitted = token;
+
+        boolean readerDone = false;
+        try {
+            while (!readerDone) {
+                final Object item = pending.take();
+
+                if (item == END) {
+                    readerDone = true;
+                } else if (item instanceof Throwable) {
+                    readerDone = true;
+                    // when stopped, the reader just gave up
+                    if (failure == null && !stop.get()) {
+                        failure = (Throwable) item;
+                    }
+                } else if (stop.get()) {
+                    ((Window) item).deltas.cancel(true);
+                } else {
+                    final Window window = (Window) item;
+                    try {
+                        for (SyncDelta delta : window.deltas.get()) {
+                            count++;
+                            emitted = delta.getToken();
+                            if (!handler.handle(delta)) {
+                                stop.set(true);
+                                break;
+                            }
+                        }
+                        if (!stop.get() && window.batchToken != null) {
+                            // the window completed a batch, possibly with no deltas
+                            emitted = window.batchToken;
+                        }
+                    } catch (ExecutionException e) {
+                        failure = e.getCause();
+                        stop.set(true);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted while synchronizing", e);
+        } finally {
+            stop.set(true);
+            closed.set(true);
+        }
+
+        if (LOG.isOk()) {
+            LOG.ok("Emitted {0} deltas", count);
+        }
+
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure != null) {
+            throw new ConnectorException("While synchronizing changes", failure);
+        }
+
+        return emitted;
+    }
+
+    void close() {
+        stop.set(true);
+        closed.set(true);
+
+        workers.shutdownNow();
+        try {
+            if (!workers.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                LOG.warn("Synchronization workers still running");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        closeContexts();
+    }
+
+    private List<SyncDelta> computeDeltas(
+            final List<SearchResult> window, final SyncToken token, final SyncToken lastToken)
+            throws InterruptedException {
+
+        final List<SyncDelta> deltas = new ArrayList<SyncDelta>();
+        if (stop.get()) {
+            return deltas;
+        }
+
+        final LdapContext ctx = contexts.take();
+        try {
+            // lookups performed while building connector objects go through pooled contexts, if configured
+            conn.acquireContext();
+            try {
+                // the strategy keeps per-window state, hence a new instance for each window
+                new ADSyncStrategy(conn).handleSyncDeltas(ctx, oclass, window, attrsToGet, token, lastToken,
+                        new SyncResultsHandler() {
+
+                    @Override
+                    public boolean handle(final SyncDelta delta) {
+                        deltas.add(delta);
+                        return true;
+                    }
+                });
+            } finally {
+                conn.releaseContext();
+            }
+        } finally {
+            contexts.put(ctx);
+        }
+
+        return deltas;
+    }
+
+    private boolean put(final Object item) {
+        try {
+            while (!closed.get()) {
+                if (pending.offer(item, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stop.set(true);
+        }
+        return false;
+    }
+
+    private void closeContexts() {
+        for (LdapContext ctx : allContexts) {
+            conn.releaseSyncContext(ctx);
+        }
+        allContexts.clear();
+    }
+}
@@ -16,12 +16,22 @@
 package net.tirasa.connid.bundles.ad.sync;
 
 import static net.tirasa.connid.bundles.ad.ADConnector.OBJECTGUID;
+import static net.tirasa.connid.bundles.ad.ADConnector.OBJECTSID;
 
 import com.sun.jndi.ldap.ctl.DirSyncResponseControl;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
@@ -31,12 +41,13 @@ import javax.naming.directory.SearchResult;
 import javax.naming.ldap.Control;
 import javax.naming.ldap.LdapContext;
 import net.tirasa.adsddl.ntsd.controls.SDFlagsControl;
-import net.tirasa.adsddl.ntsd.controls.DirSyncControl;
 import net.tirasa.adsddl.ntsd.utils.GUID;
+import net.tirasa.adsddl.ntsd.utils.Hex;
 import net.tirasa.connid.bundles.ad.ADConfiguration;
 import net.tirasa.connid.bundles.ad.ADConnection;
 import net.tirasa.connid.bundles.ad.util.ADUtilities;
 import net.tirasa.connid.bundles.ad.util.DeletedControl;
+import net.tirasa.connid.bundles.ad.util.DirSyncRequestControl;
 import net.tirasa.connid.bundles.ad.util.DirSyncUtils;
 import net.tirasa.connid.bundles.ldap.search.LdapInternalSearch;
 import org.identityconnectors.common.StringUtil;
@@ -64,11 +75,23 @@ public class ADSyncStrategy {
      */
     private static final byte[] EMPTY_COOKIE = new byte[0];
 
-    private final transient ADConnection conn;
+    /**
+     * Maximum number of deltas waiting to be handled, with parallel sync.
+     */
+    private static final int QUEUE_CAPACITY = 1000;
+
+    private static final long OFFER_TIMEOUT_MILLIS = 100L;
+
+    protected final transient ADConnection conn;
 
     private transient SyncToken latestSyncToken;
 
-    private final ADUtilities utils;
+    /**
+     * Current profiles of the changes being handled, as read by the batched search, by GUID.
+     */
+    private final Map<String, SearchResult> prefetched = new HashMap<String, SearchResult>();
+
+    protected final ADUtilities utils;
 
     public ADSyncStrategy(final ADConnection conn) {
         this.conn = conn;
@@ -131,6 +154,39 @@ public class ADSyncStrategy {
             final OperationOptions options,
             final ObjectClass oclass) {
 
+        conn.acquireContext();
+        try {
+            doSync(token, handler, options, oclass);
+        } finally {
+            conn.releaseContext();
+        }
+    }
+
+    private void doSync(
+            final SyncToken token,
+            final SyncResultsHandler handler,
+            final OperationOptions options,
+            final ObjectClass oclass) {
+
+        if (((ADConfiguration) conn.getConfiguration()).isParallelSync()) {
+            parallelSync(token, handler, options, oclass);
+            return;
+        }
+
+        if (((ADConfiguration) conn.getConfiguration()).getSyncWorkers() > 0) {
+            pipelinedSync(token, handler, options, oclass);
+            return;
+        }
+
+        // checkpoints require changes to be read one server batch at a time, the last delta of each batch carrying
+        // the cookie returned for the batch
+        if (((ADConfiguration) conn.getConfiguration()).isStreamingSync()
+                || ((ADConfiguration) conn.getConfiguration()).isSyncCheckpoints()) {
+
+            streamingSync(token, handler, options, oclass);
+            return;
+        }
+
         // -----------------------------------
         // Create basicLdapSearch control
         // -----------------------------------
@@ -156,13 +212,13 @@ public class ADSyncStrategy {
                     LOG.ok("Synchronization with empty token.");
                 }
 
-                ctx = conn.getSyncContext(new Control[] { new DirSyncControl() });
+                ctx = conn.getSyncContext(new Control[] { newDirSyncControl(EMPTY_COOKIE) });
             } else {
                 if (LOG.isOk()) {
                     LOG.ok("Synchronization with token.");
                 }
 
-                ctx = conn.getSyncContext(new Control[] { new DirSyncControl((byte[]) token.getValue()) });
+                ctx = conn.getSyncContext(new Control[] { newDirSyncControl((byte[]) token.getValue()) });
             }
         } catch (Exception e) {
             throw new ConnectorException("Could not set DirSync request controls", e);
@@ -172,6 +228,527 @@ public class ADSyncStrategy {
         // -----------------------------------
         // Create basicLdapSearch filter
         // -----------------------------------
+        final String filter = getFilter(oclass);
+        // -----------------------------------
+
+        final String[] attrsToGetOption = options.getAttributesToGet();
+        final Set<String> attrsToGet = utils.getAttributesToGet(attrsToGetOption, oclass);
+
+        try {
+            final List<SearchResult> changes = new ArrayList<SearchResult>(search(ctx, filter, searchCtls, true));
+
+            if (LOG.isOk()) {
+                LOG.ok("Found {0} changes", changes.size());
+            }
+
+            // the last change carries the latest sync token
+            final int windowSize = getWindowSize();
+            for (int i = 0; i < changes.size(); i += windowSize) {
+                final int end = Math.min(i + windowSize, changes.size());
+                handleSyncDeltas(ctx, oclass, changes.subList(i, end), attrsToGet,
+                        token, end == changes.size() ? latestSyncToken : null, handler);
+            }
+        } finally {
+            release(ctx);
+        }
+
+        if (handler instanceof SyncTokenResultsHandler) {
+            SyncTokenResultsHandler.class.cast(handler).handleResult(latestSyncToken);
+        }
+    }
+
+    /**
+     * Streaming sync: for each base context, DirSync searches are re-issued with the returned cookie for as long as
+     * the server reports more data, and each change is handled as soon as it is received.
+     * Every delta but the last of each batch carries the cookie the batch was requested with; the last one (held
+     * back until the batch is complete) carries the cookie returned for the batch: a sync restarted from any
+     * delivered token will then read again at most one batch.
+     * Once the handler asks to stop, no more changes are read and the token of the last delta handled is reported.
+     */
+    private void streamingSync(
+            final SyncToken token,
+            final SyncResultsHandler handler,
+            final OperationOptions options,
+            final ObjectClass oclass) {
+
+        final SearchControls searchCtls = LdapInternalSearch.createDefaultSearchControls();
+        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        searchCtls.setReturningAttributes(null);
+
+        final String filter = getFilter(oclass);
+        final Set<String> attrsToGet = utils.getAttributesToGet(options.getAttributesToGet(), oclass);
+
+        final byte[] initialCookie = token == null || !(token.getValue() instanceof byte[])
+                ? EMPTY_COOKIE
+                : (byte[]) token.getValue();
+
+        // DirSync searches and entry lookups go through distinct contexts, not to mix up their response controls
+        final LdapContext searchCtx = conn.getSyncContext(null);
+        final LdapContext ctx = conn.getSyncContext(null);
+        if (searchCtx == null || ctx == null) {
+            release(searchCtx);
+            release(ctx);
+            throw new ConnectorException("Could not create synchronization context");
+        }
+
+        final StoppableHandler stoppable = new StoppableHandler(handler);
+        try {
+            for (String baseContextDn : conn.getConfiguration().getBaseContextsToSynchronize()) {
+                if (stoppable.stopped) {
+                    break;
+                }
+                streamChanges(searchCtx, ctx, baseContextDn, initialCookie, token,
+                        filter, searchCtls, oclass, attrsToGet, stoppable, null);
+            }
+        } catch (NamingException e) {
+            throw new ConnectorException("While synchronizing changes", e);
+        } finally {
+            release(searchCtx);
+            release(ctx);
+        }
+
+        if (stoppable.stopped) {
+            latestSyncToken = stoppable.stoppedAt;
+        }
+
+        if (handler instanceof SyncTokenResultsHandler) {
+            SyncTokenResultsHandler.class.cast(handler).handleResult(latestSyncToken);
+        }
+    }
+
+    /**
+     * Stream the changes under the given base context, re-issuing the DirSync search with the returned cookie for
+     * as long as the server reports more data.
+     *
+     * @param searchCtx context for DirSync searches
+     * @param ctx context for entry lookups
+     * @param baseContextDn base context to synchronize
+     * @param initialCookie cookie to start from
+     * @param token token for the changes of the first batch, if the initial cookie is empty
+     * @param filter DirSync filter
+     * @param searchCtls search controls
+     * @param oclass object class being synchronized
+     * @param attrsToGet attributes to get
+     * @param handler sync results handler
+     * @param pipeline if not null, changes are submitted to this pipeline rather than handled
+     * @return cookie returned by the last DirSync search
+     * @throws NamingException if anything goes wrong
+     */
+    private byte[] streamChanges(
+            final LdapContext searchCtx,
+            final LdapContext ctx,
+            final String baseContextDn,
+            final byte[] initialCookie,
+            final SyncToken token,
+            final String filter,
+            final SearchControls searchCtls,
+            final ObjectClass oclass,
+            final Collection<String> attrsToGet,
+            final SyncResultsHandler handler,
+            final ADSyncPipeline pipeline)
+            throws NamingException {
+
+        if (LOG.isOk()) {
+            LOG.ok("Streaming changes from " + baseContextDn);
+        }
+
+        final int windowSize = getWindowSize();
+
+        int count = 0;
+        byte[] cookie = initialCookie;
+        boolean moreData = true;
+        while (moreData && !isStopped(handler)) {
+            final SyncToken batchToken = cookie.length == 0 ? token : new SyncToken(cookie);
+
+            searchCtx.setRequestControls(new Control[] { newDirSyncControl(cookie) });
+
+            // changes are handled one window at a time, always keeping at least one change pending
+            final List<SearchResult> pending = new ArrayList<SearchResult>();
+            final NamingEnumeration<SearchResult> answer = searchCtx.search(baseContextDn, filter, searchCtls);
+            try {
+                while (answer.hasMoreElements() && !isStopped(handler)) {
+                    pending.add(answer.nextElement());
+                    if (pending.size() > windowSize) {
+                        final SearchResult last = pending.remove(pending.size() - 1);
+                        handleWindow(ctx, oclass, pending, attrsToGet, batchToken, null, handler, pipeline);
+                        count += pending.size();
+                        pending.clear();
+                        pending.add(last);
+                    }
+                }
+            } finally {
+                answer.close();
+            }
+
+            final DirSyncResponseControl response = getDirSyncResponse(searchCtx);
+            if (response == null) {
+                moreData = false;
+            } else {
+                cookie = response.getCookie();
+                latestSyncToken = new SyncToken(cookie);
+                moreData = response.hasMoreData();
+            }
+
+            handleWindow(ctx, oclass, pending, attrsToGet,
+                    batchToken, response == null ? null : latestSyncToken, handler, pipeline);
+            count += pending.size();
+
+            if (LOG.isOk()) {
+                LOG.ok("Latest sync token set to {0}, more data: {1}", latestSyncToken, moreData);
+            }
+        }
+
+        if (LOG.isOk()) {
+            LOG.ok("Read {0} changes from {1}", count, baseContextDn);
+        }
+
+        return cookie;
+    }
+
+    private static boolean isStopped(final SyncResultsHandler handler) {
+        return handler instanceof StoppableHandler && ((StoppableHandler) handler).stopped;
+    }
+
+    private void handleWindow(
+            final LdapContext ctx,
+            final ObjectClass oclass,
+            final List<SearchResult> changes,
+            final Collection<String> attrsToGet,
+            final SyncToken token,
+            final SyncToken lastToken,
+            final SyncResultsHandler handler,
+            final ADSyncPipeline pipeline) {
+
+        if (pipeline == null) {
+            handleSyncDeltas(ctx, oclass, changes, attrsToGet, token, lastToken, handler);
+        } else {
+            pipeline.submit(changes, token, lastToken);
+        }
+    }
+
+    /**
+     * Hands deltas to the wrapped handler until the latter asks to stop; later deltas are dropped.
+     */
+    private static final class StoppableHandler implements SyncResultsHandler {
+
+        private final SyncResultsHandler handler;
+
+        /**
+         * Token of the last delta handled, if the wrapped handler asked to stop.
+         */
+        private SyncToken stoppedAt;
+
+        private boolean stopped = false;
+
+        StoppableHandler(final SyncResultsHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public boolean handle(final SyncDelta delta) {
+            if (stopped) {
+                return false;
+            }
+
+            if (!handler.handle(delta)) {
+                stopped = true;
+                stoppedAt = delta.getToken();
+            }
+            return !stopped;
+        }
+    }
+
+    /**
+     * Pipelined sync: changes are streamed by a reader thread and turned into deltas by a pool of workers, while
+     * the calling thread hands the deltas to the provided handler in the same order as read.
+     */
+    private void pipelinedSync(
+            final SyncToken token,
+            final SyncResultsHandler handler,
+            final OperationOptions options,
+            final ObjectClass oclass) {
+
+        final SearchControls searchCtls = LdapInternalSearch.createDefaultSearchControls();
+        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        searchCtls.setReturningAttributes(null);
+
+        final String filter = getFilter(oclass);
+        final Set<String> attrsToGet = utils.getAttributesToGet(options.getAttributesToGet(), oclass);
+
+        final byte[] initialCookie = token == null || !(token.getValue() instanceof byte[])
+                ? EMPTY_COOKIE
+                : (byte[]) token.getValue();
+
+        final ADSyncPipeline pipeline = new ADSyncPipeline(
+                conn, oclass, attrsToGet, ((ADConfiguration) conn.getConfiguration()).getSyncWorkers());
+        try {
+            conn.getSearchExecutor().execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    Throwable failure = null;
+
+                    final LdapContext searchCtx = conn.getSyncContext(null);
+                    try {
+                        if (searchCtx == null) {
+                            throw new ConnectorException("Could not create synchronization context");
+                        }
+
+                        // the reader has its own strategy instance, not to share the latest token with the caller
+                        final ADSyncStrategy reader = new ADSyncStrategy(conn);
+                        for (String baseContextDn : conn.getConfiguration().getBaseContextsToSynchronize()) {
+                            reader.streamChanges(searchCtx, null, baseContextDn, initialCookie, token,
+                                    filter, searchCtls, oclass, attrsToGet, null, pipeline);
+                        }
+                    } catch (Throwable t) {
+                        failure = t;
+                    } finally {
+                        release(searchCtx);
+                        pipeline.readerDone(failure);
+                    }
+                }
+            });
+
+            // the reader may be ahead of the deltas actually handed to the handler, hence the emitted token
+            latestSyncToken = pipeline.emit(handler, token);
+        } finally {
+            pipeline.close();
+        }
+
+        if (LOG.isOk()) {
+            LOG.ok("Latest sync token set to {0}", latestSyncToken);
+        }
+
+        if (handler instanceof SyncTokenResultsHandler) {
+            SyncTokenResultsHandler.class.cast(handler).handleResult(latestSyncToken);
+        }
+    }
+
+    /**
+     * Parallel sync: each base context keeps its own DirSync cookie within a {@link CompositeSyncToken} and is
+     * streamed by its own worker, on dedicated contexts; changes are handed to the provided handler by the calling
+     * thread only.
+     * Each delta carries the cookies of all base contexts as delivered so far, so that a sync restarted from any
+     * delivered token will not miss changes from any base context.
+     */
+    private void parallelSync(
+            final SyncToken token,
+            final SyncResultsHandler handler,
+            final OperationOptions options,
+            final ObjectClass oclass) {
+
+        final String[] baseContexts = conn.getConfiguration().getBaseContextsToSynchronize();
+        final Map<String, byte[]> cookies = CompositeSyncToken.getCookies(token, baseContexts);
+
+        final SearchControls searchCtls = LdapInternalSearch.createDefaultSearchControls();
+        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        searchCtls.setReturningAttributes(null);
+
+        final String filter = getFilter(oclass);
+        final Set<String> attrsToGet = utils.getAttributesToGet(options.getAttributesToGet(), oclass);
+
+        final BlockingQueue<Object> deltas = new ArrayBlockingQueue<Object>(QUEUE_CAPACITY);
+        final AtomicBoolean stop = new AtomicBoolean(false);
+
+        for (String baseContextDn : baseContexts) {
+            conn.getSearchExecutor().execute(new SyncWorker(
+                    baseContextDn, cookies.get(baseContextDn), filter, searchCtls, oclass, attrsToGet, deltas, stop));
+        }
+
+        // cookies of all the changes handled so far, by base context
+        final Map<String, byte[]> delivered = new LinkedHashMap<String, byte[]>(cookies);
+
+        Throwable failure = null;
+        // once the handler asked to stop, workers give up and their deltas are dropped: their failures and final
+        // cookies must be ignored, not to report changes never delivered
+        boolean handlerStopped = false;
+        int running = baseContexts.length;
+        try {
+            while (running > 0) {
+                final Object item = deltas.take();
+
+                if (item instanceof SyncDone) {
+                    running--;
+                    final SyncDone done = (SyncDone) item;
+                    if (handlerStopped) {
+                        LOG.ok("Synchronization of {0} stopped", done.baseContextDn);
+                    } else if (done.failure == null) {
+                        delivered.put(done.baseContextDn, done.cookie);
+                    } else if (failure == null) {
+                        failure = done.failure;
+                        stop.set(true);
+                    }
+                } else if (!stop.get()) {
+                    final ContextDelta delta = (ContextDelta) item;
+                    delivered.put(delta.baseContextDn, (byte[]) delta.delta.getToken().getValue());
+
+                    if (!handler.handle(new SyncDeltaBuilder(delta.delta).
+                            setToken(CompositeSyncToken.build(delivered)).build())) {
+
+                        handlerStopped = true;
+                        stop.set(true);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted while synchronizing", e);
+        } finally {
+            // workers still running (if any) must give up
+            stop.set(true);
+        }
+
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure != null) {
+            throw new ConnectorException("While synchronizing changes", failure);
+        }
+
+        latestSyncToken = CompositeSyncToken.build(delivered);
+        if (LOG.isOk()) {
+            LOG.ok("Latest sync token set to {0}", latestSyncToken);
+        }
+
+        if (handler instanceof SyncTokenResultsHandler) {
+            SyncTokenResultsHandler.class.cast(handler).handleResult(latestSyncToken);
+        }
+    }
+
+    /**
+     * @return number of changes to be handled together, sharing the batched read of their current profiles.
+     */
+    private int getWindowSize() {
+        return Math.max(1, ((ADConfiguration) conn.getConfiguration()).getSyncBatchSize());
+    }
+
+    /**
+     * Handle the given changes, reading their current profiles with a single search if batching is enabled.
+     *
+     * @param ctx synchronization context
+     * @param oclass object class being synchronized
+     * @param changes changes as returned by DirSync
+     * @param attrsToGet attributes to get
+     * @param token token for the changes
+     * @param lastToken token for the last change, if different
+     * @param handler sync results handler
+     */
+    void handleSyncDeltas(
+            final LdapContext ctx,
+            final ObjectClass oclass,
+            final List<SearchResult> changes,
+            final Collection<String> attrsToGet,
+            final SyncToken token,
+            final SyncToken lastToken,
+            final SyncResultsHandler handler) {
+
+        if (((ADConfiguration) conn.getConfiguration()).getSyncBatchSize() > 0) {
+            prefetchProfiles(ctx, oclass, changes);
+        }
+
+        try {
+            for (int i = 0; i < changes.size(); i++) {
+                handleSyncDelta(ctx, oclass, changes.get(i), attrsToGet,
+                        i == changes.size() - 1 && lastToken != null ? lastToken : token, handler);
+            }
+        } finally {
+            prefetched.clear();
+        }
+    }
+
+    /**
+     * Read the current profiles of the given changed objects with a single search, folding in the check against the
+     * user (or group) filter: objects not found are then either deleted or not matching the filter, and are left to
+     * the per-object handling.
+     *
+     * @param ctx synchronization context
+     * @param oclass object class being synchronized
+     * @param changes changes as returned by DirSync
+     */
+    private void prefetchProfiles(final LdapContext ctx, final ObjectClass oclass, final List<SearchResult> changes) {
+        final StringBuilder guids = new StringBuilder();
+        for (SearchResult sr : changes) {
+            final Attribute objectGUID = sr.getAttributes().get(OBJECTGUID);
+            final Attribute isDeleted = sr.getAttributes().get("isDeleted");
+            try {
+                if (objectGUID != null && objectGUID.get() != null
+                        && (isDeleted == null || !Boolean.parseBoolean(String.valueOf(isDeleted.get())))) {
+
+                    guids.append('(').append(OBJECTGUID).append('=').
+                            append(Hex.getEscaped((byte[]) objectGUID.get())).append(')');
+                }
+            } catch (NamingException e) {
+                LOG.error(e, "While reading change {0}", sr.getName());
+            }
+        }
+        if (guids.length() == 0) {
+            return;
+        }
+
+        final ADConfiguration conf = (ADConfiguration) conn.getConfiguration();
+
+        final StringBuilder filter = new StringBuilder("(&(|").append(guids).append(')');
+        final Control[] controls;
+        if (oclass.is(ObjectClass.ACCOUNT_NAME)) {
+            filter.append(DirSyncUtils.getUserFilter(conf));
+            controls = new Control[] { new SDFlagsControl(0x00000004) };
+        } else {
+            filter.append("(objectClass=group)");
+            if (StringUtil.isNotBlank(conf.getGroupSearchFilter())) {
+                filter.append(conf.getGroupSearchFilter());
+            }
+            controls = null;
+        }
+        filter.append(')');
+
+        final SearchControls searchCtls = LdapInternalSearch.createDefaultSearchControls();
+        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        searchCtls.setReturningAttributes(null);
+
+        for (String baseContextDn : conf.getBaseContextsToSynchronize()) {
+            try {
+                ctx.setRequestControls(controls);
+
+                final NamingEnumeration<SearchResult> answer = ctx.search(baseContextDn, filter.toString(), searchCtls);
+                try {
+                    while (answer.hasMoreElements()) {
+                        final SearchResult sr = answer.nextElement();
+                        prefetched.put(
+                                GUID.getGuidAsString((byte[]) sr.getAttributes().get(OBJECTGUID).get()), sr);
+                    }
+                } finally {
+                    answer.close();
+                }
+            } catch (NamingException e) {
+                LOG.error(e, "While searching base context {0} with filter {1}", baseContextDn, filter);
+            }
+        }
+
+        if (LOG.isOk()) {
+            LOG.ok("Read {0} current profiles out of {1} changes with a single search",
+                    prefetched.size(), changes.size());
+        }
+    }
+
+    private void handleSyncDelta(
+            final LdapContext ctx,
+            final ObjectClass oclass,
+            final SearchResult sr,
+            final Collection<String> attrsToGet,
+            final SyncToken token,
+            final SyncResultsHandler handler) {
+
+        try {
+            if (oclass.is(ObjectClass.ACCOUNT_NAME)) {
+                handleSyncUDelta(ctx, sr, attrsToGet, token, handler);
+            } else {
+                handleSyncGDelta(ctx, sr, attrsToGet, token, handler);
+            }
+        } catch (NamingException e) {
+            LOG.error(e, "SyncDelta handling for '{0}' failed", sr.getName());
+        }
+    }
+
+    private String getFilter(final ObjectClass oclass) {
         final String filter = oclass.is(ObjectClass.ACCOUNT_NAME)
                 ? // get user filter
                 DirSyncUtils.createDirSyncUFilter((ADConfiguration) conn.getConfiguration(), utils)
@@ -181,44 +758,73 @@ public class ADSyncStrategy {
         if (LOG.isOk()) {
             LOG.ok("Search filter: " + filter);
         }
-        // -----------------------------------
 
-        final String[] attrsToGetOption = options.getAttributesToGet();
-        final Set<String> attrsToGet = utils.getAttributesToGet(attrsToGetOption, oclass);
+        return filter;
+    }
 
-        final Set<SearchResult> changes = search(ctx, filter, searchCtls, true);
+    private Control newDirSyncControl(final byte[] cookie) {
+        final ADConfiguration conf = (ADConfiguration) conn.getConfiguration();
 
-        int count = changes.size();
-        if (LOG.isOk()) {
-            LOG.ok("Found {0} changes", count);
+        int flags = DirSyncRequestControl.OBJECT_SECURITY | DirSyncRequestControl.ANCESTORS_FIRST_ORDER;
+        if (conf.isDirSyncIncrementalValues()) {
+            flags |= DirSyncRequestControl.INCREMENTAL_VALUES;
         }
 
-        if (oclass.is(ObjectClass.ACCOUNT_NAME)) {
-            for (SearchResult sr : changes) {
-                try {
-                    handleSyncUDelta(ctx, sr, attrsToGet, count == 1 ? latestSyncToken : token, handler);
-                    count--;
-                } catch (NamingException e) {
-                    LOG.error(e, "SyncDelta handling for '{0}' failed", sr.getName());
+        return new DirSyncRequestControl(cookie, flags,
+                conf.getDirSyncMaxAttributeCount() > 0 ? conf.getDirSyncMaxAttributeCount() : Integer.MAX_VALUE);
+    }
+
+    private static DirSyncResponseControl getDirSyncResponse(final LdapContext ctx) throws NamingException {
+        final Control[] rspCtls = ctx.getResponseControls();
+        if (rspCtls != null) {
+            for (Control rspCtl : rspCtls) {
+                if (rspCtl instanceof DirSyncResponseControl) {
+                    return (DirSyncResponseControl) rspCtl;
                 }
             }
-        } else {
-            for (SearchResult sr : changes) {
-                try {
-                    handleSyncGDelta(ctx, sr, attrsToGet, count == 1 ? latestSyncToken : token, handler);
-                    count--;
-                } catch (NamingException e) {
-                    LOG.error(e, "SyncDelta handling for '{0}' failed", sr.getName());
+        }
+        return null;
+    }
+
+    private void release(final LdapContext ctx) {
+        conn.releaseSyncContext(ctx);
+    }
+
+    public SyncToken getLatestSyncToken() {
+        final String[] baseContexts = conn.getConfiguration().getBaseContextsToSynchronize();
+
+        if (((ADConfiguration) conn.getConfiguration()).isParallelSync()) {
+            final Map<String, byte[]> cookies = new LinkedHashMap<String, byte[]>();
+            for (String baseContextDn : baseContexts) {
+                final byte[] cookie = getLatestCookie(baseContextDn);
+                if (cookie == null) {
+                    return latestSyncToken;
                 }
+                cookies.put(baseContextDn, cookie);
+            }
+            latestSyncToken = CompositeSyncToken.build(cookies);
+        } else {
+            final byte[] cookie = getLatestCookie(baseContexts[0]);
+            if (cookie != null) {
+                latestSyncToken = new SyncToken(cookie);
             }
         }
 
-        if (handler instanceof SyncTokenResultsHandler) {
-            SyncTokenResultsHandler.class.cast(handler).handleResult(latestSyncToken);
+        if (LOG.isOk()) {
+            LOG.ok("Latest sync token set to {0}", latestSyncToken);
         }
+
+        return latestSyncToken;
     }
 
-    public SyncToken getLatestSyncToken() {
+    /**
+     * Release any resource held by this strategy.
+     */
+    public void dispose() {
+        // nothing to release by default
+    }
+
+    private byte[] getLatestCookie(final String baseContextDn) {
         // -----------------------------------
         // Create basicLdapSearch control
         // -----------------------------------
@@ -227,33 +833,25 @@ public class ADSyncStrategy {
         searchCtls.setReturningAttributes(null);
         // -----------------------------------
 
-        final String baseContextDn = conn.getConfiguration().getBaseContextsToSynchronize()[0];
         final String filter = "(CN=__CONNID-NORES__)";
 
+        byte[] cookie = null;
+
+        final LdapContext ctx = conn.getSyncContext(new Control[] { newDirSyncControl(EMPTY_COOKIE) });
         try {
-            final LdapContext ctx = conn.getSyncContext(new Control[] { new DirSyncControl() });
             ctx.search(baseContextDn, filter, searchCtls);
 
-            final Control[] rspCtls = ctx.getResponseControls();
-
-            if (rspCtls != null) {
-
-                for (Control rspCtl : rspCtls) {
-                    if (rspCtl instanceof DirSyncResponseControl) {
-                        DirSyncResponseControl dirSyncRspCtl = (DirSyncResponseControl) rspCtl;
-                        latestSyncToken = new SyncToken(dirSyncRspCtl.getCookie());
-                    }
-                }
-
-                if (LOG.isOk()) {
-                    LOG.ok("Latest sync token set to {0}", latestSyncToken);
-                }
+            final DirSyncResponseControl response = getDirSyncResponse(ctx);
+            if (response != null) {
+                cookie = response.getCookie();
             }
         } catch (Exception e) {
             LOG.error(e, "While searching for {0} with filter {1} and controls {2}", baseContextDn, filter, searchCtls);
+        } finally {
+            release(ctx);
         }
 
-        return latestSyncToken;
+        return cookie;
     }
 
     @SuppressWarnings("unchecked")
@@ -280,6 +878,9 @@ public class ADSyncStrategy {
 
         final String guid = GUID.getGuidAsString((byte[]) profile.get("objectGUID").get());
 
+        // keep the username cache in line with changes performed outside the connector
+        conn.invalidateCachedUsernames(guid, result.getNameInNamespace());
+
         boolean isDeleted = false;
 
         try {
@@ -299,7 +900,8 @@ public class ADSyncStrategy {
         }
 
         // We need for this beacause DirSync can return an uncomplete profile.
-        profile = ctx.getAttributes("<GUID=" + guid + ">");
+        final SearchResult current = prefetched.remove(guid);
+        profile = current == null ? ctx.getAttributes("<GUID=" + guid + ">") : current.getAttributes();
 
         final Attribute objectClasses = profile.get("objectClass");
 
@@ -315,7 +917,8 @@ public class ADSyncStrategy {
                 LOG.ok("Modified group {0}", result.getNameInNamespace());
             }
 
-            member11 = result.getAttributes().get("member;range=1-1");
+            // with incremental values, only added (1-1) and removed (0-0) members are returned
+            member11 = result.getAttributes().get(conf.isDirSyncIncrementalValues() ? "member;range=1-1" : "member");
             member00 = result.getAttributes().get("member;range=0-0");
 
             ctx.setRequestControls(null);
@@ -374,6 +977,19 @@ public class ADSyncStrategy {
                             attrsToGet));
                 }
 
+            } else if (current != null) {
+                // existing and matching the user filter, as verified by the batched search
+                if (LOG.isOk()) {
+                    LOG.ok("Created/Updated user {0}", current.getNameInNamespace());
+                }
+
+                handler.handle(getSyncDelta(
+                        ObjectClass.ACCOUNT,
+                        current.getNameInNamespace(),
+                        SyncDeltaType.CREATE_OR_UPDATE,
+                        token,
+                        profile,
+                        attrsToGet));
             } else {
                 // user to be created/updated
                 if (LOG.isOk()) {
@@ -439,13 +1055,18 @@ public class ADSyncStrategy {
         }
 
         // We need for this beacause DirSync can return an uncomplete profile.
-        profile = ctx.getAttributes("<GUID=" + guid + ">");
+        final SearchResult current = prefetched.remove(guid);
+        profile = current == null ? ctx.getAttributes("<GUID=" + guid + ">") : current.getAttributes();
 
         final Attribute objectClasses = profile.get("objectClass");
 
         if (objectClasses.contains("group")) {
             final ADConfiguration conf = (ADConfiguration) conn.getConfiguration();
 
+            // the group might have been renamed or deleted
+            final Attribute objectSID = profile.get(OBJECTSID);
+            conn.invalidateGroupDN(objectSID == null ? null : (byte[]) objectSID.get());
+
             if (LOG.isOk()) {
                 LOG.ok("Created/Updated/Deleted group {0}", sr.getNameInNamespace());
             }
@@ -472,12 +1093,22 @@ public class ADSyncStrategy {
                     LOG.ok("Created/Updated group {0}", sr.getNameInNamespace());
                 }
 
-                String userDN = sr.getNameInNamespace();
-
-                handleEntry(
-                        ctx, ObjectClass.GROUP, userDN, conf.getGroupSearchFilter(), handler, token, conf, attrsToGet);
+                if (current == null) {
+                    handleEntry(ctx, ObjectClass.GROUP, sr.getNameInNamespace(), conf.getGroupSearchFilter(),
+                            handler, token, conf, attrsToGet);
+                } else {
+                    // existing and matching the group filter, as verified by the batched search
+                    handler.handle(getSyncDelta(
+                            ObjectClass.GROUP,
+                            current.getNameInNamespace(),
+                            SyncDeltaType.CREATE_OR_UPDATE,
+                            token,
+                            profile,
+                            attrsToGet));
+                }
 
-                final javax.naming.directory.Attribute member11 = sr.getAttributes().get("member;range=1-1");
+                final javax.naming.directory.Attribute member11 = sr.getAttributes().get(
+                        conf.isDirSyncIncrementalValues() ? "member;range=1-1" : "member");
                 final javax.naming.directory.Attribute member00 = sr.getAttributes().get("member;range=0-0");
 
                 ctx.setRequestControls(null);
@@ -520,7 +1151,7 @@ public class ADSyncStrategy {
         }
     }
 
-    private SyncDelta getSyncDelta(
+    protected SyncDelta getSyncDelta(
             final ObjectClass oclass,
             final String entryDN,
             final SyncDeltaType syncDeltaType,
@@ -602,7 +1233,7 @@ public class ADSyncStrategy {
 
         final SyncDeltaType deltaType;
 
-        if (DirSyncUtils.verifyFilter(ctx, dn, filter)) {
+        if (DirSyncUtils.verifyFilter(ctx, dn, profile, filter, conn.getConstructedAttributes())) {
             if (LOG.isOk()) {
                 LOG.ok("Entry {0} - update", dn);
             }
@@ -631,4 +1262,139 @@ public class ADSyncStrategy {
                     attrsToGet));
         }
     }
+
+    private static final class ContextDelta {
+
+        private final String baseContextDn;
+
+        private final SyncDelta delta;
+
+        ContextDelta(final String baseContextDn, final SyncDelta delta) {
+            this.baseContextDn = baseContextDn;
+            this.delta = delta;
+        }
+    }
+
+    private static final class SyncDone {
+
+        private final String baseContextDn;
+
+        private final byte[] cookie;
+
+        private final Throwable failure;
+
+        SyncDone(final String baseContextDn, final byte[] cookie, final Throwable failure) {
+            this.baseContextDn = baseContextDn;
+            this.cookie = cookie;
+            this.failure = failure;
+        }
+    }
+
+    private class SyncWorker implements Runnable {
+
+        private final String baseContextDn;
+
+        private final byte[] initialCookie;
+
+        private final String filter;
+
+        private final SearchControls searchCtls;
+
+        private final ObjectClass oclass;
+
+        private final Collection<String> attrsToGet;
+
+        private final BlockingQueue<Object> deltas;
+
+        private final AtomicBoolean stop;
+
+        SyncWorker(
+                final String baseContextDn,
+                final byte[] initialCookie,
+                final String filter,
+                final SearchControls searchCtls,
+                final ObjectClass oclass,
+                final Collection<String> attrsToGet,
+                final BlockingQueue<Object> deltas,
+                final AtomicBoolean stop) {
+
+            this.baseContextDn = baseContextDn;
+            this.initialCookie = initialCookie;
+            this.filter = filter;
+            this.searchCtls = searchCtls;
+            this.oclass = oclass;
+            this.attrsToGet = attrsToGet;
+            this.deltas = deltas;
+            this.stop = stop;
+        }
+
+        @Override
+        public void run() {
+            byte[] cookie = null;
+            Throwable failure = null;
+
+            // DirSync request controls are context state: each worker uses contexts of its own
+            final LdapContext searchCtx = conn.getSyncContext(null);
+            final LdapContext ctx = conn.getSyncContext(null);
+            try {
+                if (searchCtx == null || ctx == null) {
+                    throw new ConnectorException("Could not create synchronization context");
+                }
+
+                // lookups performed while building deltas go through a pooled context bound to this worker, rather
+                // than through the initial context shared with the calling thread and the other workers
+                conn.acquireContext();
+                try {
+                    // each worker has its own strategy instance, as the latter keeps per-sync state
+                    cookie = new ADSyncStrategy(conn).streamChanges(
+                            searchCtx, ctx, baseContextDn, initialCookie, null, filter, searchCtls, oclass,
+                            attrsToGet, new SyncResultsHandler() {
+
+                        @Override
+                        public boolean handle(final SyncDelta delta) {
+                            enqueue(new ContextDelta(baseContextDn, delta));
+                            return true;
+                        }
+                    }, null);
+                } finally {
+                    conn.releaseContext();
+                }
+            } catch (Throwable t) {
+                failure = t;
+            } finally {
+                release(searchCtx);
+                release(ctx);
+                done(new SyncDone(baseContextDn, cookie, failure));
+            }
+        }
+
+        private void enqueue(final ContextDelta delta) {
+            try {
+                while (!stop.get()) {
+                    if (deltas.offer(delta, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new ConnectorException("Synchronization of " + baseContextDn + " interrupted");
+        }
+
+        private void done(final SyncDone done) {
+            // the caller keeps on draining until all workers are done, hence this will not block forever
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    deltas.put(done);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
 }
@@ -0,0 +1,553 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.ad.sync;
+
+import static net.tirasa.connid.bundles.ldap.commons.LdapUtil.isUnderContexts;
+import static net.tirasa.connid.bundles.ldap.commons.LdapUtil.quietCreateLdapName;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+import net.tirasa.adsddl.ntsd.controls.SDFlagsControl;
+import net.tirasa.connid.bundles.ad.ADConfiguration;
+import net.tirasa.connid.bundles.ad.ADConnection;
+import net.tirasa.connid.bundles.ad.util.DeletedControl;
+import net.tirasa.connid.bundles.ad.util.DirSyncUtils;
+import net.tirasa.connid.bundles.ldap.search.LdapInternalSearch;
+import org.identityconnectors.common.Base64;
+import org.identityconnectors.common.StringUtil;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncDeltaBuilder;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.spi.SyncTokenResultsHandler;
+
+/**
+ * An implementation of the sync operation based on <tt>uSNChanged</tt>, for Active Directory: entries changed since
+ * the last sync are read in full with paged range queries, deleted entries by querying tombstones in the Deleted
+ * Objects container of the naming context of each base context.
+ * Group membership is a linked attribute: adding or removing members updates the <tt>uSNChanged</tt> of the group
+ * only, hence the current members of the groups changed are reported as well when synchronizing accounts. Members
+ * removed from a group, as well as entries moved out of the base contexts, are not reported.
+ * Update sequence numbers are local to each domain controller, hence the sync token keeps a watermark (the
+ * <tt>highestCommittedUSN</tt> at last sync) for each domain controller, identified by its <tt>dsServiceName</tt>:
+ * <tt>usn;base64(dsServiceName):watermark;...</tt>
+ */
+public class ADUSNChangedSyncStrategy extends ADSyncStrategy {
+
+    private static final Log LOG = Log.getLog(ADUSNChangedSyncStrategy.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String TOKEN_PREFIX = "usn";
+
+    private static final String ENTRY_SEPARATOR = ";";
+
+    private static final String WATERMARK_SEPARATOR = ":";
+
+    private static final String DS_SERVICE_NAME = "dsServiceName";
+
+    private static final String HIGHEST_COMMITTED_USN = "highestCommittedUSN";
+
+    private static final String DEFAULT_NAMING_CONTEXT = "defaultNamingContext";
+
+    private static final String NAMING_CONTEXTS = "namingContexts";
+
+    /**
+     * Well-known GUID of the Deleted Objects container of each naming context.
+     */
+    private static final String DELETED_OBJECTS_WKGUID = "18e2ea80684f11d2b9aa00c04f79f805";
+
+    private static final String DISTINGUISHED_NAME = "distinguishedName";
+
+    private static final String MEMBER = "member";
+
+    private static final String MEMBER_RANGE = MEMBER + ";range=";
+
+    private static final String LAST_KNOWN_PARENT = "lastKnownParent";
+
+    private interface ResultHandler {
+
+        /**
+         * @param result search result
+         * @return whether to go on with the search
+         * @throws NamingException if the result could not be handled
+         */
+        boolean handle(SearchResult result) throws NamingException;
+    }
+
+    /**
+     * Hands deltas to the wrapped handler one step behind, so that the last one can carry the new token.
+     */
+    private static final class HoldBackHandler {
+
+        private final SyncResultsHandler handler;
+
+        private SyncDelta last;
+
+        private int count = 0;
+
+        /**
+         * Token of the last delta handled, if the wrapped handler asked to stop.
+         */
+        private SyncToken stoppedAt;
+
+        private boolean stopped = false;
+
+        HoldBackHandler(final SyncResultsHandler handler) {
+            this.handler = handler;
+        }
+
+        /**
+         * @param delta delta to be handled
+         * @return whether the wrapped handler wants to go on
+         */
+        boolean handle(final SyncDelta delta) {
+            if (stopped) {
+                return false;
+            }
+
+            if (last != null && !handler.handle(last)) {
+                stopped = true;
+                stoppedAt = last.getToken();
+                last = null;
+                return false;
+            }
+
+            last = delta;
+            count++;
+            return true;
+        }
+
+        void flush(final SyncToken token) {
+            if (last != null && !stopped) {
+                handler.handle(new SyncDeltaBuilder(last).setToken(token).build());
+                last = null;
+            }
+        }
+    }
+
+    public ADUSNChangedSyncStrategy(final ADConnection conn) {
+        super(conn);
+    }
+
+    @Override
+    public void sync(
+            final SyncToken token,
+            final SyncResultsHandler handler,
+            final OperationOptions options,
+            final ObjectClass oclass) {
+
+        conn.acquireContext();
+        try {
+            doSync(token, handler, options, oclass);
+        } finally {
+            conn.releaseContext();
+        }
+    }
+
+    private void doSync(
+            final SyncToken token,
+            final SyncResultsHandler handler,
+            final OperationOptions options,
+            final ObjectClass oclass) {
+
+        final ADConfiguration conf = (ADConfiguration) conn.getConfiguration();
+        final Set<String> attrsToGet = utils.getAttributesToGet(options.getAttributesToGet(), oclass);
+        final Map<String, Long> watermarks = parseToken(token);
+
+        // paged searches and entry lookups go through distinct contexts, not to mix up their response controls
+        final LdapContext ctx = conn.getSyncContext(null);
+        final LdapContext lookupCtx = conn.getSyncContext(null);
+
+        SyncToken latestSyncToken;
+        final HoldBackHandler holdBack = new HoldBackHandler(handler);
+        try {
+            if (ctx == null || lookupCtx == null) {
+                throw new ConnectorException("Could not create synchronization context");
+            }
+
+            final Attributes rootDSE = ctx.getAttributes("",
+                    new String[] { DS_SERVICE_NAME, HIGHEST_COMMITTED_USN, DEFAULT_NAMING_CONTEXT, NAMING_CONTEXTS });
+            final String dc = rootDSE.get(DS_SERVICE_NAME).get().toString();
+            final long highestCommittedUSN = Long.parseLong(rootDSE.get(HIGHEST_COMMITTED_USN).get().toString());
+
+            final Long watermark = watermarks.get(dc);
+            final long lowerUSN = watermark == null ? 0 : watermark + 1;
+            if (LOG.isOk()) {
+                LOG.ok("Looking for changes on {0} with USN in [{1}, {2}]", dc, lowerUSN, highestCommittedUSN);
+            }
+
+            watermarks.put(dc, highestCommittedUSN);
+            latestSyncToken = buildToken(watermarks);
+
+            final String range = "(uSNChanged>=" + lowerUSN + ")(uSNChanged<=" + highestCommittedUSN + ")";
+            final boolean account = oclass.is(ObjectClass.ACCOUNT_NAME);
+            final String objectClass = account ? "(objectClass=user)" : "(objectClass=group)";
+
+            // changed entries
+            final String verifyFilter = account ? DirSyncUtils.getUserFilter(conf) : conf.getGroupSearchFilter();
+            final boolean retrieveDeleted = account ? conf.isRetrieveDeletedUser() : conf.isRetrieveDeletedGroup();
+            final Set<String> constructed = conn.getConstructedAttributes();
+
+            final List<LdapName> baseContexts = new ArrayList<LdapName>();
+            for (String baseContextDn : conf.getBaseContextsToSynchronize()) {
+                baseContexts.add(quietCreateLdapName(baseContextDn));
+            }
+
+            // entries reported so far, not to report accounts again as members of changed groups
+            final Set<LdapName> reported = new HashSet<LdapName>();
+
+            for (final String baseContextDn : conf.getBaseContextsToSynchronize()) {
+                if (holdBack.stopped) {
+                    break;
+                }
+
+                pagedSearch(ctx, baseContextDn, "(&" + objectClass + range + ")",
+                        account ? new SDFlagsControl(0x00000004) : null, null,
+                        new ResultHandler() {
+
+                    @Override
+                    public boolean handle(final SearchResult result) throws NamingException {
+                        final String dn = result.getNameInNamespace();
+                        reported.add(quietCreateLdapName(dn));
+
+                        // the entry might not match the configured filter anymore
+                        final SyncDeltaType deltaType =
+                                DirSyncUtils.verifyFilter(lookupCtx, dn, result.getAttributes(), verifyFilter,
+                                        constructed)
+                                ? SyncDeltaType.CREATE_OR_UPDATE
+                                : SyncDeltaType.DELETE;
+
+                        return (deltaType == SyncDeltaType.DELETE && !retrieveDeleted)
+                                || holdBack.handle(getSyncDelta(
+                                        oclass, dn, deltaType, token, result.getAttributes(), attrsToGet));
+                    }
+                });
+            }
+
+            // current members of the changed groups
+            if (account) {
+                for (final String baseContextDn : conf.getBaseContextsToSynchronize()) {
+                    if (holdBack.stopped) {
+                        break;
+                    }
+
+                    pagedSearch(ctx, baseContextDn, "(&(objectClass=group)" + range + ")",
+                            null, new String[] { MEMBER },
+                            new ResultHandler() {
+
+                        @Override
+                        public boolean handle(final SearchResult result) throws NamingException {
+                            for (String member : getMembers(lookupCtx, result)) {
+                                final LdapName name = quietCreateLdapName(member);
+                                if (isUnderContexts(name, baseContexts) && reported.add(name) && !handleMember(
+                                        lookupCtx, member, oclass, verifyFilter, constructed, retrieveDeleted,
+                                        token, attrsToGet, holdBack)) {
+
+                                    return false;
+                                }
+                            }
+                            return true;
+                        }
+                    });
+                }
+            }
+
+            // deleted entries, moved under the Deleted Objects container of their naming context
+            if (retrieveDeleted) {
+                for (String namingContext : getNamingContexts(rootDSE, baseContexts)) {
+                    if (holdBack.stopped) {
+                        break;
+                    }
+
+                    pagedSearch(ctx, getDeletedObjectsContainer(ctx, namingContext),
+                            "(&(isDeleted=TRUE)" + objectClass + range + ")",
+                            new DeletedControl(), null,
+                            new ResultHandler() {
+
+                        @Override
+                        public boolean handle(final SearchResult result) throws NamingException {
+                            final Attribute lastKnownParent = result.getAttributes().get(LAST_KNOWN_PARENT);
+                            if (lastKnownParent != null && lastKnownParent.get() != null && isUnderContexts(
+                                    quietCreateLdapName(lastKnownParent.get().toString()), baseContexts)) {
+
+                                return holdBack.handle(getSyncDelta(oclass, result.getNameInNamespace(),
+                                        SyncDeltaType.DELETE, token, result.getAttributes(), attrsToGet));
+                            }
+                            return true;
+                        }
+                    });
+                }
+            }
+
+            holdBack.flush(latestSyncToken);
+
+            if (holdBack.stopped) {
+                // changes after the last one handled must be read again next time
+                latestSyncToken = holdBack.stoppedAt;
+            }
+        } catch (NamingException e) {
+            throw new ConnectorException("While synchronizing changes", e);
+        } finally {
+            conn.releaseSyncContext(ctx);
+            conn.releaseSyncContext(lookupCtx);
+        }
+
+        if (LOG.isOk()) {
+            LOG.ok("Handled {0} changes, latest sync token set to {1}", holdBack.count, latestSyncToken);
+        }
+
+        if (handler instanceof SyncTokenResultsHandler) {
+            SyncTokenResultsHandler.class.cast(handler).handleResult(latestSyncToken);
+        }
+    }
+
+    @Override
+    public SyncToken getLatestSyncToken() {
+        final LdapContext ctx = conn.getSyncContext(null);
+        try {
+            final Attributes rootDSE = ctx.getAttributes("", new String[] { DS_SERVICE_NAME, HIGHEST_COMMITTED_USN });
+
+            final Map<String, Long> watermarks = new LinkedHashMap<String, Long>();
+            watermarks.put(rootDSE.get(DS_SERVICE_NAME).get().toString(),
+                    Long.valueOf(rootDSE.get(HIGHEST_COMMITTED_USN).get().toString()));
+            return buildToken(watermarks);
+        } catch (NamingException e) {
+            throw new ConnectorException("While reading highest committed USN", e);
+        } finally {
+            conn.releaseSyncContext(ctx);
+        }
+    }
+
+    /**
+     * Report the given member of a changed group, if an account.
+     *
+     * @return whether the handler wants to go on
+     */
+    private boolean handleMember(
+            final LdapContext lookupCtx,
+            final String dn,
+            final ObjectClass oclass,
+            final String verifyFilter,
+            final Set<String> constructed,
+            final boolean retrieveDeleted,
+            final SyncToken token,
+            final Collection<String> attrsToGet,
+            final HoldBackHandler holdBack)
+            throws NamingException {
+
+        final Attributes profile;
+        try {
+            lookupCtx.setRequestControls(new Control[] { new SDFlagsControl(0x00000004) });
+            profile = lookupCtx.getAttributes(dn);
+        } catch (NameNotFoundException e) {
+            LOG.ok("Member {0} not found", dn);
+            return true;
+        }
+
+        final Attribute objectClasses = profile.get("objectClass");
+        if (objectClasses == null || !objectClasses.contains("user")) {
+            return true;
+        }
+
+        final SyncDeltaType deltaType = DirSyncUtils.verifyFilter(lookupCtx, dn, profile, verifyFilter, constructed)
+                ? SyncDeltaType.CREATE_OR_UPDATE
+                : SyncDeltaType.DELETE;
+
+        return (deltaType == SyncDeltaType.DELETE && !retrieveDeleted)
+                || holdBack.handle(getSyncDelta(oclass, dn, deltaType, token, profile, attrsToGet));
+    }
+
+    /**
+     * Get all members of the given group, reading the further ranges of values of large groups.
+     */
+    private static List<String> getMembers(final LdapContext ctx, final SearchResult group) throws NamingException {
+        Attribute attr = null;
+        for (NamingEnumeration<? extends Attribute> attrs = group.getAttributes().getAll(); attrs.hasMore();) {
+            final Attribute candidate = attrs.next();
+            if (MEMBER.equalsIgnoreCase(candidate.getID())
+                    || candidate.getID().toLowerCase().startsWith(MEMBER_RANGE)) {
+
+                attr = candidate;
+            }
+        }
+
+        final List<String> members = new ArrayList<String>();
+        while (attr != null) {
+            for (NamingEnumeration<?> values = attr.getAll(); values.hasMore();) {
+                members.add(values.next().toString());
+            }
+
+            // member;range=<start>-<end> until member;range=<start>-*
+            final String id = attr.getID().toLowerCase();
+            attr = null;
+            if (id.startsWith(MEMBER_RANGE) && !id.endsWith("-*")) {
+                final String next = MEMBER_RANGE + (Integer.parseInt(id.substring(id.lastIndexOf('-') + 1)) + 1) + "-*";
+                final NamingEnumeration<? extends Attribute> attrs =
+                        ctx.getAttributes(group.getNameInNamespace(), new String[] { next }).getAll();
+                if (attrs.hasMore()) {
+                    attr = attrs.next();
+                }
+            }
+        }
+        return members;
+    }
+
+    /**
+     * @return the naming contexts of the given base contexts, as listed by rootDSE, if any; otherwise the default
+     * naming context
+     */
+    private static Set<String> getNamingContexts(final Attributes rootDSE, final List<LdapName> baseContexts)
+            throws NamingException {
+
+        final List<LdapName> namingContexts = new ArrayList<LdapName>();
+        final Attribute attr = rootDSE.get(NAMING_CONTEXTS);
+        if (attr != null) {
+            for (NamingEnumeration<?> values = attr.getAll(); values.hasMore();) {
+                namingContexts.add(quietCreateLdapName(values.next().toString()));
+            }
+        }
+
+        final Set<String> found = new LinkedHashSet<String>();
+        for (LdapName baseContext : baseContexts) {
+            final LdapName namingContext = DirSyncUtils.getNamingContext(baseContext, namingContexts);
+            found.add(namingContext == null
+                    ? rootDSE.get(DEFAULT_NAMING_CONTEXT).get().toString()
+                    : namingContext.toString());
+        }
+        return found;
+    }
+
+    /**
+     * @return the DN of the Deleted Objects container of the given naming context
+     */
+    private static String getDeletedObjectsContainer(final LdapContext ctx, final String namingContext)
+            throws NamingException {
+
+        // JNDI parses search bases when naming results, hence <WKGUID=...> is only good for a lookup
+        ctx.setRequestControls(new Control[] { new DeletedControl() });
+        final Attribute dn = ctx.getAttributes("<WKGUID=" + DELETED_OBJECTS_WKGUID + "," + namingContext + ">",
+                new String[] { DISTINGUISHED_NAME }).get(DISTINGUISHED_NAME);
+        if (dn == null || dn.get() == null) {
+            throw new NamingException("No Deleted Objects container found for " + namingContext);
+        }
+        return dn.get().toString();
+    }
+
+    private void pagedSearch(
+            final LdapContext ctx,
+            final String baseDN,
+            final String filter,
+            final Control control,
+            final String[] attributes,
+            final ResultHandler handler)
+            throws NamingException {
+
+        final SearchControls searchCtls = LdapInternalSearch.createDefaultSearchControls();
+        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        searchCtls.setReturningAttributes(attributes);
+
+        final int pageSize = ((ADConfiguration) conn.getConfiguration()).getSearchPageSize();
+
+        boolean more = true;
+        byte[] cookie = null;
+        do {
+            try {
+                final PagedResultsControl paged = new PagedResultsControl(pageSize, cookie, Control.CRITICAL);
+                ctx.setRequestControls(control == null ? new Control[] { paged } : new Control[] { control, paged });
+            } catch (IOException e) {
+                throw new ConnectorException("Could not set paged results control", e);
+            }
+
+            final NamingEnumeration<SearchResult> answer = ctx.search(baseDN, filter, searchCtls);
+            try {
+                while (more && answer.hasMoreElements()) {
+                    more = handler.handle(answer.nextElement());
+                }
+            } finally {
+                answer.close();
+            }
+
+            cookie = null;
+            final Control[] rspCtls = ctx.getResponseControls();
+            if (rspCtls != null) {
+                for (Control rspCtl : rspCtls) {
+                    if (rspCtl instanceof PagedResultsResponseControl) {
+                        cookie = ((PagedResultsResponseControl) rspCtl).getCookie();
+                    }
+                }
+            }
+        } while (more && cookie != null && cookie.length > 0);
+    }
+
+    private static Map<String, Long> parseToken(final SyncToken token) {
+        final Map<String, Long> watermarks = new LinkedHashMap<String, Long>();
+
+        if (token != null && token.getValue() instanceof String
+                && token.getValue().toString().startsWith(TOKEN_PREFIX + ENTRY_SEPARATOR)) {
+
+            for (String entry : token.getValue().toString().split(ENTRY_SEPARATOR)) {
+                final int sep = entry.indexOf(WATERMARK_SEPARATOR);
+                if (sep > 0) {
+                    try {
+                        watermarks.put(new String(Base64.decode(entry.substring(0, sep)), UTF8),
+                                Long.valueOf(entry.substring(sep + 1)));
+                    } catch (NumberFormatException e) {
+                        LOG.warn("Ignoring invalid watermark {0}", entry);
+                    }
+                }
+            }
+        } else if (token != null && token.getValue() != null && StringUtil.isNotBlank(token.getValue().toString())) {
+            LOG.warn("Ignoring sync token {0}, not produced by uSNChanged synchronization", token);
+        }
+
+        return watermarks;
+    }
+
+    private static SyncToken buildToken(final Map<String, Long> watermarks) {
+        final StringBuilder value = new StringBuilder(TOKEN_PREFIX);
+        for (Map.Entry<String, Long> entry : watermarks.entrySet()) {
+            value.append(ENTRY_SEPARATOR).append(Base64.encode(entry.getKey().getBytes(UTF8))).
+                    append(WATERMARK_SEPARATOR).append(entry.getValue());
+        }
+        return new SyncToken(value.toString());
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.ad.sync;
+
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import org.identityconnectors.common.Base64;
+import org.identityconnectors.framework.common.objects.SyncToken;
+
+/**
+ * Sync token made of one DirSync cookie per base context to synchronize, as string:
+ * <tt>base64(base context):base64(cookie);...</tt>
+ */
+public final class CompositeSyncToken {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String ENTRY_SEPARATOR = ";";
+
+    private static final String COOKIE_SEPARATOR = ":";
+
+    private static final byte[] EMPTY_COOKIE = new byte[0];
+
+    /**
+     * Get the cookie of each given base context from the given token; a plain DirSync cookie (as used when
+     * synchronizing base contexts sequentially) is taken as the cookie of every base context.
+     *
+     * @param token sync token, possibly null
+     * @param baseContexts base contexts to synchronize
+     * @return cookies by base context, empty if not available
+     */
+    public static Map<String, byte[]> getCookies(final SyncToken token, final String[] baseContexts) {
+        final Map<String, byte[]> found = new TreeMap<String, byte[]>(String.CASE_INSENSITIVE_ORDER);
+
+        if (token != null && token.getValue() instanceof byte[]) {
+            for (String baseContext : baseContexts) {
+                found.put(baseContext, (byte[]) token.getValue());
+            }
+        } else if (token != null && token.getValue() instanceof String) {
+            for (String entry : token.getValue().toString().split(ENTRY_SEPARATOR)) {
+                final int sep = entry.indexOf(COOKIE_SEPARATOR);
+                if (sep > 0) {
+                    found.put(new String(Base64.decode(entry.substring(0, sep)), UTF8),
+                            Base64.decode(entry.substring(sep + 1)));
+                }
+            }
+        }
+
+        final Map<String, byte[]> cookies = new LinkedHashMap<String, byte[]>();
+        for (String baseContext : baseContexts) {
+            cookies.put(baseContext, found.containsKey(baseContext) ? found.get(baseContext) : EMPTY_COOKIE);
+        }
+        return cookies;
+    }
+
+    /**
+     * @param cookies cookies by base context
+     * @return sync token carrying the given cookies
+     */
+    public static SyncToken build(final Map<String, byte[]> cookies) {
+        final StringBuilder value = new StringBuilder();
+        for (Map.Entry<String, byte[]> entry : cookies.entrySet()) {
+            if (value.length() > 0) {
+                value.append(ENTRY_SEPARATOR);
+            }
+            value.append(Base64.encode(entry.getKey().getBytes(UTF8))).append(COOKIE_SEPARATOR).
+                    append(Base64.encode(entry.getValue() == null ? EMPTY_COOKIE : entry.getValue()));
+        }
+        return new SyncToken(value.toString());
+    }
+
+    private CompositeSyncToken() {
+        // private constructor for static utility class
+    }
+}
@@ -48,7 +48,6 @@ import javax.naming.ldap.LdapName;
 import net.tirasa.adsddl.ntsd.SDDL;
 import net.tirasa.adsddl.ntsd.SID;
 import net.tirasa.adsddl.ntsd.utils.GUID;
-import net.tirasa.adsddl.ntsd.utils.Hex;
 import net.tirasa.adsddl.ntsd.utils.NumberFacility;
 import net.tirasa.adsddl.ntsd.utils.SDDLHelper;
 import net.tirasa.connid.bundles.ad.ADConfiguration;
@@ -135,15 +134,10 @@ public class ADUtilities {
             final SID groupSID = getPrimaryGroupSID(SID.parse((byte[]) objectSID.get()),
                     NumberFacility.getUIntBytes(Long.parseLong(primaryGroupID.get().toString())));
 
-            final Set<SearchResult> res = basicLdapSearch(String.format(
-                    "(&(objectclass=group)(%s=%s))", OBJECTSID, Hex.getEscaped(groupSID.toByteArray())),
-                    ((ADConfiguration) connection.getConfiguration()).getGroupBaseContexts());
-
-            if (res == null || res.isEmpty()) {
+            pgDN = getGroupDN(groupSID, ((ADConfiguration) connection.getConfiguration()).getGroupBaseContexts());
+            if (pgDN == null) {
                 LOG.warn("Error retrieving primary group for {0}", entry.getDN());
-                pgDN = null;
             } else {
-                pgDN = res.iterator().next().getNameInNamespace();
                 LOG.info("Found primary group {0}", pgDN);
             }
         }
@@ -151,6 +145,26 @@ public class ADUtilities {
         return pgDN;
     }
 
+    /**
+     * Find the DN of the group with the given SID, provided that it is under one of the given base contexts.
+     *
+     * @param groupSID group SID
+     * @param baseContexts base contexts
+     * @return group DN or null
+     */
+    public String getGroupDN(final SID groupSID, final String... baseContexts) {
+        final String groupDN = connection.getGroupDN(groupSID);
+        if (groupDN == null) {
+            return null;
+        }
+
+        final List<LdapName> contexts = new ArrayList<LdapName>();
+        for (String baseContext : baseContexts) {
+            contexts.add(LdapUtil.quietCreateLdapName(baseContext));
+        }
+        return LdapUtil.isUnderContexts(LdapUtil.quietCreateLdapName(groupDN), contexts) ? groupDN : null;
+    }
+
     public Set<String> getAttributesToGet(final String[] attributesToGet, final ObjectClass oclass) {
         final Set<String> result;
 
@@ -270,6 +284,17 @@ public class ADUtilities {
         return createConnectorObject(baseDN, result.getAttributes(), attrsToGet, oclass);
     }
 
+    public ConnectorObject createConnectorObject(
+            final String baseDN,
+            final SearchResult result,
+            final Collection<String> attrsToGet,
+            final ObjectClass oclass,
+            final GroupMembershipResolver memberships)
+            throws NamingException {
+
+        return createConnectorObject(baseDN, result.getAttributes(), attrsToGet, oclass, memberships);
+    }
+
     public ConnectorObject createConnectorObject(
             final String baseDN,
             final Attributes profile,
@@ -277,6 +302,28 @@ public class ADUtilities {
             final ObjectClass oclass)
             throws NamingException {
 
+        return createConnectorObject(baseDN, profile, attrsToGet, oclass, null);
+    }
+
+    /**
+     * Build a connector object from the given entry.
+     *
+     * @param baseDN entry DN
+     * @param profile entry attributes
+     * @param attrsToGet attributes to be returned
+     * @param oclass object class
+     * @param memberships batch group membership resolver; if null, groups are searched for this entry only
+     * @return connector object
+     * @throws NamingException if an attribute cannot be read
+     */
+    public ConnectorObject createConnectorObject(
+            final String baseDN,
+            final Attributes profile,
+            final Collection<String> attrsToGet,
+            final ObjectClass oclass,
+            final GroupMembershipResolver memberships)
+            throws NamingException {
+
         final LdapEntry entry = LdapEntry.create(baseDN, profile);
 
         final ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
@@ -297,9 +344,13 @@ public class ADUtilities {
             Attribute attribute = null;
 
             if (LdapConstants.isLdapGroups(attributeName) || attributeName.equals(ADConnector.MEMBEROF)) {
-                final Set<String> ldapGroups = getGroups(entry.getDN().toString());
+                final Set<String> ldapGroups = memberships == null
+                        ? getGroups(entry.getDN().toString())
+                        : memberships.getGroups(entry.getDN().toString(), profile);
                 if (StringUtil.isBlank(pgDN)) {
-                    pgDN = getPrimaryGroupDN(entry, profile);
+                    pgDN = memberships == null
+                            ? getPrimaryGroupDN(entry, profile)
+                            : memberships.getPrimaryGroupDN(profile);
                 }
                 if (StringUtil.isNotBlank(pgDN)) {
                     ldapGroups.add(pgDN);
@@ -366,7 +417,9 @@ public class ADUtilities {
                 }
             } else if (ADConfiguration.PRIMARY_GROUP_DN_NAME.equalsIgnoreCase(attributeName)) {
                 if (StringUtil.isBlank(pgDN)) {
-                    pgDN = getPrimaryGroupDN(entry, profile);
+                    pgDN = memberships == null
+                            ? getPrimaryGroupDN(entry, profile)
+                            : memberships.getPrimaryGroupDN(profile);
                 }
                 attribute = AttributeBuilder.build(ADConfiguration.PRIMARY_GROUP_DN_NAME, pgDN);
             } else if (oclass.is(ObjectClass.GROUP_NAME)
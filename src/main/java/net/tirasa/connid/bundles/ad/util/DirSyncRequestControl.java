@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.ad.util;
+
+import java.io.ByteArrayOutputStream;
+import javax.naming.ldap.Control;
+
+/**
+ * LDAP_SERVER_DIRSYNC_OID request control with explicit flags and maximum attribute count; its value is
+ * <tt>SEQUENCE { Flags INTEGER, MaxAttributeCount INTEGER, Cookie OCTET STRING }</tt>.
+ */
+public class DirSyncRequestControl implements Control {
+
+    private static final long serialVersionUID = -2150232795532446297L;
+
+    public static final String OID = "1.2.840.113556.1.4.841";
+
+    public static final int OBJECT_SECURITY = 0x00000001;
+
+    public static final int ANCESTORS_FIRST_ORDER = 0x00000800;
+
+    public static final int PUBLIC_DATA_ONLY = 0x00002000;
+
+    /**
+     * Only added / removed values of linked multi-valued attributes (e.g. <tt>member</tt>) are returned, as
+     * <tt>member;range=1-1</tt> / <tt>member;range=0-0</tt>, rather than the whole set of values.
+     */
+    public static final int INCREMENTAL_VALUES = 0x80000000;
+
+    private static final byte[] EMPTY_COOKIE = new byte[0];
+
+    private final byte[] value;
+
+    public DirSyncRequestControl(final byte[] cookie, final int flags, final int maxAttributeCount) {
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        writeInteger(content, flags);
+        writeInteger(content, maxAttributeCount);
+        writeElement(content, 0x04, cookie == null ? EMPTY_COOKIE : cookie);
+
+        final ByteArrayOutputStream sequence = new ByteArrayOutputStream();
+        writeElement(sequence, 0x30, content.toByteArray());
+        this.value = sequence.toByteArray();
+    }
+
+    @Override
+    public byte[] getEncodedValue() {
+        return value.clone();
+    }
+
+    @Override
+    public String getID() {
+        return OID;
+    }
+
+    @Override
+    public boolean isCritical() {
+        return true;
+    }
+
+    private static void writeInteger(final ByteArrayOutputStream out, final int value) {
+        // minimal two's complement encoding
+        int length = 4;
+        while (length > 1) {
+            final int firstByte = (value >> ((length - 1) * 8)) & 0xFF;
+            final int nextBit = (value >> ((length - 1) * 8 - 1)) & 0x01;
+            if ((firstByte == 0x00 && nextBit == 0) || (firstByte == 0xFF && nextBit == 1)) {
+                length--;
+            } else {
+                break;
+            }
+        }
+
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (value >> ((length - 1 - i) * 8));
+        }
+        writeElement(out, 0x02, bytes);
+    }
+
+    private static void writeElement(final ByteArrayOutputStream out, final int tag, final byte[] content) {
+        out.write(tag);
+
+        final int length = content.length;
+        if (length < 0x80) {
+            out.write(length);
+        } else if (length < 0x100) {
+            out.write(0x81);
+            out.write(length);
+        } else if (length < 0x10000) {
+            out.write(0x82);
+            out.write(length >> 8);
+            out.write(length);
+        } else {
+            out.write(0x84);
+            out.write(length >> 24);
+            out.write(length >> 16);
+            out.write(length >> 8);
+            out.write(length);
+        }
+
+        out.write(content, 0, length);
+    }
+}
@@ -15,11 +15,15 @@
  */
 package net.tirasa.connid.bundles.ad.util;
 
+import java.util.Collection;
+import java.util.Set;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
 import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.LdapName;
 import net.tirasa.connid.bundles.ad.ADConfiguration;
 import net.tirasa.connid.bundles.ad.ADConnector;
 import net.tirasa.connid.bundles.ldap.search.LdapInternalSearch;
@@ -151,6 +155,56 @@ public class DirSyncUtils {
         return found;
     }
 
+    /**
+     * Verify the given filter against the given entry, evaluating it on the already fetched profile if possible.
+     * The server is queried only if the filter cannot be decided locally.
+     *
+     * @param ctx ldap context.
+     * @param dn entry distinguished name.
+     * @param profile entry attributes.
+     * @param filter filter to verify.
+     * @param constructed names of the constructed attributes, or null if not known.
+     * @return TRUE if verified; FALSE otherwise.
+     */
+    public static boolean verifyFilter(
+            final LdapContext ctx,
+            final String dn,
+            final Attributes profile,
+            final String filter,
+            final Set<String> constructed) {
+
+        if (StringUtil.isNotBlank(filter)) {
+            final Boolean matches = FilterEvaluator.evaluate(filter, profile, constructed);
+            if (matches != null) {
+                return matches;
+            }
+
+            if (LOG.isOk()) {
+                LOG.ok("Filter {0} cannot be verified locally for {1}", filter, dn);
+            }
+        }
+
+        return verifyFilter(ctx, dn, filter);
+    }
+
+    /**
+     * Get the naming context (as listed by rootDSE <tt>namingContexts</tt>) holding the given base context.
+     *
+     * @param baseContext base context.
+     * @param namingContexts naming contexts.
+     * @return the innermost naming context containing the given base context, or null if none.
+     */
+    public static LdapName getNamingContext(final LdapName baseContext, final Collection<LdapName> namingContexts) {
+        LdapName namingContext = null;
+        for (LdapName candidate : namingContexts) {
+            if (baseContext.startsWith(candidate)
+                    && (namingContext == null || candidate.size() > namingContext.size())) {
+                namingContext = candidate;
+            }
+        }
+        return namingContext;
+    }
+
     private static String getFilter(final AbstractConfiguration conf) {
         return ((ADConfiguration) conf).getAccountSearchFilter();
     }
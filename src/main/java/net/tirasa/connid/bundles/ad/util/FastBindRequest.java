@@ -0,0 +1,48 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.ad.util;
+
+import javax.naming.ldap.ExtendedRequest;
+import javax.naming.ldap.ExtendedResponse;
+
+/**
+ * LDAP_SERVER_FAST_BIND_OID extended operation: once accepted, any further simple bind on the same connection
+ * just verifies the provided credentials, without building a security token.
+ */
+public class FastBindRequest implements ExtendedRequest {
+
+    private static final long serialVersionUID = 2793405913522856732L;
+
+    public static final String OID = "1.2.840.113556.1.4.1781";
+
+    @Override
+    public String getID() {
+        return OID;
+    }
+
+    @Override
+    public byte[] getEncodedValue() {
+        return null;
+    }
+
+    @Override
+    public ExtendedResponse createExtendedResponse(
+            final String id, final byte[] berValue, final int offset, final int length) {
+
+        // no response value is defined for this operation
+        return null;
+    }
+}
@@ -0,0 +1,466 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.ad.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import javax.naming.InvalidNameException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.ldap.LdapName;
+import org.identityconnectors.common.logging.Log;
+
+/**
+ * Evaluates LDAP filters against an already fetched entry profile, following Active Directory matching semantics:
+ * case-insensitive strings, DN, integer and generalized time values, bitwise AND / OR matching rules.
+ * Whenever a filter cannot be decided locally (constructed or ranged attributes, approximate matching, unsupported
+ * matching rules, malformed filters, ...) the result is <tt>null</tt> and the filter must be checked by the server.
+ * An attribute missing from the profile is taken as absent only if known not to be constructed: without the
+ * constructed attributes as read from the schema, missing attributes are left to the server as well.
+ */
+public final class FilterEvaluator {
+
+    private static final Log LOG = Log.getLog(FilterEvaluator.class);
+
+    private static final String BITWISE_AND = "1.2.840.113556.1.4.803";
+
+    private static final String BITWISE_OR = "1.2.840.113556.1.4.804";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final Pattern INTEGER = Pattern.compile("-?\\d+");
+
+    private static final Pattern GENERALIZED_TIME = Pattern.compile("\\d{14}(\\.\\d+)?Z");
+
+    /**
+     * Attributes not returned when reading all attributes of an entry, or requiring server-side evaluation, whatever
+     * the schema says.
+     */
+    private static final Set<String> NOT_LOCAL = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+
+    static {
+        NOT_LOCAL.addAll(Arrays.asList(
+                "anr",
+                "allowedAttributes",
+                "allowedAttributesEffective",
+                "allowedChildClasses",
+                "allowedChildClassesEffective",
+                "canonicalName",
+                "createTimeStamp",
+                "modifyTimeStamp",
+                "msDS-Approx-Immed-Subordinates",
+                "msDS-PrincipalName",
+                "msDS-ReplAttributeMetaData",
+                "msDS-ReplValueMetaData",
+                "msDS-User-Account-Control-Computed",
+                "msDS-UserPasswordExpiryTimeComputed",
+                "parentGUID",
+                "possibleInferiors",
+                "primaryGroupToken",
+                "sDRightsEffective",
+                "structuralObjectClass",
+                "subSchemaSubEntry",
+                "tokenGroups",
+                "tokenGroupsGlobalAndUniversal",
+                "tokenGroupsNoGCAcceptable"));
+    }
+
+    private final String filter;
+
+    private final Attributes profile;
+
+    private final Set<String> constructed;
+
+    private int pos = 0;
+
+    private FilterEvaluator(final String filter, final Attributes profile, final Set<String> constructed) {
+        this.filter = filter;
+        this.profile = profile;
+        this.constructed = constructed;
+    }
+
+    /**
+     * Evaluate the given filter against the given profile.
+     *
+     * @param filter LDAP filter
+     * @param profile entry attributes, as read with all user attributes
+     * @param constructed names of the constructed attributes (case insensitive), or null if not known
+     * @return whether the profile matches the filter, or null if this cannot be decided locally
+     */
+    public static Boolean evaluate(final String filter, final Attributes profile, final Set<String> constructed) {
+        final FilterEvaluator evaluator = new FilterEvaluator(filter.trim(), profile, constructed);
+        try {
+            final Boolean result = evaluator.parseFilter();
+            return evaluator.pos == evaluator.filter.length() ? result : null;
+        } catch (IllegalArgumentException e) {
+            LOG.ok("Could not parse filter {0}: {1}", filter, e.getMessage());
+            return null;
+        } catch (NamingException e) {
+            LOG.error(e, "While evaluating filter {0}", filter);
+            return null;
+        }
+    }
+
+    private Boolean parseFilter() throws NamingException {
+        skipSpaces();
+        expect('(');
+        skipSpaces();
+
+        final Boolean result;
+        switch (peek()) {
+            case '&':
+                pos++;
+                result = and(parseFilterList());
+                break;
+
+            case '|':
+                pos++;
+                result = or(parseFilterList());
+                break;
+
+            case '!':
+                pos++;
+                result = not(parseFilter());
+                break;
+
+            case '(':
+                // redundant parentheses, accepted by AD
+                result = parseFilter();
+                break;
+
+            default:
+                result = parseItem();
+        }
+
+        skipSpaces();
+        expect(')');
+        return result;
+    }
+
+    private List<Boolean> parseFilterList() throws NamingException {
+        final List<Boolean> results = new ArrayList<Boolean>();
+        skipSpaces();
+        while (peek() == '(') {
+            results.add(parseFilter());
+            skipSpaces();
+        }
+        return results;
+    }
+
+    private Boolean parseItem() throws NamingException {
+        final int end = filter.indexOf(')', pos);
+        if (end < 0) {
+            throw new IllegalArgumentException("unterminated item at " + pos);
+        }
+        final String item = filter.substring(pos, end);
+        pos = end;
+
+        final int eq = item.indexOf('=');
+        if (eq <= 0) {
+            throw new IllegalArgumentException("invalid item " + item);
+        }
+
+        final String value = item.substring(eq + 1);
+        switch (item.charAt(eq - 1)) {
+            case '>':
+                return compare(item.substring(0, eq - 1).trim(), value, true);
+
+            case '<':
+                return compare(item.substring(0, eq - 1).trim(), value, false);
+
+            case '~':
+                // approximate matching is up to the server
+                return null;
+
+            case ':':
+                return extensibleMatch(item.substring(0, eq - 1).trim(), value);
+
+            default:
+                final String attr = item.substring(0, eq).trim();
+                if ("*".equals(value)) {
+                    final List<Object> values = getValues(attr);
+                    return values == null ? null : !values.isEmpty();
+                }
+                // '*' within assertion values is always escaped, hence any occurrence denotes a substring match
+                return value.indexOf('*') >= 0 ? substrings(attr, value) : equality(attr, value);
+        }
+    }
+
+    private Boolean equality(final String attr, final String value) throws NamingException {
+        final List<Object> values = getValues(attr);
+        if (values == null) {
+            return null;
+        }
+
+        final byte[] assertion = decode(value);
+        final String assertionString = new String(assertion, UTF8);
+
+        if ("objectCategory".equalsIgnoreCase(attr) && assertionString.indexOf('=') < 0) {
+            // short class names are expanded by the server to the defaultObjectCategory DN
+            return null;
+        }
+
+        final List<Boolean> results = new ArrayList<Boolean>();
+        for (Object attrValue : values) {
+            if (attrValue instanceof byte[]) {
+                results.add(Arrays.equals((byte[]) attrValue, assertion));
+            } else {
+                results.add(equalValues(attrValue.toString(), assertionString));
+            }
+        }
+        return or(results);
+    }
+
+    private Boolean compare(final String attr, final String value, final boolean greaterOrEqual)
+            throws NamingException {
+
+        final List<Object> values = getValues(attr);
+        if (values == null) {
+            return null;
+        }
+
+        final String assertion = new String(decode(value), UTF8);
+
+        final List<Boolean> results = new ArrayList<Boolean>();
+        for (Object attrValue : values) {
+            final String attrString = attrValue instanceof byte[] ? null : attrValue.toString();
+
+            final Integer comparison;
+            if (attrString != null && isInteger(attrString) && isInteger(assertion)) {
+                comparison = Long.valueOf(attrString).compareTo(Long.valueOf(assertion));
+            } else if (attrString != null
+                    && GENERALIZED_TIME.matcher(attrString).matches()
+                    && GENERALIZED_TIME.matcher(assertion).matches()) {
+
+                comparison = attrString.compareTo(assertion);
+            } else {
+                // string ordering depends on the server locale
+                comparison = null;
+            }
+
+            results.add(comparison == null ? null : greaterOrEqual ? comparison >= 0 : comparison <= 0);
+        }
+        return or(results);
+    }
+
+    private Boolean substrings(final String attr, final String value) throws NamingException {
+        final List<Object> values = getValues(attr);
+        if (values == null) {
+            return null;
+        }
+
+        final List<String> parts = new ArrayList<String>();
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) == '*') {
+                parts.add(new String(decode(value.substring(start, i)), UTF8).toLowerCase());
+                start = i + 1;
+            }
+        }
+        parts.add(new String(decode(value.substring(start)), UTF8).toLowerCase());
+
+        final List<Boolean> results = new ArrayList<Boolean>();
+        for (Object attrValue : values) {
+            if (attrValue instanceof byte[]) {
+                results.add(null);
+            } else {
+                results.add(matchesSubstrings(attrValue.toString().toLowerCase(), parts));
+            }
+        }
+        return or(results);
+    }
+
+    private static boolean matchesSubstrings(final String value, final List<String> parts) {
+        final String initial = parts.get(0);
+        final String last = parts.get(parts.size() - 1);
+
+        if (!value.startsWith(initial) || value.length() < initial.length() + last.length()) {
+            return false;
+        }
+
+        int index = initial.length();
+        for (int i = 1; i < parts.size() - 1; i++) {
+            final int found = value.indexOf(parts.get(i), index);
+            if (found < 0) {
+                return false;
+            }
+            index = found + parts.get(i).length();
+        }
+
+        return value.length() - last.length() >= index && value.endsWith(last);
+    }
+
+    private Boolean extensibleMatch(final String description, final String value) throws NamingException {
+        // only attr:rule:=value is supported, with AD bitwise matching rules
+        final int colon = description.indexOf(':');
+        if (colon <= 0) {
+            return null;
+        }
+
+        final String rule = description.substring(colon + 1).trim();
+        final boolean bitwiseAnd = BITWISE_AND.equals(rule);
+        if (!bitwiseAnd && !BITWISE_OR.equals(rule)) {
+            return null;
+        }
+
+        final List<Object> values = getValues(description.substring(0, colon).trim());
+        final String assertion = new String(decode(value), UTF8);
+        if (values == null || !isInteger(assertion)) {
+            return null;
+        }
+
+        final long mask = Long.parseLong(assertion);
+
+        final List<Boolean> results = new ArrayList<Boolean>();
+        for (Object attrValue : values) {
+            if (attrValue instanceof byte[] || !isInteger(attrValue.toString())) {
+                results.add(null);
+            } else {
+                final long bits = Long.parseLong(attrValue.toString());
+                results.add(bitwiseAnd ? (bits & mask) == mask : (bits & mask) != 0);
+            }
+        }
+        return or(results);
+    }
+
+    /**
+     * @param attr attribute name
+     * @return attribute values in profile (empty if absent), or null if this cannot be told locally
+     */
+    private List<Object> getValues(final String attr) throws NamingException {
+        if (attr.isEmpty() || attr.indexOf(';') >= 0 || Character.isDigit(attr.charAt(0)) || NOT_LOCAL.contains(attr)) {
+            return null;
+        }
+
+        final List<Object> values = new ArrayList<Object>();
+        for (NamingEnumeration<? extends Attribute> attrs = profile.getAll(); attrs.hasMore();) {
+            final Attribute attribute = attrs.next();
+            if (attribute.getID().equalsIgnoreCase(attr)) {
+                for (NamingEnumeration<?> attrValues = attribute.getAll(); attrValues.hasMore();) {
+                    final Object attrValue = attrValues.next();
+                    if (attrValue != null) {
+                        values.add(attrValue);
+                    }
+                }
+            } else if (attribute.getID().toLowerCase().startsWith(attr.toLowerCase() + ";")) {
+                // ranged values: not all of them are available
+                return null;
+            }
+        }
+
+        if (values.isEmpty() && (constructed == null || constructed.contains(attr))) {
+            // either constructed or possibly so: never returned with all attributes
+            return null;
+        }
+        return values;
+    }
+
+    private static boolean equalValues(final String value, final String assertion) {
+        if (isInteger(value) && isInteger(assertion)) {
+            return Long.valueOf(value).equals(Long.valueOf(assertion));
+        }
+
+        if (assertion.indexOf('=') >= 0) {
+            try {
+                return new LdapName(value).equals(new LdapName(assertion));
+            } catch (InvalidNameException e) {
+                // not DNs, compare as strings
+            }
+        }
+
+        return value.equalsIgnoreCase(assertion);
+    }
+
+    private static boolean isInteger(final String value) {
+        return value.length() < 19 && INTEGER.matcher(value).matches();
+    }
+
+    private static byte[] decode(final String value) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '\\') {
+                if (i + 2 >= value.length()) {
+                    throw new IllegalArgumentException("invalid escape in " + value);
+                }
+                bytes.write(Integer.parseInt(value.substring(i + 1, i + 3), 16));
+                i += 2;
+            } else {
+                final byte[] encoded = String.valueOf(c).getBytes(UTF8);
+                bytes.write(encoded, 0, encoded.length);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Boolean not(final Boolean result) {
+        return result == null ? null : !result;
+    }
+
+    private static Boolean and(final List<Boolean> results) {
+        Boolean result = Boolean.TRUE;
+        for (Boolean item : results) {
+            if (Boolean.FALSE.equals(item)) {
+                return Boolean.FALSE;
+            }
+            if (item == null) {
+                result = null;
+            }
+        }
+        return result;
+    }
+
+    private static Boolean or(final List<Boolean> results) {
+        Boolean result = Boolean.FALSE;
+        for (Boolean item : results) {
+            if (Boolean.TRUE.equals(item)) {
+                return Boolean.TRUE;
+            }
+            if (item == null) {
+                result = null;
+            }
+        }
+        return result;
+    }
+
+    private char peek() {
+        if (pos >= filter.length()) {
+            throw new IllegalArgumentException("unexpected end of filter");
+        }
+        return filter.charAt(pos);
+    }
+
+    private void expect(final char c) {
+        if (peek() != c) {
+            throw new IllegalArgumentException("expected '" + c + "' at " + pos);
+        }
+        pos++;
+    }
+
+    private void skipSpaces() {
+        while (pos < filter.length() && filter.charAt(pos) == ' ') {
+            pos++;
+        }
+    }
+}
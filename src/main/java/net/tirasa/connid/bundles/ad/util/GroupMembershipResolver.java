@@ -0,0 +1,250 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.ad.util;
+
+import static net.tirasa.connid.bundles.ad.ADConnector.MEMBEROF;
+import static net.tirasa.connid.bundles.ad.ADConnector.OBJECTSID;
+import static net.tirasa.connid.bundles.ad.ADConnector.PRIMARYGROUPID;
+import static net.tirasa.connid.bundles.ldap.commons.LdapUtil.isUnderContexts;
+import static net.tirasa.connid.bundles.ldap.commons.LdapUtil.quietCreateLdapName;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapName;
+import net.tirasa.adsddl.ntsd.SID;
+import net.tirasa.adsddl.ntsd.utils.Hex;
+import net.tirasa.adsddl.ntsd.utils.NumberFacility;
+import net.tirasa.connid.bundles.ad.ADConfiguration;
+import net.tirasa.connid.bundles.ad.ADConnection;
+import net.tirasa.connid.bundles.ldap.search.LdapInternalSearch;
+import org.identityconnectors.common.logging.Log;
+
+/**
+ * Resolve group memberships of search results in batch, rather than with a couple of searches per entry: groups are
+ * taken from the <tt>memberOf</tt> values returned with the entries, while primary groups are looked up once per batch
+ * (and remembered for subsequent batches).
+ */
+public class GroupMembershipResolver {
+
+    private static final Log LOG = Log.getLog(GroupMembershipResolver.class);
+
+    /**
+     * Maximum number of primary group SIDs looked up by a single search.
+     */
+    private static final int MAX_SIDS_PER_SEARCH = 100;
+
+    private final ADConnection connection;
+
+    private final ADUtilities utils;
+
+    private final List<LdapName> groupBaseContexts = new ArrayList<LdapName>();
+
+    /**
+     * Primary group DNs (or null, if not found), by escaped group SID.
+     */
+    private final Map<String, String> primaryGroups = new HashMap<String, String>();
+
+    public GroupMembershipResolver(final ADConnection connection, final ADUtilities utils) {
+        this.connection = connection;
+        this.utils = utils;
+
+        for (String baseContext : ((ADConfiguration) connection.getConfiguration()).getGroupBaseContexts()) {
+            groupBaseContexts.add(quietCreateLdapName(baseContext));
+        }
+    }
+
+    /**
+     * Batch resolution relies on <tt>memberOf</tt>, which is the back link of <tt>member</tt> only.
+     *
+     * @param conf configuration
+     * @return whether batch resolution can be used with the given configuration
+     */
+    public static boolean isApplicable(final ADConfiguration conf) {
+        return "member".equalsIgnoreCase(conf.getGroupMemberReferenceAttribute());
+    }
+
+    /**
+     * Look up the primary groups of the given entries, if not already known.
+     *
+     * @param entries search results, including <tt>objectSID</tt> and <tt>primaryGroupID</tt>
+     */
+    public void resolve(final Collection<SearchResult> entries) {
+        final Set<String> missing = new LinkedHashSet<String>();
+        for (SearchResult entry : entries) {
+            final String groupSID = getPrimaryGroupSID(entry.getAttributes());
+            if (groupSID != null && !primaryGroups.containsKey(groupSID) && !fromCache(groupSID)) {
+                missing.add(groupSID);
+            }
+        }
+
+        final Iterator<String> iter = missing.iterator();
+        while (iter.hasNext()) {
+            final List<String> sids = new ArrayList<String>();
+            while (iter.hasNext() && sids.size() < MAX_SIDS_PER_SEARCH) {
+                sids.add(iter.next());
+            }
+            searchPrimaryGroups(sids);
+        }
+    }
+
+    /**
+     * Get the groups of the given entry.
+     *
+     * @param entryDN entry DN
+     * @param profile entry attributes, including <tt>memberOf</tt>
+     * @return group DNs, not including the primary group
+     */
+    public Set<String> getGroups(final String entryDN, final Attributes profile) {
+        final Set<String> ldapGroups = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+
+        try {
+            for (NamingEnumeration<? extends Attribute> attrs = profile.getAll(); attrs.hasMore();) {
+                final Attribute attr = attrs.next();
+                if (attr.getID().toLowerCase().startsWith(MEMBEROF.toLowerCase() + ";range=")) {
+                    // too many values to be returned at once: fall back to the plain search
+                    return utils.getGroups(entryDN);
+                }
+            }
+
+            final Attribute memberOf = profile.get(MEMBEROF);
+            if (memberOf != null) {
+                for (NamingEnumeration<?> values = memberOf.getAll(); values.hasMore();) {
+                    final String groupDN = values.next().toString();
+                    if (isUnderContexts(quietCreateLdapName(groupDN), groupBaseContexts)) {
+                        ldapGroups.add(groupDN);
+                    }
+                }
+            }
+        } catch (NamingException e) {
+            LOG.error(e, "While reading groups of {0}", entryDN);
+            return utils.getGroups(entryDN);
+        }
+
+        return ldapGroups;
+    }
+
+    /**
+     * Get the primary group of the given entry, as looked up by {@link #resolve(Collection)}.
+     *
+     * @param profile entry attributes
+     * @return primary group DN or null
+     */
+    public String getPrimaryGroupDN(final Attributes profile) {
+        final String groupSID = getPrimaryGroupSID(profile);
+        if (groupSID == null) {
+            return null;
+        }
+
+        if (!primaryGroups.containsKey(groupSID) && !fromCache(groupSID)) {
+            searchPrimaryGroups(Collections.singletonList(groupSID));
+        }
+        return primaryGroups.get(groupSID);
+    }
+
+    private static String getPrimaryGroupSID(final Attributes profile) {
+        try {
+            final Attribute primaryGroupID = profile.get(PRIMARYGROUPID);
+            final Attribute objectSID = profile.get(OBJECTSID);
+
+            if (primaryGroupID == null || primaryGroupID.get() == null
+                    || objectSID == null || objectSID.get() == null) {
+
+                return null;
+            }
+
+            final SID groupSID = ADUtilities.getPrimaryGroupSID(SID.parse((byte[]) objectSID.get()),
+                    NumberFacility.getUIntBytes(Long.parseLong(primaryGroupID.get().toString())));
+            return Hex.getEscaped(groupSID.toByteArray());
+        } catch (NamingException e) {
+            LOG.error(e, "While reading primary group");
+            return null;
+        }
+    }
+
+    /**
+     * Take the given primary group from the connector-wide cache, if available there.
+     *
+     * @param groupSID escaped group SID
+     * @return whether the primary group was found in cache
+     */
+    private boolean fromCache(final String groupSID) {
+        final PrimaryGroupCache.Entry cached = connection.getCachedGroupDN(groupSID.replace("\\", ""));
+        if (cached == null) {
+            return false;
+        }
+
+        primaryGroups.put(groupSID, cached.getDN() != null
+                && isUnderContexts(quietCreateLdapName(cached.getDN()), groupBaseContexts)
+                ? cached.getDN()
+                : null);
+        return true;
+    }
+
+    private void searchPrimaryGroups(final List<String> sids) {
+        final StringBuilder filter = new StringBuilder("(&(objectclass=group)(|");
+        for (String sid : sids) {
+            filter.append('(').append(OBJECTSID).append('=').append(sid).append(')');
+        }
+        filter.append("))");
+
+        final SearchControls searchCtls = LdapInternalSearch.createDefaultSearchControls();
+        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        searchCtls.setReturningAttributes(new String[] { OBJECTSID });
+
+        for (String sid : sids) {
+            primaryGroups.put(sid, null);
+        }
+
+        for (LdapName baseContext : groupBaseContexts) {
+            try {
+                final NamingEnumeration<SearchResult> answer =
+                        connection.getInitialContext().search(baseContext, filter.toString(), searchCtls);
+                try {
+                    while (answer.hasMoreElements()) {
+                        final SearchResult group = answer.nextElement();
+                        final Attribute objectSID = group.getAttributes().get(OBJECTSID);
+                        if (objectSID != null && objectSID.get() != null) {
+                            primaryGroups.put(Hex.getEscaped((byte[]) objectSID.get()), group.getNameInNamespace());
+                            connection.cacheGroupDN((byte[]) objectSID.get(), group.getNameInNamespace());
+                        }
+                    }
+                } finally {
+                    answer.close();
+                }
+            } catch (NamingException e) {
+                LOG.error(e, "While searching base context {0} with filter {1}", baseContext, filter);
+            }
+        }
+
+        if (LOG.isOk()) {
+            LOG.ok("Looked up {0} primary groups with a single search", sids.size());
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.ad.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Time-limited cache of group DNs by group SID (i.e. domain SID and RID), used to resolve primary groups.
+ * Very few distinct primary groups are expected (mostly "Domain Users"), hence no size limit is enforced.
+ */
+public class PrimaryGroupCache {
+
+    /**
+     * Cached resolution: DN is null if no group with the given SID was found.
+     */
+    public static final class Entry {
+
+        private final String dn;
+
+        private final long expiration;
+
+        Entry(final String dn, final long expiration) {
+            this.dn = dn;
+            this.expiration = expiration;
+        }
+
+        public String getDN() {
+            return dn;
+        }
+    }
+
+    private final long timeToLive;
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    public PrimaryGroupCache(final long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * @param sid group SID, as hex string
+     * @return cached resolution, or null if not available or expired
+     */
+    public synchronized Entry get(final String sid) {
+        final Entry entry = entries.get(sid);
+        if (entry != null && entry.expiration < System.currentTimeMillis()) {
+            entries.remove(sid);
+            return null;
+        }
+        return entry;
+    }
+
+    public synchronized void put(final String sid, final String dn) {
+        entries.put(sid, new Entry(dn, System.currentTimeMillis() + timeToLive));
+    }
+
+    public synchronized void invalidate(final String sid) {
+        entries.remove(sid);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+}
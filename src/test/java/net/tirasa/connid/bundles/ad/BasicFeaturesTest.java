@@ -16,10 +16,43 @@
 package net.tirasa.connid.bundles.ad;
 
 import static org.junit.Assert.*;
+
+import com.unboundid.asn1.ASN1Element;
+import com.unboundid.asn1.ASN1Exception;
+import com.unboundid.asn1.ASN1Integer;
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.asn1.ASN1Sequence;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.ldap.LdapContext;
+import net.tirasa.connid.bundles.ad.authentication.UsernameCache;
+import net.tirasa.connid.bundles.ad.schema.ADSchema;
+import net.tirasa.connid.bundles.ad.schema.ADSchemaRegistry;
+import net.tirasa.connid.bundles.ad.sync.ADChangeNotifier;
+import net.tirasa.connid.bundles.ad.sync.CompositeSyncToken;
 import net.tirasa.connid.bundles.ad.util.ADUtilities;
+import net.tirasa.connid.bundles.ad.util.DirSyncRequestControl;
 import net.tirasa.connid.bundles.ad.util.DirSyncUtils;
+import net.tirasa.connid.bundles.ad.util.FilterEvaluator;
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.common.objects.Uid;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
@@ -110,4 +143,342 @@ public class BasicFeaturesTest {
                 + "(objectClass=group)"
                 + "(&(isDeleted=TRUE)(objectClass=user)))", filter);
     }
+
+    @Test
+    public void contextPool() throws NamingException {
+        final AtomicInteger created = new AtomicInteger();
+        final AtomicInteger closed = new AtomicInteger();
+        final AtomicBoolean valid = new AtomicBoolean(true);
+
+        final ADContextPool.ContextFactory factory = new ADContextPool.ContextFactory() {
+
+            @Override
+            public LdapContext create() {
+                created.incrementAndGet();
+                return (LdapContext) Proxy.newProxyInstance(
+                        getClass().getClassLoader(), new Class<?>[] { LdapContext.class }, new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        if ("close".equals(method.getName())) {
+                            closed.incrementAndGet();
+                        }
+                        return "equals".equals(method.getName()) ? proxy == args[0] : null;
+                    }
+                });
+            }
+
+            @Override
+            public boolean validate(final LdapContext ctx) {
+                return valid.get();
+            }
+
+            @Override
+            public void passivate(final LdapContext ctx) throws NamingException {
+                // nothing to reset
+            }
+        };
+
+        // contexts idle for more than 0 ms are validated, for more than 50 ms are evicted
+        final ADContextPool pool = new ADContextPool("test", factory, 0, 2, 2, 100L, 50L, 0L);
+
+        final LdapContext ctx1 = pool.borrow();
+        final LdapContext ctx2 = pool.borrow();
+        assertEquals(2, created.get());
+        try {
+            pool.borrow();
+            fail();
+        } catch (ConnectorException e) {
+            // no more than maxTotal contexts
+        }
+
+        // idle and valid context is handed out again
+        pool.release(ctx1);
+        assertSame(ctx1, pool.borrow());
+        assertEquals(2, created.get());
+
+        // stale context is discarded
+        pool.release(ctx1);
+        valid.set(false);
+        final LdapContext ctx3 = pool.borrow();
+        assertNotSame(ctx1, ctx3);
+        assertEquals(3, created.get());
+        assertEquals(1, closed.get());
+        valid.set(true);
+
+        // least recently used context is evicted when idle for too long
+        pool.release(ctx2);
+        try {
+            Thread.sleep(100L);
+        } catch (InterruptedException e) {
+            fail();
+        }
+        pool.release(ctx3);
+        assertEquals(2, closed.get());
+        assertSame(ctx3, pool.borrow());
+
+        pool.invalidate(ctx3);
+        assertEquals(3, closed.get());
+        pool.close();
+        try {
+            pool.borrow();
+            fail();
+        } catch (ConnectorException e) {
+            // closed
+        }
+    }
+
+    @Test
+    public void usernameCache() {
+        final UsernameCache cache = new UsernameCache(2, 60000L, 60000L);
+
+        final String user1 = UsernameCache.key(ObjectClass.ACCOUNT, "User1", Arrays.asList("sAMAccountName"));
+        final String user2 = UsernameCache.key(ObjectClass.ACCOUNT, "user2", Arrays.asList("sAMAccountName"));
+        final String user3 = UsernameCache.key(ObjectClass.ACCOUNT, "user3", Arrays.asList("sAMAccountName"));
+
+        assertNull(cache.get(user1));
+
+        cache.putResolved(user1, "cn=user1,cn=users,o=isp", new Uid("guid1"));
+        cache.putUnresolved(user2);
+
+        assertEquals("cn=user1,cn=users,o=isp", cache.get(
+                UsernameCache.key(ObjectClass.ACCOUNT, "USER1", Arrays.asList("sAMAccountName"))).getEntryDN());
+        assertFalse(cache.get(user2).isResolved());
+
+        // least recently used entry is evicted
+        cache.get(user1);
+        cache.putResolved(user3, "cn=user3,cn=users,o=isp", new Uid("guid3"));
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get(user2));
+
+        cache.invalidateEntries("GUID1");
+        assertNull(cache.get(user1));
+        assertNotNull(cache.get(user3));
+    }
+
+    @Test
+    public void evaluateFilter() {
+        final String filter = DirSyncUtils.getUserFilter((ADConfiguration) connector.getConfiguration());
+
+        final Set<String> constructed = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+        constructed.add("msDS-ResultantPSO");
+
+        final Attributes profile = new BasicAttributes(true);
+        profile.put(new BasicAttribute("objectClass", "user"));
+        final BasicAttribute memberOf = new BasicAttribute("memberOf");
+        memberOf.add("CN=GroupA,CN=Group,O=ISP");
+        memberOf.add("cn=groupB, cn=group, o=isp");
+        profile.put(memberOf);
+        profile.put(new BasicAttribute("userAccountControl", "514"));
+        profile.put(new BasicAttribute("sAMAccountName", "John.Doe"));
+
+        // one membership missing
+        assertFalse(FilterEvaluator.evaluate(filter, profile, constructed));
+
+        memberOf.add("cn=groupC,cn=group,o=isp");
+        assertTrue(FilterEvaluator.evaluate(filter, profile, constructed));
+
+        assertTrue(FilterEvaluator.evaluate(
+                "(userAccountControl:1.2.840.113556.1.4.803:=2)", profile, constructed));
+        assertFalse(FilterEvaluator.evaluate(
+                "(!(userAccountControl:1.2.840.113556.1.4.804:=6))", profile, constructed));
+        assertTrue(FilterEvaluator.evaluate(
+                "(&(sAMAccountName=john*)(userAccountControl>=512))", profile, constructed));
+        assertFalse(FilterEvaluator.evaluate("(|(sAMAccountName=*smith)(isDeleted=*))", profile, constructed));
+
+        // to be checked by the server
+        assertNull(FilterEvaluator.evaluate("(objectCategory=person)", profile, constructed));
+        assertNull(FilterEvaluator.evaluate(
+                "(memberOf:1.2.840.113556.1.4.1941:=cn=groupA,cn=group,o=isp)", profile, constructed));
+        assertNull(FilterEvaluator.evaluate("(&(sAMAccountName=john*)(cn~=john))", profile, constructed));
+        assertNull(FilterEvaluator.evaluate("(sAMAccountName=john", profile, constructed));
+
+        // constructed attributes are never returned, whatever their value
+        assertNull(FilterEvaluator.evaluate("(!(msDS-ResultantPSO=*))", profile, constructed));
+
+        // constructed attributes not known: missing attributes are left to the server, the others are still checked
+        assertNull(FilterEvaluator.evaluate("(|(sAMAccountName=*smith)(isDeleted=*))", profile, null));
+        assertTrue(FilterEvaluator.evaluate(filter, profile, null));
+
+        // not all memberships available
+        profile.remove("memberOf");
+        profile.put(new BasicAttribute("memberOf;range=0-1499", "cn=groupA,cn=group,o=isp"));
+        assertNull(FilterEvaluator.evaluate(filter, profile, constructed));
+    }
+
+    private static byte[] bytes(final int... values) {
+        final byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    @Test
+    public void dirSyncRequestControl() throws ASN1Exception {
+        DirSyncRequestControl control = new DirSyncRequestControl(null,
+                DirSyncRequestControl.OBJECT_SECURITY
+                | DirSyncRequestControl.ANCESTORS_FIRST_ORDER
+                | DirSyncRequestControl.INCREMENTAL_VALUES,
+                Integer.MAX_VALUE);
+        assertEquals(DirSyncRequestControl.OID, control.getID());
+        assertTrue(control.isCritical());
+
+        // the incremental values flag makes the flags negative: four bytes, sign bit set
+        assertArrayEquals(bytes(
+                0x30, 0x0E,
+                0x02, 0x04, 0x80, 0x00, 0x08, 0x01,
+                0x02, 0x04, 0x7F, 0xFF, 0xFF, 0xFF,
+                0x04, 0x00),
+                control.getEncodedValue());
+
+        // minimal encodings, with a leading zero byte when the high bit is set
+        control = new DirSyncRequestControl(new byte[] { 0x01 }, DirSyncRequestControl.OBJECT_SECURITY, 128);
+        assertArrayEquals(bytes(
+                0x30, 0x0A,
+                0x02, 0x01, 0x01,
+                0x02, 0x02, 0x00, 0x80,
+                0x04, 0x01, 0x01),
+                control.getEncodedValue());
+
+        // cookies longer than 127 bytes take a long form length
+        final byte[] cookie = new byte[300];
+        for (int i = 0; i < cookie.length; i++) {
+            cookie[i] = (byte) i;
+        }
+        control = new DirSyncRequestControl(cookie, DirSyncRequestControl.INCREMENTAL_VALUES, 0);
+
+        final ASN1Element[] elements = ASN1Sequence.decodeAsSequence(control.getEncodedValue()).elements();
+        assertEquals(3, elements.length);
+        assertEquals(DirSyncRequestControl.INCREMENTAL_VALUES, ASN1Integer.decodeAsInteger(elements[0]).intValue());
+        assertEquals(0, ASN1Integer.decodeAsInteger(elements[1]).intValue());
+        assertArrayEquals(cookie, ASN1OctetString.decodeAsOctetString(elements[2]).getValue());
+    }
+
+    @Test
+    public void compositeSyncToken() {
+        // separators within base contexts are harmless
+        final String[] baseContexts = { "ou=a;b:c,o=isp", "ou=people,o=isp", "ou=other,o=isp" };
+
+        final Map<String, byte[]> cookies = new LinkedHashMap<String, byte[]>();
+        cookies.put(baseContexts[0], new byte[] { 0x01, 0x02, 0x03 });
+        cookies.put("OU=People,O=ISP", new byte[] { (byte) 0xFF });
+        cookies.put("ou=removed,o=isp", new byte[] { 0x04 });
+
+        final SyncToken token = CompositeSyncToken.build(cookies);
+        assertTrue(token.getValue() instanceof String);
+
+        // cookies by base context, in the order of the latter and regardless of case; empty if not available
+        Map<String, byte[]> found = CompositeSyncToken.getCookies(token, baseContexts);
+        assertEquals(Arrays.asList(baseContexts), new ArrayList<String>(found.keySet()));
+        assertArrayEquals(new byte[] { 0x01, 0x02, 0x03 }, found.get(baseContexts[0]));
+        assertArrayEquals(new byte[] { (byte) 0xFF }, found.get(baseContexts[1]));
+        assertEquals(0, found.get(baseContexts[2]).length);
+
+        // round trip
+        assertEquals(token, CompositeSyncToken.build(CompositeSyncToken.getCookies(
+                token, new String[] { baseContexts[0], "OU=People,O=ISP", "ou=removed,o=isp" })));
+
+        // a plain DirSync cookie applies to every base context
+        found = CompositeSyncToken.getCookies(new SyncToken(new byte[] { 0x05 }), baseContexts);
+        for (String baseContext : baseContexts) {
+            assertArrayEquals(new byte[] { 0x05 }, found.get(baseContext));
+        }
+
+        // no token
+        found = CompositeSyncToken.getCookies(null, baseContexts);
+        for (String baseContext : baseContexts) {
+            assertEquals(0, found.get(baseContext).length);
+        }
+    }
+
+    @Test
+    public void changeNotifications() {
+        final ADConfiguration conf = new ADConfiguration();
+        conf.setBaseContextsToSynchronize("ou=people,o=isp");
+
+        final ADChangeNotifier notifier = new ADChangeNotifier(new ADConnection(conf));
+        assertFalse(notifier.isListening());
+
+        final Attributes user = new BasicAttributes(true);
+        user.put(new BasicAttribute("objectClass", "user"));
+        notifier.notified("cn=user1,ou=people,o=isp", user);
+        notifier.notified("cn=user2,ou=people,o=isp", user);
+        assertEquals(2, notifier.getChangeCount(ObjectClass.ACCOUNT));
+        assertEquals(0, notifier.getChangeCount(ObjectClass.GROUP));
+
+        // outside of the base contexts to synchronize
+        notifier.notified("cn=user3,ou=others,o=isp", user);
+        assertEquals(2, notifier.getChangeCount(ObjectClass.ACCOUNT));
+
+        // deleted entry, formerly under the base contexts to synchronize
+        final Attributes deleted = new BasicAttributes(true);
+        deleted.put(new BasicAttribute("objectClass", "group"));
+        deleted.put(new BasicAttribute("lastKnownParent", "ou=people,o=isp"));
+        notifier.notified("cn=group1\\0ADEL:1234,cn=Deleted Objects,o=isp", deleted);
+        assertEquals(1, notifier.getChangeCount(ObjectClass.GROUP));
+        assertEquals(3, notifier.getChangeCount(ObjectClass.ACCOUNT));
+    }
+
+    @Test
+    public void schemaRegistry() {
+        final ADConfiguration conf = new ADConfiguration();
+        conf.setHost("localhost");
+        conf.setBaseContextsToSynchronize("o=isp");
+
+        final ADConfiguration same = new ADConfiguration();
+        same.setHost("LOCALHOST");
+        same.setBaseContextsToSynchronize("o=isp");
+
+        final ADConfiguration other = new ADConfiguration();
+        other.setHost("localhost");
+        other.setBaseContextsToSynchronize("o=other");
+
+        final ADSchemaRegistry registry = ADSchemaRegistry.getInstance();
+        final int size = registry.size();
+
+        final ADSchemaRegistry.Entry entry = registry.acquire(conf);
+        assertSame(entry, registry.acquire(same));
+
+        final ADSchemaRegistry.Entry otherEntry = registry.acquire(other);
+        assertNotSame(entry, otherEntry);
+        assertEquals(size + 2, registry.size());
+
+        registry.release(otherEntry);
+        registry.release(entry);
+        assertEquals(size + 1, registry.size());
+        assertSame(entry, registry.acquire(conf));
+
+        registry.release(entry);
+        registry.release(entry);
+        assertEquals(size, registry.size());
+    }
+
+    @Test
+    public void schemaWarmUp() {
+        final ADConfiguration conf = new ADConfiguration();
+        conf.setHost("localhost");
+        conf.setBaseContextsToSynchronize("o=isp");
+        assertFalse(conf.isSchemaWarmUp());
+
+        final ADSchemaRegistry registry = ADSchemaRegistry.getInstance();
+        final int size = registry.size();
+
+        final ADSchema schema = new ADSchema(new ADConnection(conf));
+        schema.getEntry();
+        assertEquals(size + 1, registry.size());
+
+        // once released, warm-up neither reaches the server nor holds the shared entry again
+        schema.release();
+        schema.warmUp();
+        assertEquals(size, registry.size());
+
+        try {
+            schema.getEntry();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(size, registry.size());
+        }
+    }
 }
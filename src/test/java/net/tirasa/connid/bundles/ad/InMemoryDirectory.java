@@ -0,0 +1,644 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.ad;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedAddRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedAddResult;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedModifyRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedModifyResult;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchEntry;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchResult;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.asn1.ASN1Element;
+import com.unboundid.asn1.ASN1Exception;
+import com.unboundid.asn1.ASN1Integer;
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.asn1.ASN1Sequence;
+import com.unboundid.ldap.sdk.AddRequest;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Control;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPResult;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import com.unboundid.ldap.sdk.ModifyRequest;
+import com.unboundid.ldap.sdk.ReadOnlyLDAPRequest;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldap.sdk.controls.SimplePagedResultsControl;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import net.tirasa.adsddl.ntsd.utils.GUID;
+import org.identityconnectors.common.security.GuardedString;
+
+/**
+ * In-memory stand-in for an Active Directory domain controller, good enough to exercise the connector without a
+ * real directory: Active Directory specific request controls not known to the in-memory server are accepted and
+ * ignored, and each added entry gets a generated <tt>objectGUID</tt>.
+ * Entries are also stamped with <tt>uSNChanged</tt> on each change, which drives a simple DirSync emulation: changes
+ * are returned in update order, at most {@link #setDirSyncBatchSize(int)} per search, with the highest USN returned
+ * so far as cookie; entries can be read by <tt>&lt;GUID=...&gt;</tt> too.
+ * USNs are stored zero padded, for range filters to work on a schema-less server; rootDSE provides
+ * <tt>dsServiceName</tt> and <tt>highestCommittedUSN</tt> as well, and deleted entries are kept as tombstones.
+ * Change notification searches are kept open, returning each entry added or modified afterwards; their registration
+ * can be held back via {@link #holdNotifySearches(boolean)}, and they can be dropped as on connection loss via
+ * {@link #dropNotifySearches()}.
+ */
+public class InMemoryDirectory extends InMemoryOperationInterceptor {
+
+    public static final String BASE_DN = "o=isp";
+
+    public static final String PRINCIPAL = "cn=Administrator,cn=Users,o=isp";
+
+    public static final String PASSWORD = "password";
+
+    public static final String DS_SERVICE_NAME =
+            "cn=NTDS Settings,cn=DC1,cn=Servers,cn=Default-First-Site-Name,cn=Sites,cn=Configuration," + BASE_DN;
+
+    public static final String DELETED_OBJECTS = "cn=Deleted Objects," + BASE_DN;
+
+    private static final String MICROSOFT_OID_PREFIX = "1.2.840.113556.";
+
+    /**
+     * Microsoft controls also supported by the in-memory server: simple paged results and server side sort.
+     */
+    private static final List<String> SUPPORTED_MICROSOFT_OIDS =
+            Arrays.asList("1.2.840.113556.1.4.319", "1.2.840.113556.1.4.473");
+
+    private static final String DIRSYNC_OID = "1.2.840.113556.1.4.841";
+
+    private static final String DELETED_OID = "1.2.840.113556.1.4.417";
+
+    private static final String NOTIFY_OID = "1.2.840.113556.1.4.528";
+
+    private static final String USNCREATED = "uSNCreated";
+
+    private static final String USNCHANGED = "uSNChanged";
+
+    private static final String USN_FORMAT = "%019d";
+
+    private static final String DIRSYNC_COOKIE = "dirSyncCookie";
+
+    private static final String DIRSYNC_MORE = "dirSyncMore";
+
+    /**
+     * Queued to change notification searches to be dropped.
+     */
+    private static final Entry DROPPED = new Entry("");
+
+    private final InMemoryDirectoryServer server;
+
+    private final LDAPConnection client;
+
+    private final AtomicLong guids = new AtomicLong();
+
+    private final AtomicLong usn = new AtomicLong();
+
+    private final Map<String, String> dnsByGUID = new ConcurrentHashMap<String, String>();
+
+    private volatile int dirSyncBatchSize = Integer.MAX_VALUE;
+
+    private final AtomicInteger dirSyncSearches = new AtomicInteger();
+
+    private volatile int maxPageSize = Integer.MAX_VALUE;
+
+    private final List<Integer> requestedPageSizes = new CopyOnWriteArrayList<Integer>();
+
+    /**
+     * Guards the change notification state below.
+     */
+    private final Object notifyLock = new Object();
+
+    private final List<BlockingQueue<Entry>> notifySearches = new ArrayList<BlockingQueue<Entry>>();
+
+    private int registeredNotifySearches = 0;
+
+    private int heldNotifySearches = 0;
+
+    private boolean holdNotifySearches = false;
+
+    public InMemoryDirectory() throws LDAPException {
+        final InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+        // Active Directory attributes and object classes are not known to the default schema
+        config.setSchema(null);
+        config.addAdditionalBindCredentials(PRINCIPAL, PASSWORD);
+        config.addInMemoryOperationInterceptor(this);
+
+        server = new InMemoryDirectoryServer(config);
+        server.add(new Entry(BASE_DN, new Attribute("objectClass", "top", "organization"), new Attribute("o", "isp")));
+        server.add(new Entry(DELETED_OBJECTS, new Attribute("objectClass", "top", "container")));
+        server.startListening();
+
+        // entries are changed through the listener, to be stamped as any other change
+        client = server.getConnection();
+    }
+
+    public ADConfiguration newConfiguration(final String... baseContexts) {
+        final ADConfiguration conf = new ADConfiguration();
+        conf.setHost("localhost");
+        conf.setPort(server.getListenPort());
+        conf.setSsl(false);
+        conf.setPrincipal(PRINCIPAL);
+        conf.setCredentials(new GuardedString(PASSWORD.toCharArray()));
+        conf.setBaseContexts(baseContexts);
+        conf.setUserBaseContexts(baseContexts);
+        conf.setGroupBaseContexts(baseContexts);
+        conf.setBaseContextsToSynchronize(baseContexts);
+        conf.setReadSchema(false);
+        return conf;
+    }
+
+    public void addContainer(final String dn) throws LDAPException {
+        client.add(new Entry(dn, new Attribute("objectClass", "top", "organizationalUnit")));
+    }
+
+    public void addUser(final String dn, final String sAMAccountName) throws LDAPException {
+        client.add(new Entry(dn,
+                new Attribute("objectClass", "top", "person", "organizationalPerson", "user"),
+                new Attribute("sAMAccountName", sAMAccountName)));
+    }
+
+    public void addGroup(final String dn, final String sAMAccountName, final String... members)
+            throws LDAPException {
+
+        final Entry group = new Entry(dn,
+                new Attribute("objectClass", "top", "group"),
+                new Attribute("sAMAccountName", sAMAccountName));
+        if (members.length > 0) {
+            group.addAttribute("member", members);
+        }
+        client.add(group);
+    }
+
+    public void modify(final String dn, final Modification... modifications) throws LDAPException {
+        client.modify(dn, modifications);
+    }
+
+    /**
+     * Delete the given entry as Active Directory does: it becomes a tombstone under {@link #DELETED_OBJECTS},
+     * keeping its <tt>objectGUID</tt>, <tt>objectClass</tt> and <tt>sAMAccountName</tt>.
+     *
+     * @param dn entry DN
+     * @throws LDAPException if the entry cannot be deleted
+     */
+    public void delete(final String dn) throws LDAPException {
+        final Entry entry = server.getEntry(dn);
+        final DN parsed = new DN(dn);
+        client.delete(dn);
+
+        final String guid = GUID.getGuidAsString(entry.getAttributeValueBytes(ADConnector.OBJECTGUID));
+        final Entry tombstone = new Entry(
+                "cn=" + parsed.getRDN().getAttributeValues()[0] + " DEL " + guid + "," + DELETED_OBJECTS,
+                entry.getAttribute("objectClass"),
+                entry.getAttribute(ADConnector.OBJECTGUID),
+                new Attribute("isDeleted", "TRUE"),
+                new Attribute("lastKnownParent", parsed.getParentString()));
+        if (entry.hasAttribute("sAMAccountName")) {
+            tombstone.addAttribute(entry.getAttribute("sAMAccountName"));
+        }
+        client.add(tombstone);
+    }
+
+    /**
+     * @param dn entry DN
+     * @return <tt>uSNChanged</tt> of the given entry
+     * @throws LDAPException if the entry cannot be read
+     */
+    public long getUSNChanged(final String dn) throws LDAPException {
+        return usnChanged(server.getEntry(dn));
+    }
+
+    /**
+     * Emulate the maximum number of changes returned by each DirSync search.
+     *
+     * @param dirSyncBatchSize maximum number of changes returned by each DirSync search
+     */
+    public void setDirSyncBatchSize(final int dirSyncBatchSize) {
+        this.dirSyncBatchSize = dirSyncBatchSize;
+    }
+
+    /**
+     * @return number of DirSync searches performed so far
+     */
+    public int getDirSyncSearches() {
+        return dirSyncSearches.get();
+    }
+
+    /**
+     * Emulate the MaxPageSize LDAP policy: larger pages are cut to the given size.
+     *
+     * @param maxPageSize maximum number of entries returned per page
+     */
+    public void setMaxPageSize(final int maxPageSize) {
+        this.maxPageSize = maxPageSize;
+    }
+
+    /**
+     * @return page sizes requested by paged searches so far
+     */
+    public List<Integer> getRequestedPageSizes() {
+        return requestedPageSizes;
+    }
+
+    /**
+     * Hold back the registration of change notification searches, as the server does for a while after receiving
+     * them: changes committed meanwhile are not notified to the held searches.
+     *
+     * @param hold whether change notification searches shall be held back from now on
+     */
+    public void holdNotifySearches(final boolean hold) {
+        synchronized (notifyLock) {
+            holdNotifySearches = hold;
+            notifyLock.notifyAll();
+        }
+    }
+
+    /**
+     * End the open change notification searches with an error, as on connection loss.
+     */
+    public void dropNotifySearches() {
+        synchronized (notifyLock) {
+            for (BlockingQueue<Entry> changes : notifySearches) {
+                changes.add(DROPPED);
+            }
+            notifySearches.clear();
+        }
+    }
+
+    /**
+     * @param registered number of change notification searches registered so far to wait for
+     * @param timeoutMillis maximum time to wait
+     * @return whether the given number of change notification searches were registered in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitNotifySearches(final int registered, final long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (notifyLock) {
+            while (registeredNotifySearches < registered && System.currentTimeMillis() < deadline) {
+                notifyLock.wait(Math.max(1L, deadline - System.currentTimeMillis()));
+            }
+            return registeredNotifySearches >= registered;
+        }
+    }
+
+    /**
+     * @param held number of change notification searches held back to wait for
+     * @param timeoutMillis maximum time to wait
+     * @return whether the given number of change notification searches were held back in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitHeldNotifySearches(final int held, final long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (notifyLock) {
+            while (heldNotifySearches < held && System.currentTimeMillis() < deadline) {
+                notifyLock.wait(Math.max(1L, deadline - System.currentTimeMillis()));
+            }
+            return heldNotifySearches >= held;
+        }
+    }
+
+    /**
+     * @return number of change notification searches registered so far
+     */
+    public int getNotifySearches() {
+        synchronized (notifyLock) {
+            return registeredNotifySearches;
+        }
+    }
+
+    public void shutDown() {
+        holdNotifySearches(false);
+        dropNotifySearches();
+        client.close();
+        server.shutDown(true);
+    }
+
+    @Override
+    public void processAddRequest(final InMemoryInterceptedAddRequest request) throws LDAPException {
+        final AddRequest add = request.getRequest().duplicate(supportedControls(request.getRequest()));
+        if (!add.hasAttribute(ADConnector.OBJECTGUID)) {
+            add.addAttribute(ADConnector.OBJECTGUID, newGUID());
+        }
+        dnsByGUID.put(GUID.getGuidAsString(add.getAttribute(ADConnector.OBJECTGUID).getValueByteArray()),
+                add.getDN());
+
+        final String stamp = String.format(USN_FORMAT, usn.incrementAndGet());
+        add.addAttribute(USNCREATED, stamp);
+        add.addAttribute(USNCHANGED, stamp);
+        request.setRequest(add);
+    }
+
+    @Override
+    public void processAddResult(final InMemoryInterceptedAddResult result) {
+        if (result.getResult().getResultCode() == ResultCode.SUCCESS) {
+            notifyChange(result.getRequest().getDN());
+        }
+    }
+
+    @Override
+    public void processModifyRequest(final InMemoryInterceptedModifyRequest request) throws LDAPException {
+        final ModifyRequest modify = request.getRequest().duplicate(supportedControls(request.getRequest()));
+
+        final List<Modification> modifications = new ArrayList<Modification>(modify.getModifications());
+        modifications.add(new Modification(
+                ModificationType.REPLACE, USNCHANGED, String.format(USN_FORMAT, usn.incrementAndGet())));
+        request.setRequest(new ModifyRequest(modify.getDN(), modifications, modify.getControls()));
+    }
+
+    @Override
+    public void processModifyResult(final InMemoryInterceptedModifyResult result) {
+        if (result.getResult().getResultCode() == ResultCode.SUCCESS) {
+            notifyChange(result.getRequest().getDN());
+        }
+    }
+
+    /**
+     * Queue the given entry, as currently stored, to the open change notification searches.
+     */
+    private void notifyChange(final String dn) {
+        final Entry entry;
+        try {
+            entry = server.getEntry(dn);
+        } catch (LDAPException e) {
+            return;
+        }
+        if (entry == null) {
+            return;
+        }
+
+        final Entry change = new Entry(entry.getDN(), entry.getAttribute("objectClass"));
+        if (entry.hasAttribute("lastKnownParent")) {
+            change.addAttribute(entry.getAttribute("lastKnownParent"));
+        }
+        synchronized (notifyLock) {
+            for (BlockingQueue<Entry> changes : notifySearches) {
+                changes.add(change);
+            }
+        }
+    }
+
+    @Override
+    public void processSearchRequest(final InMemoryInterceptedSearchRequest request) throws LDAPException {
+        final SearchRequest search = request.getRequest().duplicate(supportedControls(request.getRequest()));
+        if (request.getRequest().hasControl(NOTIFY_OID)) {
+            notifySearch(request, search);
+        }
+
+        final String base = search.getBaseDN();
+        if (base.startsWith("<GUID=") && base.endsWith(">")) {
+            final String dn = dnsByGUID.get(base.substring("<GUID=".length(), base.length() - 1));
+            search.setBaseDN(dn == null ? "cn=unknown," + BASE_DN : dn);
+        } else if (base.startsWith("<WKGUID=") && base.endsWith(">")) {
+            // only the Deleted Objects container is known
+            search.setBaseDN(DELETED_OBJECTS);
+        }
+
+        search.setFilter(padUSNs(search.getFilter()));
+
+        final Control dirSync = request.getRequest().getControl(DIRSYNC_OID);
+        if (dirSync == null && !request.getRequest().hasControl(DELETED_OID)) {
+            search.setFilter(Filter.createANDFilter(search.getFilter(),
+                    Filter.createNOTFilter(Filter.createEqualityFilter("isDeleted", "TRUE"))));
+        }
+        if (dirSync != null) {
+            dirSync(request, search, dirSync);
+        }
+
+        final Control control = search.getControl(SimplePagedResultsControl.PAGED_RESULTS_OID);
+        if (control != null) {
+            final SimplePagedResultsControl paged =
+                    new SimplePagedResultsControl(control.getOID(), control.isCritical(), control.getValue());
+            requestedPageSizes.add(paged.getSize());
+
+            search.replaceControl(new SimplePagedResultsControl(
+                    Math.min(paged.getSize(), maxPageSize), paged.getCookie(), control.isCritical()));
+        }
+
+        request.setRequest(search);
+    }
+
+    /**
+     * Send the entries changed from now on, under the search base and scope, until dropped: as for Active Directory,
+     * a change notification search never ends successfully.
+     */
+    private void notifySearch(final InMemoryInterceptedSearchRequest request, final SearchRequest search)
+            throws LDAPException {
+
+        final BlockingQueue<Entry> changes = new LinkedBlockingQueue<Entry>();
+        try {
+            synchronized (notifyLock) {
+                if (holdNotifySearches) {
+                    heldNotifySearches++;
+                    notifyLock.notifyAll();
+                    try {
+                        while (holdNotifySearches) {
+                            notifyLock.wait();
+                        }
+                    } finally {
+                        heldNotifySearches--;
+                    }
+                }
+
+                notifySearches.add(changes);
+                registeredNotifySearches++;
+                notifyLock.notifyAll();
+            }
+
+            Entry change;
+            while ((change = changes.take()) != DROPPED) {
+                if (change.matchesBaseAndScope(search.getBaseDN(), search.getScope())) {
+                    request.sendSearchEntry(change);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (notifyLock) {
+                notifySearches.remove(changes);
+            }
+        }
+
+        throw new LDAPException(ResultCode.UNAVAILABLE, "Change notification search dropped");
+    }
+
+    /**
+     * Send the entries changed after the USN in the DirSync cookie, in update order and at most
+     * {@link #setDirSyncBatchSize(int)} of them; the actual search is then turned into one returning nothing.
+     */
+    private void dirSync(
+            final InMemoryInterceptedSearchRequest request, final SearchRequest search, final Control control)
+            throws LDAPException {
+
+        dirSyncSearches.incrementAndGet();
+
+        final long since;
+        try {
+            final ASN1Element[] elements = ASN1Sequence.decodeAsSequence(control.getValue().getValue()).elements();
+            final String cookie = ASN1OctetString.decodeAsOctetString(elements[2]).stringValue();
+            since = cookie.isEmpty() ? 0L : Long.parseLong(cookie);
+        } catch (ASN1Exception e) {
+            throw new LDAPException(ResultCode.PROTOCOL_ERROR, "Invalid DirSync control", e);
+        }
+
+        final List<SearchResultEntry> changes = new ArrayList<SearchResultEntry>();
+        for (SearchResultEntry entry : server.search(
+                search.getBaseDN(), search.getScope(), search.getFilter(), search.getAttributes()).
+                getSearchEntries()) {
+
+            if (usnChanged(entry) > since) {
+                changes.add(entry);
+            }
+        }
+        Collections.sort(changes, new Comparator<SearchResultEntry>() {
+
+            @Override
+            public int compare(final SearchResultEntry entry1, final SearchResultEntry entry2) {
+                return Long.valueOf(usnChanged(entry1)).compareTo(usnChanged(entry2));
+            }
+        });
+
+        final boolean more = changes.size() > dirSyncBatchSize;
+        final List<SearchResultEntry> batch = more ? changes.subList(0, dirSyncBatchSize) : changes;
+        for (SearchResultEntry entry : batch) {
+            request.sendSearchEntry(entry);
+        }
+
+        request.setProperty(DIRSYNC_COOKIE,
+                String.valueOf(more ? usnChanged(batch.get(batch.size() - 1)) : usn.get()));
+        request.setProperty(DIRSYNC_MORE, more);
+
+        search.setScope(SearchScope.BASE);
+        search.setFilter(Filter.createNOTFilter(Filter.createPresenceFilter("objectClass")));
+    }
+
+    @Override
+    public void processSearchEntry(final InMemoryInterceptedSearchEntry entry) {
+        final Entry found = entry.getSearchEntry().duplicate();
+        if (found.getDN().isEmpty()) {
+            found.setAttribute("dsServiceName", DS_SERVICE_NAME);
+            found.setAttribute("highestCommittedUSN", String.valueOf(usn.get()));
+            found.setAttribute("defaultNamingContext", BASE_DN);
+        } else if (entry.getRequest().getAttributeList().contains("distinguishedName")) {
+            found.setAttribute("distinguishedName", found.getDN());
+        }
+        entry.setSearchEntry(found);
+    }
+
+    @Override
+    public void processSearchResult(final InMemoryInterceptedSearchResult result) {
+        final String cookie = (String) result.getProperty(DIRSYNC_COOKIE);
+        if (cookie == null) {
+            return;
+        }
+
+        final ASN1Sequence value = new ASN1Sequence(
+                new ASN1Integer(Boolean.TRUE.equals(result.getProperty(DIRSYNC_MORE)) ? 1 : 0),
+                new ASN1Integer(0),
+                new ASN1OctetString(cookie));
+
+        final LDAPResult done = result.getResult();
+        final List<Control> controls = new ArrayList<Control>(Arrays.asList(done.getResponseControls()));
+        controls.add(new Control(DIRSYNC_OID, false, new ASN1OctetString(value.encode())));
+        result.setResult(new LDAPResult(done.getMessageID(), done.getResultCode(), done.getDiagnosticMessage(),
+                done.getMatchedDN(), done.getReferralURLs(), controls.toArray(new Control[controls.size()])));
+    }
+
+    /**
+     * Zero pad USN assertion values, as stored.
+     */
+    private static Filter padUSNs(final Filter filter) {
+        final List<Filter> components = new ArrayList<Filter>();
+        switch (filter.getFilterType()) {
+            case Filter.FILTER_TYPE_AND:
+            case Filter.FILTER_TYPE_OR:
+                for (Filter component : filter.getComponents()) {
+                    components.add(padUSNs(component));
+                }
+                return filter.getFilterType() == Filter.FILTER_TYPE_AND
+                        ? Filter.createANDFilter(components)
+                        : Filter.createORFilter(components);
+
+            case Filter.FILTER_TYPE_NOT:
+                return Filter.createNOTFilter(padUSNs(filter.getNOTComponent()));
+
+            case Filter.FILTER_TYPE_EQUALITY:
+            case Filter.FILTER_TYPE_GREATER_OR_EQUAL:
+            case Filter.FILTER_TYPE_LESS_OR_EQUAL:
+                if (!USNCHANGED.equalsIgnoreCase(filter.getAttributeName())
+                        && !USNCREATED.equalsIgnoreCase(filter.getAttributeName())) {
+                    return filter;
+                }
+
+                final String value = String.format(USN_FORMAT, Long.parseLong(filter.getAssertionValue()));
+                return filter.getFilterType() == Filter.FILTER_TYPE_EQUALITY
+                        ? Filter.createEqualityFilter(filter.getAttributeName(), value)
+                        : filter.getFilterType() == Filter.FILTER_TYPE_GREATER_OR_EQUAL
+                        ? Filter.createGreaterOrEqualFilter(filter.getAttributeName(), value)
+                        : Filter.createLessOrEqualFilter(filter.getAttributeName(), value);
+
+            default:
+                return filter;
+        }
+    }
+
+    private static long usnChanged(final Entry entry) {
+        final String value = entry.getAttributeValue(USNCHANGED);
+        return value == null ? 0L : Long.parseLong(value);
+    }
+
+    /**
+     * GUIDs are made of lowercase letters only, so that they can be compared as strings by a schema-less server.
+     */
+    private byte[] newGUID() {
+        final byte[] guid = new byte[16];
+        long value = guids.incrementAndGet();
+        for (int i = guid.length - 1; i >= 0; i--) {
+            guid[i] = (byte) ('a' + value % 26);
+            value /= 26;
+        }
+        return guid;
+    }
+
+    private static Control[] supportedControls(final ReadOnlyLDAPRequest request) {
+        final List<Control> controls = new ArrayList<Control>();
+        for (Control control : request.getControlList()) {
+            if (!control.getOID().startsWith(MICROSOFT_OID_PREFIX)
+                    || SUPPORTED_MICROSOFT_OIDS.contains(control.getOID())) {
+                controls.add(control);
+            }
+        }
+        return controls.toArray(new Control[controls.size()]);
+    }
+}
@@ -0,0 +1,583 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.ad;
+
+import static org.junit.Assert.*;
+
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import net.tirasa.connid.bundles.ad.search.ADDefaultSearchStrategy;
+import net.tirasa.connid.bundles.ad.search.ADParallelSearchStrategy;
+import net.tirasa.connid.bundles.ad.sync.ADChangeNotificationSyncStrategy;
+import net.tirasa.connid.bundles.ad.sync.ADSyncStrategy;
+import net.tirasa.connid.bundles.ad.sync.ADUSNChangedSyncStrategy;
+import net.tirasa.connid.bundles.ad.sync.CompositeSyncToken;
+import net.tirasa.connid.bundles.ldap.search.LdapSearchResultsHandler;
+import org.identityconnectors.common.Base64;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.spi.SyncTokenResultsHandler;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Connector features checked against {@link InMemoryDirectory}.
+ */
+public class InMemoryDirectoryTest {
+
+    private static final String[] CONTAINERS = {
+        "ou=people1,o=isp", "ou=people2,o=isp", "ou=people3,o=isp" };
+
+    private static final int USERS_PER_CONTAINER = 5;
+
+    private static final String PAGED_CONTAINER = "ou=paged,o=isp";
+
+    private static final int PAGED_USERS = 30;
+
+    private static final String SYNC_CONTAINER = "ou=sync,o=isp";
+
+    private static final int SYNC_USERS = 5;
+
+    private static final String USN_CONTAINER = "ou=usn,o=isp";
+
+    private static final String NOTIFY_CONTAINER = "ou=notify,o=isp";
+
+    private static final long NOTIFY_TIMEOUT_MILLIS = 10000L;
+
+    private static final String[] PARALLEL_SYNC_CONTAINERS = { "ou=parallel1,o=isp", "ou=parallel2,o=isp" };
+
+    private static InMemoryDirectory directory;
+
+    @BeforeClass
+    public static void start() throws Exception {
+        directory = new InMemoryDirectory();
+
+        for (int i = 0; i < CONTAINERS.length; i++) {
+            directory.addContainer(CONTAINERS[i]);
+            for (int j = 0; j < USERS_PER_CONTAINER; j++) {
+                directory.addUser("cn=user" + i + j + "," + CONTAINERS[i], "user" + i + j);
+            }
+        }
+
+        directory.addContainer(PAGED_CONTAINER);
+        for (int i = 0; i < PAGED_USERS; i++) {
+            directory.addUser("cn=paged" + i + "," + PAGED_CONTAINER, "paged" + i);
+        }
+
+        directory.addContainer(SYNC_CONTAINER);
+        for (int i = 0; i < SYNC_USERS; i++) {
+            directory.addUser("cn=sync" + i + "," + SYNC_CONTAINER, "sync" + i);
+        }
+
+        for (int i = 0; i < PARALLEL_SYNC_CONTAINERS.length; i++) {
+            directory.addContainer(PARALLEL_SYNC_CONTAINERS[i]);
+            for (int j = 0; j < USERS_PER_CONTAINER; j++) {
+                directory.addUser("cn=parallel" + i + j + "," + PARALLEL_SYNC_CONTAINERS[i], "parallel" + i + j);
+            }
+        }
+    }
+
+    @AfterClass
+    public static void stop() {
+        directory.shutDown();
+    }
+
+    private static List<String> parallelSearch(final ADConfiguration conf, final int stopAfter)
+            throws NamingException {
+
+        final ADConnection conn = new ADConnection(conf);
+        final Thread caller = Thread.currentThread();
+        final List<String> found = new ArrayList<String>();
+
+        final SearchControls searchCtls = new SearchControls();
+        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        searchCtls.setReturningAttributes(new String[] { "sAMAccountName" });
+
+        conn.acquireContext();
+        try {
+            new ADParallelSearchStrategy(conn, false, CONTAINERS.length).doSearch(
+                    conn.getInitialContext(),
+                    Arrays.asList(CONTAINERS),
+                    "(objectClass=user)",
+                    searchCtls,
+                    new LdapSearchResultsHandler() {
+
+                @Override
+                public boolean handle(final String baseDN, final SearchResult result) {
+                    // results are handed over by the calling thread only
+                    assertSame(caller, Thread.currentThread());
+                    found.add(result.getNameInNamespace());
+                    return found.size() < stopAfter;
+                }
+            });
+        } finally {
+            conn.releaseContext();
+            conn.close();
+        }
+
+        return found;
+    }
+
+    @Test
+    public void parallelSearch() throws NamingException {
+        final ADConfiguration conf = directory.newConfiguration(CONTAINERS);
+        conf.setSearchPageSize(2);
+
+        // one worker per base DN, besides the context held by the caller
+        conf.setContextPoolMaxTotal(CONTAINERS.length + 1);
+        List<String> found = parallelSearch(conf, Integer.MAX_VALUE);
+        assertEquals(CONTAINERS.length * USERS_PER_CONTAINER, found.size());
+        assertEquals(found.size(), new HashSet<String>(found).size());
+
+        // the handler asks to stop: workers give up
+        found = parallelSearch(conf, 3);
+        assertEquals(3, found.size());
+
+        // not enough pooled contexts for two workers: base DNs are searched one after the other
+        conf.setContextPoolMaxTotal(2);
+        found = parallelSearch(conf, Integer.MAX_VALUE);
+        assertEquals(CONTAINERS.length * USERS_PER_CONTAINER, found.size());
+        for (int i = 0; i < CONTAINERS.length; i++) {
+            final Set<String> container = new HashSet<String>();
+            for (String dn : found.subList(i * USERS_PER_CONTAINER, (i + 1) * USERS_PER_CONTAINER)) {
+                container.add(dn.substring(dn.indexOf(',') + 1).toLowerCase());
+            }
+            assertEquals(1, container.size());
+            assertEquals(CONTAINERS[i], container.iterator().next());
+        }
+
+        // no pool at all
+        conf.setContextPoolMaxTotal(0);
+        found = parallelSearch(conf, Integer.MAX_VALUE);
+        assertEquals(CONTAINERS.length * USERS_PER_CONTAINER, found.size());
+    }
+
+    private static List<Integer> pagedSearch(final ADDefaultSearchStrategy strategy) throws NamingException {
+        final ADConnection conn = new ADConnection(directory.newConfiguration(PAGED_CONTAINER));
+        final List<String> found = new ArrayList<String>();
+
+        final SearchControls searchCtls = new SearchControls();
+        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        searchCtls.setReturningAttributes(new String[] { "sAMAccountName" });
+
+        directory.getRequestedPageSizes().clear();
+        conn.acquireContext();
+        try {
+            strategy.doSearch(
+                    conn.getInitialContext(),
+                    Collections.singletonList(PAGED_CONTAINER),
+                    "(objectClass=user)",
+                    searchCtls,
+                    new LdapSearchResultsHandler() {
+
+                @Override
+                public boolean handle(final String baseDN, final SearchResult result) {
+                    found.add(result.getNameInNamespace());
+                    return true;
+                }
+            });
+        } finally {
+            conn.releaseContext();
+            conn.close();
+        }
+
+        assertEquals(PAGED_USERS, found.size());
+        return new ArrayList<Integer>(directory.getRequestedPageSizes());
+    }
+
+    @Test
+    public void adaptivePageSize() throws NamingException {
+        directory.setMaxPageSize(8);
+        final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor();
+        try {
+            // page size above the server limit: the first short page reveals the latter
+            assertEquals(Arrays.asList(50, 8, 8, 8),
+                    pagedSearch(new ADDefaultSearchStrategy(false, 50, false, 0L, null)));
+
+            // fast pages grow the page size, never beyond the server limit once learned
+            assertEquals(Arrays.asList(2, 50, 8, 8, 8),
+                    pagedSearch(new ADDefaultSearchStrategy(false, 2, true, 60000L, null)));
+            assertEquals(Arrays.asList(2, 50, 8, 8, 8),
+                    pagedSearch(new ADDefaultSearchStrategy(false, 2, true, 60000L, prefetchExecutor)));
+
+            // below the server limit, the configured size is kept
+            assertEquals(Arrays.asList(5, 5, 5, 5, 5, 5),
+                    pagedSearch(new ADDefaultSearchStrategy(false, 5, false, 0L, prefetchExecutor)));
+        } finally {
+            prefetchExecutor.shutdownNow();
+            directory.setMaxPageSize(Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Collects sync deltas and the token reported at the end of the run.
+     */
+    private static class SyncRecorder implements SyncTokenResultsHandler {
+
+        private final int stopAfter;
+
+        private final List<SyncDelta> deltas = new ArrayList<SyncDelta>();
+
+        private final List<SyncToken> results = new ArrayList<SyncToken>();
+
+        SyncRecorder(final int stopAfter) {
+            this.stopAfter = stopAfter;
+        }
+
+        @Override
+        public boolean handle(final SyncDelta delta) {
+            deltas.add(delta);
+            return deltas.size() < stopAfter;
+        }
+
+        @Override
+        public void handleResult(final SyncToken token) {
+            results.add(token);
+        }
+
+        public List<String> getNames() {
+            final List<String> names = new ArrayList<String>();
+            for (SyncDelta delta : deltas) {
+                names.add(delta.getUid().getUidValue());
+            }
+            return names;
+        }
+
+        public List<String> getTokens() {
+            final List<String> tokens = new ArrayList<String>();
+            for (SyncDelta delta : deltas) {
+                tokens.add(cookie(delta.getToken()));
+            }
+            return tokens;
+        }
+
+        public SyncToken getResultToken() {
+            assertEquals(1, results.size());
+            return results.get(0);
+        }
+
+        public String getResult() {
+            assertEquals(1, results.size());
+            return cookie(results.get(0));
+        }
+    }
+
+    private static String cookie(final SyncToken token) {
+        return token == null ? null : new String((byte[]) token.getValue());
+    }
+
+    private static SyncRecorder sync(final ADConfiguration conf, final SyncToken token) {
+        return sync(conf, token, Integer.MAX_VALUE);
+    }
+
+    private static SyncRecorder sync(final ADConfiguration conf, final SyncToken token, final int stopAfter) {
+        final ADConnection conn = new ADConnection(conf);
+        final SyncRecorder recorder = new SyncRecorder(stopAfter);
+        try {
+            (conf.isUsnChangedSync() ? new ADUSNChangedSyncStrategy(conn) : new ADSyncStrategy(conn)).sync(
+                    token, recorder, new OperationOptionsBuilder().build(), ObjectClass.ACCOUNT);
+        } finally {
+            conn.close();
+        }
+        return recorder;
+    }
+
+    private static SyncRecorder sync(final ADSyncStrategy strategy, final SyncToken token) {
+        final SyncRecorder recorder = new SyncRecorder(Integer.MAX_VALUE);
+        strategy.sync(token, recorder, new OperationOptionsBuilder().build(), ObjectClass.ACCOUNT);
+        return recorder;
+    }
+
+    private static List<String> syncUsers(final int from, final int to) {
+        final List<String> names = new ArrayList<String>();
+        for (int i = from; i < to; i++) {
+            names.add("sync" + i);
+        }
+        return names;
+    }
+
+    /**
+     * Synchronize {@link #SYNC_CONTAINER}, read by DirSync in batches of two changes, and check the tokens carried
+     * by deltas.
+     */
+    private static void batchedSync(final ADConfiguration conf) throws Exception {
+        directory.setDirSyncBatchSize(2);
+        try {
+            SyncRecorder recorder = sync(conf, null);
+            assertEquals(syncUsers(0, SYNC_USERS), recorder.getNames());
+
+            // the last delta of each batch carries the cookie returned for the batch, the others the cookie the
+            // batch was requested with, empty for the first one
+            final String first = String.valueOf(directory.getUSNChanged("cn=sync1," + SYNC_CONTAINER));
+            final String second = String.valueOf(directory.getUSNChanged("cn=sync3," + SYNC_CONTAINER));
+            final String last = recorder.getResult();
+            assertEquals(Arrays.asList("", first, first, second, last), recorder.getTokens());
+
+            // restarting from any delivered token reads again at most one batch
+            recorder = sync(conf, new SyncToken(first.getBytes()));
+            assertEquals(syncUsers(2, SYNC_USERS), recorder.getNames());
+            assertEquals(Arrays.asList(first, second, last), recorder.getTokens());
+            assertEquals(last, recorder.getResult());
+
+            // the handler stops: the token of the last delta handled is reported
+            recorder = sync(conf, new SyncToken(first.getBytes()), 1);
+            assertEquals(syncUsers(2, 3), recorder.getNames());
+            assertEquals(first, recorder.getResult());
+
+            // nothing changed since the last token
+            recorder = sync(conf, new SyncToken(last.getBytes()));
+            assertTrue(recorder.getNames().isEmpty());
+            assertEquals(last, recorder.getResult());
+        } finally {
+            directory.setDirSyncBatchSize(Integer.MAX_VALUE);
+        }
+    }
+
+    @Test
+    public void streamingSync() throws Exception {
+        final ADConfiguration conf = directory.newConfiguration(SYNC_CONTAINER);
+        conf.setStreamingSync(true);
+        conf.setSyncBatchSize(1);
+        batchedSync(conf);
+    }
+
+    @Test
+    public void checkpointSync() throws Exception {
+        final ADConfiguration conf = directory.newConfiguration(SYNC_CONTAINER);
+        // a checkpoint after each batch, the token being reported only once at the end of the run
+        conf.setSyncCheckpoints(true);
+        batchedSync(conf);
+    }
+
+    @Test
+    public void pipelinedSync() throws Exception {
+        final ADConfiguration conf = directory.newConfiguration(SYNC_CONTAINER);
+        // deltas built concurrently, one change at a time, are still handed over in the order read
+        conf.setSyncWorkers(3);
+        conf.setSyncBatchSize(1);
+        batchedSync(conf);
+    }
+
+    @Test
+    public void parallelSync() throws Exception {
+        final ADConfiguration conf = directory.newConfiguration(PARALLEL_SYNC_CONTAINERS);
+        conf.setParallelSync(true);
+        // one context for the caller and one for each worker
+        conf.setContextPoolMaxTotal(PARALLEL_SYNC_CONTAINERS.length + 1);
+
+        directory.setDirSyncBatchSize(2);
+        try {
+            SyncRecorder recorder = sync(conf, null);
+
+            final List<String> expected = new ArrayList<String>();
+            for (int i = 0; i < PARALLEL_SYNC_CONTAINERS.length; i++) {
+                for (int j = 0; j < USERS_PER_CONTAINER; j++) {
+                    expected.add("parallel" + i + j);
+                }
+            }
+            final List<String> names = recorder.getNames();
+            Collections.sort(names);
+            assertEquals(expected, names);
+
+            // each base context has its own cookie
+            final SyncToken token = recorder.getResultToken();
+            final Map<String, byte[]> cookies = CompositeSyncToken.getCookies(token, PARALLEL_SYNC_CONTAINERS);
+            for (String baseContext : PARALLEL_SYNC_CONTAINERS) {
+                assertTrue(cookies.get(baseContext).length > 0);
+            }
+
+            // a change in one base context only
+            directory.addUser("cn=parallelNew," + PARALLEL_SYNC_CONTAINERS[1], "parallelNew");
+
+            recorder = sync(conf, token);
+            assertEquals(Collections.singletonList("parallelNew"), recorder.getNames());
+
+            // deltas carry the cookies of all base contexts
+            final Map<String, byte[]> deltaCookies = CompositeSyncToken.getCookies(
+                    recorder.deltas.get(0).getToken(), PARALLEL_SYNC_CONTAINERS);
+            for (String baseContext : PARALLEL_SYNC_CONTAINERS) {
+                assertTrue(deltaCookies.get(baseContext).length > 0);
+            }
+
+            // restarting from the latest token: nothing new
+            recorder = sync(conf, recorder.getResultToken());
+            assertTrue(recorder.getNames().isEmpty());
+        } finally {
+            directory.setDirSyncBatchSize(Integer.MAX_VALUE);
+        }
+    }
+
+    private static List<String> sorted(final List<String> names) {
+        Collections.sort(names);
+        return names;
+    }
+
+    @Test
+    public void usnChangedSync() throws Exception {
+        final String groupDn = "cn=usnGroup," + USN_CONTAINER;
+        directory.addContainer(USN_CONTAINER);
+        for (int i = 0; i < 3; i++) {
+            directory.addUser("cn=usn" + i + "," + USN_CONTAINER, "usn" + i);
+        }
+        directory.addGroup(groupDn, "usnGroup", "cn=usn0," + USN_CONTAINER);
+
+        final ADConfiguration conf = directory.newConfiguration(USN_CONTAINER);
+        conf.setUsnChangedSync(true);
+
+        final String dc = Base64.encode(InMemoryDirectory.DS_SERVICE_NAME.getBytes(Charset.forName("UTF-8")));
+
+        // accounts are reported once, even if members of a changed group; the last one carries the new watermark
+        SyncRecorder recorder = sync(conf, null);
+        assertEquals(Arrays.asList("usn0", "usn1", "usn2"), sorted(recorder.getNames()));
+        final SyncToken first = recorder.getResultToken();
+        assertEquals("usn;" + dc + ":" + directory.getUSNChanged(groupDn), first.getValue());
+        assertEquals(first, recorder.deltas.get(recorder.deltas.size() - 1).getToken());
+
+        // membership change only: the uSNChanged of the group is updated, not the one of the new member
+        final long usn1 = directory.getUSNChanged("cn=usn1," + USN_CONTAINER);
+        directory.modify(groupDn, new Modification(ModificationType.ADD, "member", "cn=usn1," + USN_CONTAINER));
+        assertEquals(usn1, directory.getUSNChanged("cn=usn1," + USN_CONTAINER));
+
+        recorder = sync(conf, first);
+        assertEquals(Arrays.asList("usn0", "usn1"), sorted(recorder.getNames()));
+        final SyncToken second = recorder.getResultToken();
+
+        // deleted account, found among the tombstones of the naming context
+        directory.delete("cn=usn2," + USN_CONTAINER);
+
+        recorder = sync(conf, second);
+        assertEquals(Collections.singletonList("usn2"), recorder.getNames());
+        assertEquals(SyncDeltaType.DELETE, recorder.deltas.get(0).getDeltaType());
+        final SyncToken third = recorder.getResultToken();
+
+        // nothing changed
+        recorder = sync(conf, third);
+        assertTrue(recorder.getNames().isEmpty());
+        assertEquals(third, recorder.getResultToken());
+
+        // watermarks of other domain controllers are kept, invalid ones are ignored
+        final String other = Base64.encode("cn=DC2".getBytes(Charset.forName("UTF-8")));
+        final String current = third.getValue().toString().substring("usn;".length());
+        recorder = sync(conf, new SyncToken("usn;" + other + ":42;Zm9v:x;" + current));
+        assertTrue(recorder.getNames().isEmpty());
+        assertEquals("usn;" + other + ":42;" + current, recorder.getResultToken().getValue());
+
+        // tokens not produced by uSNChanged synchronization: everything is read again
+        recorder = sync(conf, new SyncToken(new byte[] { 0x01 }));
+        assertEquals(Arrays.asList("usn0", "usn1", "usn2"), sorted(recorder.getNames()));
+        assertEquals(third, recorder.getResultToken());
+    }
+
+    @Test
+    public void changeNotificationSync() throws Exception {
+        directory.addContainer(NOTIFY_CONTAINER);
+        directory.addUser("cn=notify0," + NOTIFY_CONTAINER, "notify0");
+
+        final ADConfiguration conf = directory.newConfiguration(NOTIFY_CONTAINER);
+        conf.setChangeNotificationSync(true);
+
+        final ADConnection conn = new ADConnection(conf);
+        final ADChangeNotificationSyncStrategy strategy = new ADChangeNotificationSyncStrategy(conn);
+        try {
+            final int registered = directory.getNotifySearches();
+
+            // the notification search is issued by the first synchronization, which polls anyway
+            SyncRecorder recorder = sync(strategy, null);
+            assertEquals(Collections.singletonList("notify0"), recorder.getNames());
+            SyncToken token = recorder.getResultToken();
+            assertTrue(directory.awaitNotifySearches(registered + 1, NOTIFY_TIMEOUT_MILLIS));
+
+            // the first synchronization started with the search registered is never skipped...
+            int polls = directory.getDirSyncSearches();
+            recorder = sync(strategy, token);
+            assertTrue(recorder.getNames().isEmpty());
+            assertEquals(polls + 1, directory.getDirSyncSearches());
+            token = recorder.getResultToken();
+
+            // ...while the ones after it are, as long as nothing is notified
+            recorder = sync(strategy, token);
+            token = recorder.getResultToken();
+            polls = directory.getDirSyncSearches();
+            recorder = sync(strategy, token);
+            assertTrue(recorder.getNames().isEmpty());
+            assertEquals(token, recorder.getResultToken());
+            assertEquals(polls, directory.getDirSyncSearches());
+
+            // a notified change is caught up by polling
+            directory.addUser("cn=notify1," + NOTIFY_CONTAINER, "notify1");
+            final long deadline = System.currentTimeMillis() + NOTIFY_TIMEOUT_MILLIS;
+            do {
+                recorder = sync(strategy, token);
+                token = recorder.getResultToken();
+            } while (recorder.getNames().isEmpty() && System.currentTimeMillis() < deadline);
+            assertEquals(Collections.singletonList("notify1"), recorder.getNames());
+
+            polls = directory.getDirSyncSearches();
+            recorder = sync(strategy, token);
+            assertTrue(recorder.getNames().isEmpty());
+            assertEquals(polls, directory.getDirSyncSearches());
+
+            // connection lost: the search is reissued, but not registered yet by the server
+            directory.holdNotifySearches(true);
+            try {
+                directory.dropNotifySearches();
+                assertTrue(directory.awaitHeldNotifySearches(1, NOTIFY_TIMEOUT_MILLIS));
+
+                // changes might have been lost meanwhile: polling
+                recorder = sync(strategy, token);
+                assertTrue(recorder.getNames().isEmpty());
+                assertEquals(polls + 1, directory.getDirSyncSearches());
+                token = recorder.getResultToken();
+
+                // neither read by the previous synchronization nor notified
+                directory.addUser("cn=notify2," + NOTIFY_CONTAINER, "notify2");
+            } finally {
+                directory.holdNotifySearches(false);
+            }
+            assertTrue(directory.awaitNotifySearches(registered + 2, NOTIFY_TIMEOUT_MILLIS));
+
+            // the synchronization started before the search was registered does not allow skipping this one
+            recorder = sync(strategy, token);
+            assertEquals(Collections.singletonList("notify2"), recorder.getNames());
+            token = recorder.getResultToken();
+
+            polls = directory.getDirSyncSearches();
+            recorder = sync(strategy, token);
+            assertTrue(recorder.getNames().isEmpty());
+            assertEquals(polls, directory.getDirSyncSearches());
+        } finally {
+            strategy.dispose();
+            conn.close();
+        }
+    }
+}